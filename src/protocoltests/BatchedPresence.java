@@ -0,0 +1,157 @@
+package protocoltests;
+
+import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
+
+import java.io.IOException;
+import java.util.*;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Logins and disconnects announced as PRESENCE deltas ({@code presence=batched}) compared to
+ * ARRIVED/LEFT per event. Every case starts its own reference servers, so it runs against
+ * the embedded server regardless of the configured one.
+ */
+class BatchedPresence {
+
+    private static Properties props;
+
+    private final static int max_delta_allowed_ms = 1000;
+    private final static int presence_interval_ms = 100;
+    private final static int users = 20;
+    private final static int leaving = 5;
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(BatchedPresence.class);
+    }
+
+    @Test
+    void TC10_1_batchedPresenceGivesTheSameRosterAsEvents(TestReporter testReporter) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            names.add(Usernames.unique("prs"));
+        }
+        Observed events = runScript("events", names);
+        Observed batched = runScript("batched", names);
+
+        Set<String> expected = new HashSet<>(names.subList(leaving, users));
+        assertEquals(expected, events.roster);
+        assertEquals(expected, batched.roster);
+        assertEquals(events.list, batched.list);
+        assertEquals(0, batched.events);
+        assertEquals(0, events.deltas);
+        assertEquals(users + leaving, events.events);
+        assertTrue(batched.deltas < events.events, batched.deltas + " deltas");
+
+        testReporter.publishEntry("eventsBytes", String.valueOf(events.writtenBytes));
+        testReporter.publishEntry("batchedBytes", String.valueOf(batched.writtenBytes));
+        assertTrue(batched.writtenBytes < events.writtenBytes);
+    }
+
+    @Test
+    void TC10_2_loginAndDisconnectWithinOneIntervalIsNotAnnounced() throws Exception {
+        String observerName = Usernames.unique("obs"), shortName = Usernames.unique("prs"), stayingName = Usernames.unique("prs");
+        try (ReferenceServer server = startServer("batched", 500)) {
+            ChatConnection observer = login(server, observerName);
+            receiveMessageWithTimeout(observer); // own login, announced in the first delta
+            ChatConnection staying = login(server, stayingName);
+            login(server, shortName).close();
+
+            Presence presence = receiveMessageWithTimeout(observer);
+            assertEquals(new Presence(List.of(stayingName), List.of()), presence);
+            assertNull(observer.receive(ofMillis(2 * presence_interval_ms)));
+            observer.close();
+            staying.close();
+        }
+    }
+
+    /**
+     * Logs in an observer, then all names one after another, and disconnects the first
+     * {@code leaving} of them again. Returns the observer's roster built from the announcements.
+     */
+    private Observed runScript(String presence, List<String> names) throws Exception {
+        try (ReferenceServer server = startServer(presence, presence_interval_ms)) {
+            Observed observed = new Observed();
+            String observerName = Usernames.unique("obs");
+            ChatConnection observer = login(server, observerName);
+            List<ChatConnection> connections = new ArrayList<>();
+            for (String name : names) {
+                connections.add(login(server, name));
+            }
+            for (int i = 0; i < leaving; i++) {
+                connections.get(i).close();
+            }
+
+            // Announcements stop once every login and disconnect has been delivered
+            Object message;
+            while ((message = observer.receive(ofMillis(5 * presence_interval_ms))) != null) {
+                observed.apply(message);
+            }
+            observed.roster.remove(observerName);
+            observed.writtenBytes = server.writtenBytes();
+
+            observer.sendCommand("LIST");
+            Response<List<String>> list = receiveMessageWithTimeout(observer);
+            observed.list.addAll(list.content());
+
+            observer.close();
+            for (ChatConnection connection : connections) {
+                connection.close();
+            }
+            return observed;
+        }
+    }
+
+    private ReferenceServer startServer(String presence, int intervalMs) throws IOException {
+        Properties settings = new Properties();
+        settings.putAll(props);
+        settings.setProperty("presence", presence);
+        settings.setProperty("presence_interval_ms", String.valueOf(intervalMs));
+        return new ReferenceServer(0, settings);
+    }
+
+    private ChatConnection login(ReferenceServer server, String name) throws IOException {
+        ChatConnection connection = new ChatConnection("127.0.0.1", server.port());
+        receiveMessageWithTimeout(connection); // WELCOME
+        connection.send(new Login(name));
+        Response<String> loginResp = receiveMessageWithTimeout(connection);
+        assertEquals(800, loginResp.status());
+        return connection;
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+
+    private static class Observed {
+        final Set<String> roster = new HashSet<>();
+        final Set<String> list = new HashSet<>();
+        int events;
+        int deltas;
+        long writtenBytes;
+
+        void apply(Object message) {
+            if (message instanceof Arrived arrived) {
+                roster.add(arrived.message());
+                events++;
+            } else if (message instanceof Left left) {
+                roster.remove(left.username());
+                events++;
+            } else if (message instanceof Presence presence) {
+                roster.removeAll(presence.left());
+                roster.addAll(presence.joined());
+                deltas++;
+            }
+        }
+    }
+}
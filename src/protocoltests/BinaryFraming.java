@@ -0,0 +1,152 @@
+package protocoltests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.protocol.utils.Utils;
+import protocoltests.server.ReferenceServer;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Binary framing negotiated with FRAMING after GREET. Skipped for servers that do not support it;
+ * the command tests run in binary framing as a whole with {@code -Dframing=binary}.
+ */
+class BinaryFraming {
+
+    private static Properties props;
+    private static ReferenceServer server;
+
+    private ChatConnection s1, s2;
+    private final String name1 = Usernames.unique("user"), name2 = Usernames.unique("user");
+
+    private final static int max_delta_allowed_ms = 200;
+    private final static int negotiation_timeout_ms = 1000;
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(BinaryFraming.class);
+        props.setProperty("framing", "text"); // every test negotiates itself
+        server = ReferenceServer.startIfConfigured(props);
+    }
+
+    @BeforeEach
+    void setup() throws IOException {
+        s1 = ChatConnection.fromConfig(props);
+        s2 = ChatConnection.fromConfig(props);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        s1.close();
+        s2.close();
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void TC8_1_binaryFramingIsAcceptedAfterGreet() throws JsonProcessingException {
+        assumeTrue(s1.useBinaryFraming(ofMillis(negotiation_timeout_ms)), "Server does not support binary framing");
+        Welcome welcome = receiveMessageWithTimeout(s1);
+        assertEquals(new Welcome(ReferenceServer.welcome_message), welcome);
+
+        s1.send(new Login(name1));
+        Response<String> loginResp = receiveMessageWithTimeout(s1);
+        assertEquals(800, loginResp.status());
+        assertEquals("LOGIN", loginResp.to());
+
+        s1.send(new Broadcast("", "a"));
+        Response<String> broadcastResp = receiveMessageWithTimeout(s1);
+        assertEquals(800, broadcastResp.status());
+        assertEquals("BROADCAST", broadcastResp.to());
+    }
+
+    @Test
+    void TC8_2_binaryFramesSplitOverMultipleWritesAreDecoded() throws JsonProcessingException {
+        assumeTrue(s1.useBinaryFraming(ofMillis(negotiation_timeout_ms)), "Server does not support binary framing");
+        receiveMessageWithTimeout(s1); //welcome message
+
+        byte[] login = Utils.objectToBinaryFrame(new Login(name1));
+        byte[] broadcast = Utils.objectToBinaryFrame(new Broadcast("", "a"));
+        byte[] both = Arrays.copyOf(login, login.length + broadcast.length);
+        System.arraycopy(broadcast, 0, both, login.length, broadcast.length);
+        // Split inside the first length prefix and inside the second body
+        int[] splits = {2, login.length + 7, both.length};
+        int from = 0;
+        for (int to : splits) {
+            s1.write(Arrays.copyOfRange(both, from, to));
+            from = to;
+        }
+
+        Response<String> loginResp = receiveMessageWithTimeout(s1);
+        assertEquals(800, loginResp.status());
+        Response<String> broadcastResp = receiveMessageWithTimeout(s1);
+        assertEquals(800, broadcastResp.status());
+        assertEquals("BROADCAST", broadcastResp.to());
+    }
+
+    @Test
+    void TC8_3_binaryAndLineClientsSeeEachOther() throws JsonProcessingException {
+        assumeTrue(s1.useBinaryFraming(ofMillis(negotiation_timeout_ms)), "Server does not support binary framing");
+        receiveMessageWithTimeout(s1); //welcome message
+        receiveMessageWithTimeout(s2); //welcome message
+
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); //OK
+        s2.send(new Login(name2));
+        receiveMessageWithTimeout(s2); //OK
+        Arrived arrived = receiveMessageWithTimeout(s1);
+        assertEquals(new Arrived(name2), arrived);
+
+        s1.sendCommand("LIST");
+        Response<List<String>> list = receiveMessageWithTimeout(s1);
+        assertEquals("LIST", list.to());
+        assertTrue(list.content().contains(name2));
+
+        s2.send(new Broadcast("", "from line client"));
+        receiveMessageWithTimeout(s2); //OK
+        Broadcast broadcast = receiveMessageWithTimeout(s1);
+        assertEquals(new Broadcast(name2, "from line client"), broadcast);
+    }
+
+    @Test
+    void TC8_4_framingAfterLoginReturnsError() throws JsonProcessingException {
+        receiveMessageWithTimeout(s1); //welcome message
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); //OK
+
+        s1.send(new Framing("binary"));
+        Object reply = receiveMessageWithTimeout(s1);
+        assumeTrue(reply instanceof Response<?>, "Server does not support binary framing");
+        Response<?> framingResp = (Response<?>) reply;
+        assertEquals(841, framingResp.status());
+        assertEquals("FRAMING", framingResp.to());
+
+        // Still the line protocol
+        s1.send(new Broadcast("", "a"));
+        Response<String> broadcastResp = receiveMessageWithTimeout(s1);
+        assertEquals(800, broadcastResp.status());
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+}
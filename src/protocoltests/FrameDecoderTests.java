@@ -0,0 +1,123 @@
+package protocoltests;
+
+import org.junit.jupiter.api.Test;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.FrameDecoder;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameDecoderTests {
+
+    private final static List<String> lines = List.of(
+            "GREET {\"message\":\"Welcome to the chatroom! Please login to start chatting!\"}",
+            "RESPONSE {\"content\":\"OK\",\"status\":800,\"to\":\"LOGIN\"}",
+            "RESPONSE {\"content\":[\"user2\",\"user3\"],\"status\":800,\"to\":\"LIST\"}",
+            "BROADCAST {\"username\":\"user1\",\"message\":\"messagefromuser1\"}",
+            "PRIVATE {\"username\":\"user1\",\"message\":\"howdy\"}",
+            "ARRIVED {\"message\":\"user2\"}",
+            "LEFT {\"username\":\"user2\"}",
+            "PONG_ERROR {\"code\":8000}",
+            "PING"
+    );
+
+    @Test
+    void FD_1_decodedFramesEqualStringDecoding() throws IOException {
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            Object expected = Utils.messageToObject(line);
+            assertEquals(expected, Utils.frameToObject(bytes, 0, bytes.length));
+        }
+    }
+
+    @Test
+    void FD_2_frameSplitOverMultipleReadsIsDecoded() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(ByteBuffer.wrap("LOGIN {\"username\":\"m".getBytes(StandardCharsets.UTF_8)));
+        assertNull(decoder.next());
+        decoder.feed(ByteBuffer.wrap("yname\"}\r\nBROAD".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(new Login("myname"), decoder.next());
+        assertNull(decoder.next());
+        decoder.feed(ByteBuffer.wrap("CAST {\"message\":\"a\"}\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(new Broadcast(null, "a"), decoder.next());
+        assertNull(decoder.next());
+        assertEquals(0, decoder.pending());
+    }
+
+    @Test
+    void FD_3_byteByByteFeedKeepsFrameBoundaries() throws IOException {
+        byte[] stream = (String.join("\r\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+        FrameDecoder decoder = new FrameDecoder();
+        int decoded = 0;
+        for (int i = 0; i < stream.length; i++) {
+            decoder.feed(stream, i, 1);
+            Object frame = decoder.next();
+            if (frame != null) {
+                assertEquals(Utils.messageToObject(lines.get(decoded)), frame);
+                decoded++;
+            }
+        }
+        assertEquals(lines.size(), decoded);
+    }
+
+    @Test
+    void FD_4_framesAreReadFromInputStream() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5_000; i++) {
+            builder.append(lines.get(i % lines.size())).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        FrameDecoder decoder = new FrameDecoder();
+        ByteArrayInputStream in = new ByteArrayInputStream(builder.toString().getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 5_000; i++) {
+            Object expected = Utils.messageToObject(lines.get(i % lines.size()));
+            Object frame = decoder.read(in);
+            assertEquals(expected, frame);
+        }
+        Object end = decoder.read(in);
+        assertNull(end);
+    }
+
+    @Test
+    void FD_5_binaryFramesDecodeLikeLines() throws IOException {
+        byte[] stream = new byte[0];
+        for (String line : lines) {
+            byte[] frame = Utils.objectToBinaryFrame(Utils.messageToObject(line));
+            int offset = stream.length;
+            stream = Arrays.copyOf(stream, offset + frame.length);
+            System.arraycopy(frame, 0, stream, offset, frame.length);
+        }
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.binary(true);
+        int decoded = 0;
+        for (int i = 0; i < stream.length; i++) {
+            decoder.feed(stream, i, 1);
+            Object frame = decoder.next();
+            if (frame != null) {
+                assertEquals(Utils.messageToObject(lines.get(decoded)), frame);
+                decoded++;
+            }
+        }
+        assertEquals(lines.size(), decoded);
+        assertEquals(0, decoder.pending());
+    }
+
+    @Test
+    void FD_6_switchToBinaryAppliesToBufferedBytes() throws IOException {
+        byte[] line = "RESPONSE {\"content\":\"OK\",\"status\":800,\"to\":\"FRAMING\"}\n".getBytes(StandardCharsets.UTF_8);
+        byte[] binary = Utils.objectToBinaryFrame(new Broadcast("user1", "a"));
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(line, 0, line.length);
+        decoder.feed(binary, 0, binary.length);
+        assertEquals(new Response<>("OK", 800, "FRAMING"), decoder.next());
+        decoder.binary(true);
+        assertEquals(new Broadcast("user1", "a"), decoder.next());
+        assertNull(decoder.next());
+    }
+}
@@ -2,13 +2,11 @@ package protocoltests;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
 import protocoltests.protocol.messages.*;
-import protocoltests.protocol.utils.Utils;
+import protocoltests.server.ReferenceServer;
 
 import java.io.*;
-import java.net.Socket;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.Properties;
 
 import static java.time.Duration.ofMillis;
@@ -16,31 +14,22 @@ import static org.junit.jupiter.api.Assertions.*;
 
 class GeneralTests {
 
-    private static Properties props = new Properties();
-    private static int ping_time_ms;
-    private static int ping_time_ms_delta_allowed;
+    private static Properties props;
+    private static ReferenceServer server;
     private final static int max_delta_allowed_ms = 300;
 
-    private Socket s;
-    private BufferedReader in;
-    private PrintWriter out;
+    private ChatConnection s;
 
     @BeforeAll
     static void setupAll() throws IOException {
-        InputStream in = GeneralTests.class.getResourceAsStream("testconfig.properties");
-        props.load(in);
-        assert in != null;
-        in.close();
-
-        ping_time_ms = Integer.parseInt(props.getProperty("ping_time_ms", "10000"));
-        ping_time_ms_delta_allowed = Integer.parseInt(props.getProperty("ping_time_ms_delta_allowed", "100"));
+        props = TestConfig.load(GeneralTests.class);
+        props.setProperty("framing", "text"); // sends raw lines, so always tests the line protocol
+        server = ReferenceServer.startIfConfigured(props);
     }
 
     @BeforeEach
     void setup() throws IOException {
-        s = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-        out = new PrintWriter(s.getOutputStream(), true);
+        s = ChatConnection.fromConfig(props);
     }
 
     @AfterEach
@@ -48,30 +37,32 @@ class GeneralTests {
         s.close();
     }
 
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
     @Test
-    void TC5_1_initialConnectionToServerReturnsWelcomeMessage() throws JsonProcessingException {
-        String firstLine = receiveLineWithTimeout(in);
-        Welcome welcome = Utils.messageToObject(firstLine);
+    void TC5_1_initialConnectionToServerReturnsWelcomeMessage() {
+        Welcome welcome = receiveMessageWithTimeout(s);
         assertEquals(new Welcome("Welcome to the chatroom! Please login to start chatting!"), welcome);
     }
 
     @Test
-    void TC5_2_invalidJsonMessageReturnsParseError() throws JsonProcessingException {
-        receiveLineWithTimeout(in); //welcome message
-        out.println("LOGIN {\"}");
-        out.flush();
-        String serverResponse = receiveLineWithTimeout(in);
-        ParseError parseError = Utils.messageToObject(serverResponse);
+    void TC5_2_invalidJsonMessageReturnsParseError() {
+        receiveMessageWithTimeout(s); //welcome message
+        s.sendRaw("LOGIN {\"}\n");
+        ParseError parseError = receiveMessageWithTimeout(s);
         assertNotNull(parseError);
     }
 
     @Test
-    void TC5_3_emptyJsonMessageReturnsError() throws JsonProcessingException {
-        receiveLineWithTimeout(in); //welcome message
-        out.println("LOGIN ");
-        out.flush();
-        String serverResponse = receiveLineWithTimeout(in);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+    void TC5_3_emptyJsonMessageReturnsError() {
+        receiveMessageWithTimeout(s); //welcome message
+        s.sendRaw("LOGIN \n");
+        Response<String> loginResp = receiveMessageWithTimeout(s);
         assertEquals(811, loginResp.status());
         assertEquals("ERROR", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
@@ -79,66 +70,20 @@ class GeneralTests {
 
     @Test
     void TC5_4_pongWithoutPingReturnsErrorMessage() throws JsonProcessingException {
-        receiveLineWithTimeout(in); //welcome message
-        out.println(Utils.objectToMessage(new Pong()));
-        out.flush();
-        String serverResponse = receiveLineWithTimeout(in);
-        Response<String> pongError = Utils.messageToObject(serverResponse);
+        receiveMessageWithTimeout(s); //welcome message
+        s.send(new Pong());
+        Response<String> pongError = receiveMessageWithTimeout(s);
         assertEquals(830, pongError.status());
         assertEquals("ERROR", pongError.content());
         assertEquals("PONG", pongError.to());
     }
 
-    @Test
-    void AsteriskTC5_5_pingIsReceivedAtExpectedTime(TestReporter testReporter) throws JsonProcessingException {
-        // this test is a bit weird, when ran isolated it passes
-        // otherwise it's all the LEFT messages that the client receives
-        // for some reason, when being SUPPOSEDLY the only one running
-        // during the testcase. As a solution I tried emptying the buffer
-        // before the expected 10 seconds pass,so that when the PING is
-        // received it will be the last line in the reader. I don't know
-        // why test client of this test receives the LEFT messages of
-        // all others. This might just be the servers state that needs
-        // resetting after each testcase.
-        receiveLineWithTimeout(in); //welcome message
-        out.println(Utils.objectToMessage(new Login("myname")));
-        out.flush();
-
-        System.err.println(ping_time_ms);
-        System.err.println(ping_time_ms_delta_allowed);
-
-        receiveLineWithTimeout(in); //server response
-
-        //Make sure the test does not hang when no response is received by using assertTimeoutPreemptively
-        assertTimeoutPreemptively(ofMillis(ping_time_ms + ping_time_ms_delta_allowed), () -> {
-            String pingString;
-            Instant start = Instant.now();
-            // This is a rather messy solution, but so the test can
-            // be run together with all the others, I think its fine
-            //
-            // On the other hand, this might even be better, because
-            // now if the server was to do some additional sending
-            // in the meantime that WAS intended, what would also
-            // be ignored until ping is received. Like a blocking call
-            while ((pingString = in.readLine()) != null && !pingString.equals("PING")) {
-            }
-            Instant finish = Instant.now();
-
-            // Make sure the correct response is received
-            System.out.println(pingString);
-            Ping ping = Utils.messageToObject(pingString);
-
-            assertNotNull(ping);
-
-            // Also make sure the response is not received too early
-            long timeElapsed = Duration.between(start, finish).toMillis();
-            testReporter.publishEntry("timeElapsed", String.valueOf(timeElapsed));
-            assertTrue(timeElapsed > ping_time_ms - ping_time_ms_delta_allowed);
-        });
-    }
-
-    private String receiveLineWithTimeout(BufferedReader reader) {
-        return assertTimeoutPreemptively(ofMillis(max_delta_allowed_ms), reader::readLine);
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
     }
 
 }
\ No newline at end of file
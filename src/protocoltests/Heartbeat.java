@@ -0,0 +1,124 @@
+package protocoltests;
+
+import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * PING scheduling, PONG timeouts and the disconnect after a missed PONG, on a reference server
+ * with a virtual clock ({@code clock=virtual}): the test moves time on instead of waiting for it.
+ * Every case starts its own server, so it runs against the embedded server regardless of the
+ * configured one. {@link RealTimeHeartbeat} checks the interval against the wall clock.
+ */
+class Heartbeat {
+
+    private static Properties props;
+
+    private final static int max_delta_allowed_ms = 1000;
+    private final static int quiet_ms = 100; // how long to wait for a message that must not come
+    private final static int ping_time_ms = 10_000;
+    private final static int pong_timeout_ms = 3_000;
+
+    private ReferenceServer server;
+    private ChatConnection s;
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(Heartbeat.class);
+    }
+
+    @BeforeEach
+    void setup() throws IOException {
+        Properties settings = new Properties();
+        settings.putAll(props);
+        settings.setProperty("clock", "virtual");
+        settings.setProperty("write_coalescing", "false"); // frames are expected right after an advance
+        settings.setProperty("flush_window_ms", "0");
+        settings.setProperty("ping_time_ms", String.valueOf(ping_time_ms));
+        settings.setProperty("pong_timeout_ms", String.valueOf(pong_timeout_ms));
+        server = new ReferenceServer(0, settings);
+
+        s = new ChatConnection("127.0.0.1", server.port());
+        receiveMessageWithTimeout(s); // WELCOME
+        s.send(new Login(Usernames.unique("hb")));
+        Response<String> loginResp = receiveMessageWithTimeout(s);
+        assertEquals(800, loginResp.status());
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        s.close();
+        server.close();
+    }
+
+    @Test
+    void TC12_1_pingIsSentAfterPingTimeAndNotBefore() throws Exception {
+        server.advanceClock(ofMillis(ping_time_ms - 1));
+        assertNull(s.receive(ofMillis(quiet_ms)));
+
+        server.advanceClock(ofMillis(1));
+        assertEquals(new Ping(), receiveMessageWithTimeout(s));
+    }
+
+    @Test
+    void TC12_2_pongInTimeKeepsTheConnectionAndPingsRepeat() throws Exception {
+        server.advanceClock(ofMillis(ping_time_ms));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(new Ping(), receiveMessageWithTimeout(s));
+            s.send(new Pong());
+            awaitProcessed(s);
+            server.advanceClock(ofMillis(pong_timeout_ms));
+            assertNull(s.receive(ofMillis(quiet_ms)));
+            server.advanceClock(ofMillis(ping_time_ms - pong_timeout_ms)); // to the next PING
+        }
+        assertFalse(s.isClosed());
+    }
+
+    @Test
+    void TC12_3_missedPongGivesPongErrorAndDisconnects() throws Exception {
+        server.advanceClock(ofMillis(ping_time_ms));
+        assertEquals(new Ping(), receiveMessageWithTimeout(s));
+
+        server.advanceClock(ofMillis(pong_timeout_ms - 1));
+        assertNull(s.receive(ofMillis(quiet_ms)));
+
+        server.advanceClock(ofMillis(1));
+        assertEquals(new PongError(ReferenceServer.pong_timeout_code), receiveMessageWithTimeout(s));
+        assertEquals(new Disconnected("Pong timeout"), receiveMessageWithTimeout(s));
+        assertNull(s.receive(ofMillis(max_delta_allowed_ms)), "connection still open after the pong timeout");
+    }
+
+    @Test
+    void TC12_4_timersDueWithinOneAdvanceRunInOrder() throws Exception {
+        server.advanceClock(ofMillis(ping_time_ms + pong_timeout_ms));
+        assertEquals(new Ping(), receiveMessageWithTimeout(s));
+        assertInstanceOf(PongError.class, receiveMessageWithTimeout(s));
+        assertInstanceOf(Disconnected.class, receiveMessageWithTimeout(s));
+    }
+
+    /**
+     * Waits until the server has handled everything sent before: it answers commands of one
+     * connection in order, so the reply to a LIST comes after them.
+     */
+    private void awaitProcessed(ChatConnection connection) {
+        connection.sendCommand("LIST");
+        Response<?> list = receiveMessageWithTimeout(connection);
+        assertEquals("LIST", list.to());
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+}
@@ -0,0 +1,229 @@
+package protocoltests;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.opentest4j.AssertionFailedError;
+import protocoltests.protocol.messages.CommandStats;
+import protocoltests.protocol.utils.CommandMetrics;
+import protocoltests.protocol.utils.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compares the command latencies of every test class with a baseline of earlier runs, instead of
+ * judging performance by single responses against the receive timeouts. Each class records into
+ * its own {@link CommandMetrics}; at the end of the class the latency histogram of every command
+ * is either added to the baseline file ({@code latency_gate=record}, the last
+ * latency_baseline_runs runs per class are kept) or checked against the histograms of the
+ * recorded runs merged into one ({@code latency_gate=check}).
+ * <p>
+ * A class answers a command only a few dozen times at most, so the percentile that is checked
+ * depends on the samples: p99 from {@code p99_min_samples}, p90 from {@code p90_min_samples}, the
+ * median below that, and commands with fewer than latency_min_samples timed replies are not
+ * checked at all. Most commands get fewer than 20 replies per class, so for most of the suite
+ * this is a median gate; only commands a class sends hundreds of times (e.g. the bursts of
+ * BroadcastTests) are held to their p99. A percentile more than latency_tolerance_percent (plus
+ * latency_slack_ms) above the baseline fails the class.
+ * <p>
+ * Throughput is compared as timed replies per second of busy time (see
+ * {@link CommandMetrics#busyNanos()}), not per second of class run time, which is mostly setup and
+ * the fixed waits of the tests. A class with at least {@code p99_min_samples} timed replies whose
+ * busy time per reply is more than latency_tolerance_percent above the baseline fails as well;
+ * with fewer, a single slow reply would decide.
+ * <p>
+ * Settings come from testconfig.properties, so they can be set per class; the gate is off by
+ * default. Registered for all classes through junit-platform.properties, like {@link SuiteTimer}.
+ */
+public class LatencyGate implements BeforeAllCallback, AfterAllCallback {
+
+    private final static ExtensionContext.Namespace namespace = ExtensionContext.Namespace.create(LatencyGate.class);
+    private final static ObjectMapper mapper = new ObjectMapper();
+    private final static Object baseline_lock = new Object(); // classes may finish in parallel
+    private final static int p99_min_samples = 100;
+    private final static int p90_min_samples = 20;
+
+    @Override
+    public void beforeAll(ExtensionContext context) throws IOException {
+        Settings settings = Settings.load(context.getRequiredTestClass());
+        if (settings.mode().equals("off")) {
+            return;
+        }
+        CommandMetrics metrics = new CommandMetrics(CommandMetrics.global());
+        CommandMetrics.scope(metrics);
+        context.getStore(namespace).put(Scenario.class, new Scenario(settings, metrics));
+    }
+
+    @Override
+    public void afterAll(ExtensionContext context) throws IOException {
+        Scenario scenario = context.getStore(namespace).remove(Scenario.class, Scenario.class);
+        if (scenario == null) {
+            return;
+        }
+        CommandMetrics.scope(null);
+        String name = context.getRequiredTestClass().getSimpleName();
+        ScenarioRun run = ScenarioRun.of(scenario.metrics());
+        Settings settings = scenario.settings();
+
+        synchronized (baseline_lock) {
+            Map<String, List<ScenarioRun>> baseline = load(settings.file());
+            List<ScenarioRun> runs = baseline.getOrDefault(name, List.of());
+            if (settings.mode().equals("record")) {
+                List<ScenarioRun> kept = new ArrayList<>(runs);
+                kept.add(run);
+                baseline.put(name, kept.subList(Math.max(0, kept.size() - settings.runs()), kept.size()));
+                save(settings.file(), baseline);
+                return;
+            }
+            if (runs.isEmpty()) {
+                System.err.println(name + ": no latency baseline in " + settings.file() + ", record one with -Dlatency_gate=record");
+                return;
+            }
+            List<String> regressions = regressions(runs, run, settings);
+            if (!regressions.isEmpty()) {
+                throw new AssertionFailedError(name + " is slower than its baseline: " + String.join("; ", regressions));
+            }
+        }
+    }
+
+    /**
+     * Describes every command whose latency got worse than the merged baseline runs allow, and
+     * the throughput of the class if that did. Empty when the run is within the tolerance.
+     */
+    static List<String> regressions(List<ScenarioRun> baseline, ScenarioRun run, Settings settings) {
+        double factor = settings.tolerancePercent() / 100.0;
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, CommandLatency> entry : new TreeMap<>(run.commands()).entrySet()) {
+            LatencyHistogram current = entry.getValue().histogram();
+            LatencyHistogram recorded = new LatencyHistogram();
+            for (ScenarioRun previous : baseline) {
+                CommandLatency latency = previous.commands().get(entry.getKey());
+                if (latency != null) {
+                    recorded.add(latency.histogram());
+                }
+            }
+            long samples = Math.min(current.count(), recorded.count());
+            if (samples < settings.minSamples()) {
+                continue;
+            }
+            int percentile = percentileFor(samples);
+            double expected = recorded.percentile(percentile) / 1e3;
+            double actual = current.percentile(percentile) / 1e3;
+            double limit = expected * (1 + factor) + settings.slackMs() * 1e3;
+            if (actual > limit) {
+                regressions.add(String.format(Locale.ROOT, "%s p%d %.1f us, baseline %.1f us (limit %.1f us, %d samples)",
+                        entry.getKey(), percentile, actual, expected, limit, current.count()));
+            }
+        }
+
+        long recordedReplies = 0;
+        long recordedBusyNanos = 0;
+        for (ScenarioRun previous : baseline) {
+            if (previous.busyNanos() > 0) {
+                recordedReplies += previous.replies();
+                recordedBusyNanos += previous.busyNanos();
+            }
+        }
+        // Busy time is a sum, so in a class with few replies a single slow one would decide
+        if (Math.min(run.replies(), recordedReplies) >= p99_min_samples && run.busyNanos() > 0 && recordedBusyNanos > 0) {
+            double expected = recordedReplies / (recordedBusyNanos / 1e9);
+            double actual = run.replies() / (run.busyNanos() / 1e9);
+            double limit = expected / (1 + factor);
+            if (actual < limit) {
+                regressions.add(String.format(Locale.ROOT, "throughput %.0f replies/s busy, baseline %.0f (limit %.0f, %d replies)",
+                        actual, expected, limit, run.replies()));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * The highest percentile the given number of samples says something about.
+     */
+    static int percentileFor(long samples) {
+        if (samples >= p99_min_samples) {
+            return 99;
+        }
+        return samples >= p90_min_samples ? 90 : 50;
+    }
+
+    static Map<String, List<ScenarioRun>> load(File file) throws IOException {
+        if (!file.exists()) {
+            return new TreeMap<>();
+        }
+        return mapper.readValue(file, new TypeReference<TreeMap<String, List<ScenarioRun>>>() {
+        });
+    }
+
+    static void save(File file, Map<String, List<ScenarioRun>> baseline) throws IOException {
+        mapper.writerWithDefaultPrettyPrinter().writeValue(file, baseline);
+    }
+
+    /**
+     * The latency histogram of one command in one run: its non-empty buckets and the largest
+     * value, in nanoseconds (see {@link LatencyHistogram#buckets()}).
+     */
+    record CommandLatency(Map<Integer, Long> buckets, long maxNanos) {
+
+        static CommandLatency of(LatencyHistogram histogram) {
+            return new CommandLatency(histogram.buckets(), histogram.max());
+        }
+
+        LatencyHistogram histogram() {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.addBuckets(buckets, maxNanos);
+            return histogram;
+        }
+    }
+
+    /**
+     * One run of a test class: the latency of every command with timed replies, and the time
+     * spent waiting for them (see {@link CommandMetrics#busyNanos()}).
+     */
+    record ScenarioRun(Map<String, CommandLatency> commands, long busyNanos) {
+
+        static ScenarioRun of(CommandMetrics metrics) {
+            Map<String, CommandLatency> commands = new TreeMap<>();
+            for (CommandStats stats : metrics.snapshot()) {
+                LatencyHistogram latency = metrics.latency(stats.command());
+                if (latency.count() > 0) {
+                    commands.put(stats.command(), CommandLatency.of(latency));
+                }
+            }
+            return new ScenarioRun(commands, metrics.busyNanos());
+        }
+
+        /**
+         * Number of timed replies, over all commands.
+         */
+        long replies() {
+            long replies = 0;
+            for (CommandLatency latency : commands.values()) {
+                for (long count : latency.buckets().values()) {
+                    replies += count;
+                }
+            }
+            return replies;
+        }
+    }
+
+    record Settings(String mode, File file, double tolerancePercent, double slackMs, int minSamples, int runs) {
+
+        static Settings load(Class<?> testClass) throws IOException {
+            Properties props = TestConfig.load(testClass);
+            return new Settings(props.getProperty("latency_gate", "off"),
+                    new File(props.getProperty("latency_baseline", "latency-baseline.json")),
+                    Double.parseDouble(props.getProperty("latency_tolerance_percent", "50")),
+                    Double.parseDouble(props.getProperty("latency_slack_ms", "1")),
+                    Integer.parseInt(props.getProperty("latency_min_samples", "5")),
+                    Integer.parseInt(props.getProperty("latency_baseline_runs", "5")));
+        }
+    }
+
+    private record Scenario(Settings settings, CommandMetrics metrics) {
+    }
+}
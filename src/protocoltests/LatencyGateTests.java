@@ -0,0 +1,96 @@
+package protocoltests;
+
+import org.junit.jupiter.api.Test;
+import protocoltests.LatencyGate.CommandLatency;
+import protocoltests.LatencyGate.ScenarioRun;
+import protocoltests.LatencyGate.Settings;
+import protocoltests.protocol.utils.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyGateTests {
+
+    private final static Settings settings = new Settings("check", new File("unused"), 50, 1, 5, 5);
+    private final static long slow_reply_ns = 20_000_000;
+
+    @Test
+    void LG_1_oneSlowReplyInAFewDoesNotFailTheClass() {
+        List<ScenarioRun> baseline = List.of(run(10, 400, 0), run(10, 500, 0), run(10, 450, 0));
+        assertEquals(List.of(), LatencyGate.regressions(baseline, run(8, 450, 1), settings));
+    }
+
+    @Test
+    void LG_2_slowerMedianIsReported() {
+        List<ScenarioRun> baseline = List.of(run(10, 400, 0), run(10, 500, 0));
+        List<String> regressions = LatencyGate.regressions(baseline, run(10, 3_000, 0), settings);
+        assertEquals(1, regressions.size());
+        assertTrue(regressions.get(0).startsWith("LOGIN p50 3"), regressions.get(0));
+    }
+
+    @Test
+    void LG_3_percentileDependsOnSamplesAndFewSamplesAreNotChecked() {
+        assertEquals(50, LatencyGate.percentileFor(19));
+        assertEquals(90, LatencyGate.percentileFor(20));
+        assertEquals(99, LatencyGate.percentileFor(100));
+
+        List<ScenarioRun> baseline = List.of(run(200, 500, 0));
+        List<String> regressions = LatencyGate.regressions(baseline, run(98, 500, 2), settings);
+        assertTrue(regressions.get(0).startsWith("LOGIN p99 "), regressions.get(0));
+        assertEquals(List.of(), LatencyGate.regressions(baseline, run(4, 50_000, 0), settings));
+    }
+
+    @Test
+    void LG_4_baselineSurvivesARoundTripThroughItsFile() throws IOException {
+        File file = Files.createTempFile("latency-baseline", ".json").toFile();
+        file.deleteOnExit();
+        Map<String, List<ScenarioRun>> baseline = Map.of("LoginTests", List.of(run(50, 400, 0), run(62, 450, 0)));
+        LatencyGate.save(file, baseline);
+        Map<String, List<ScenarioRun>> loaded = LatencyGate.load(file);
+        assertEquals(baseline, loaded);
+        LatencyHistogram histogram = loaded.get("LoginTests").get(1).commands().get("LOGIN").histogram();
+        assertEquals(62, histogram.count());
+        assertEquals(450_000, histogram.percentile(50), 450_000 * 0.02);
+    }
+
+    @Test
+    void LG_5_lowerThroughputIsReportedWhenLatencyStaysTheSame() {
+        // The baseline answered four commands at a time, this run one after another
+        List<ScenarioRun> baseline = List.of(run(100, 400, 0, 4), run(100, 400, 0, 4));
+        List<String> regressions = LatencyGate.regressions(baseline, run(100, 400, 0, 1), settings);
+        assertEquals(1, regressions.size());
+        assertTrue(regressions.get(0).startsWith("throughput 2500 replies/s busy, baseline 10000"), regressions.get(0));
+        assertEquals(List.of(), LatencyGate.regressions(baseline, run(100, 400, 0, 3), settings));
+
+        // With few replies or a baseline recorded without busy time only the latency is checked
+        List<ScenarioRun> few = List.of(run(50, 400, 0, 4));
+        assertEquals(List.of(), LatencyGate.regressions(few, run(50, 400, 0, 1), settings));
+        List<ScenarioRun> noBusyTime = List.of(new ScenarioRun(run(100, 400, 0).commands(), 0));
+        assertEquals(List.of(), LatencyGate.regressions(noBusyTime, run(100, 400, 0, 1), settings));
+    }
+
+    private static ScenarioRun run(int samples, double loginUs, int slowReplies) {
+        return run(samples, loginUs, slowReplies, 1);
+    }
+
+    /**
+     * A run with the given number of LOGIN replies around the given latency, plus slow replies of
+     * 20 ms, answered the given number at a time.
+     */
+    private static ScenarioRun run(int samples, double loginUs, int slowReplies, int concurrent) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < samples; i++) {
+            histogram.record((long) (loginUs * 1e3) + i);
+        }
+        for (int i = 0; i < slowReplies; i++) {
+            histogram.record(slow_reply_ns);
+        }
+        long busyNanos = ((long) (samples * loginUs * 1e3) + slowReplies * slow_reply_ns) / concurrent;
+        return new ScenarioRun(Map.of("LOGIN", CommandLatency.of(histogram)), busyNanos);
+    }
+}
@@ -2,11 +2,14 @@ package protocoltests;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.client.Pipeline;
 import protocoltests.protocol.messages.*;
 import protocoltests.protocol.utils.Utils;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
 
 import java.io.*;
-import java.net.Socket;
 import java.util.Properties;
 
 import static java.time.Duration.ofMillis;
@@ -14,24 +17,22 @@ import static org.junit.jupiter.api.Assertions.*;
 
 public class LineEndings {
 
-    private static Properties props = new Properties();
-    private Socket s;
-    private BufferedReader in;
-    private PrintWriter out;
+    private static Properties props;
+    private static ReferenceServer server;
+    private ChatConnection s;
+    private final String name = Usernames.unique("myname");
     private final static int max_delta_allowed_ms = 200;
 
     @BeforeAll
     static void setupAll() throws IOException {
-        InputStream in = LineEndings.class.getResourceAsStream("testconfig.properties");
-        props.load(in);
-        in.close();
+        props = TestConfig.load(LineEndings.class);
+        props.setProperty("framing", "text"); // sends raw lines, so always tests the line protocol
+        server = ReferenceServer.startIfConfigured(props);
     }
 
     @BeforeEach
     void setup() throws IOException {
-        s = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-        out = new PrintWriter(s.getOutputStream(), true);
+        s = ChatConnection.fromConfig(props);
     }
 
     @AfterEach
@@ -39,25 +40,29 @@ public class LineEndings {
         s.close();
     }
 
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
     @Test
     void TC2_1_loginFollowedByBROADCASTWithWindowsLineEndingsReturnsOk() throws JsonProcessingException {
-        receiveLineWithTimeout(in); //welcome message
+        receiveMessageWithTimeout(s); //welcome message
         String message =
-                Utils.objectToMessage(new Login("myname")) +
+                Utils.objectToMessage(new Login(name)) +
                         "\r\n" +
                         Utils.objectToMessage(new Broadcast("", "a")) +
                         "\r\n";
-        out.print(message);
-        out.flush();
+        s.sendRaw(message);
 
-        String serverResponse = receiveLineWithTimeout(in);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+        Response<String> loginResp = receiveMessageWithTimeout(s);
         assertEquals(800, loginResp.status());
         assertEquals("OK", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
 
-        serverResponse = receiveLineWithTimeout(in);
-        Response<String> broadcastResp = Utils.messageToObject(serverResponse);
+        Response<String> broadcastResp = receiveMessageWithTimeout(s);
         assertEquals(800, broadcastResp.status());
         assertEquals("OK", broadcastResp.content());
         assertEquals("BROADCAST", broadcastResp.to());
@@ -65,33 +70,72 @@ public class LineEndings {
 
     @Test
     void TC2_2_loginFollowedByBROADCASTWithLinuxLineEndingsReturnsOk() throws JsonProcessingException {
-        receiveLineWithTimeout(in); //welcome message
-        String message = Utils.objectToMessage(new Login("myname")) +
+        receiveMessageWithTimeout(s); //welcome message
+        String message = Utils.objectToMessage(new Login(name)) +
                 "\n" +
                 Utils.objectToMessage(new Broadcast("", "a")) + "\n";
 
         System.out.println(message);
 
-        out.print(message);
-        out.flush();
+        s.sendRaw(message);
 
-        String loginResponse = receiveLineWithTimeout(in);
-        System.out.println("Login Response: " + loginResponse);
-        Response<String> loginResp = Utils.messageToObject(loginResponse);
+        Response<String> loginResp = receiveMessageWithTimeout(s);
+        System.out.println("Login Response: " + loginResp);
         assertEquals(800, loginResp.status());
         assertEquals("OK", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
 
-        String broadcastResponse = receiveLineWithTimeout(in);
-        System.out.println("Broadcast Response: " + broadcastResponse);
-        Response<String> broadcastResp = Utils.messageToObject(broadcastResponse);
+        Response<String> broadcastResp = receiveMessageWithTimeout(s);
+        System.out.println("Broadcast Response: " + broadcastResp);
         assertEquals(800, broadcastResp.status());
         assertEquals("OK", broadcastResp.content());
         assertEquals("BROADCAST", broadcastResp.to());
     }
 
-    private String receiveLineWithTimeout(BufferedReader reader) {
-        return assertTimeoutPreemptively(ofMillis(max_delta_allowed_ms), reader::readLine);
+    @Test
+    void TC2_3_pipelinedCommandsInOneWriteAreAnsweredInOrder() throws JsonProcessingException {
+        receiveMessageWithTimeout(s); //welcome message
+        Pipeline pipeline = new Pipeline(s)
+                .add(new Login(name))
+                .add(new Broadcast("", "a"))
+                .add(new Broadcast("", "b"))
+                .add(new Private(name, "c"));
+
+        Pipeline.Result result = pipeline.flush(ofMillis(max_delta_allowed_ms));
+        assertTrue(result.complete());
+        assertEquals("LOGIN", result.responses().get(0).to());
+        assertEquals(800, result.responses().get(0).status());
+        assertEquals("BROADCAST", result.responses().get(1).to());
+        assertEquals(800, result.responses().get(1).status());
+        assertEquals("BROADCAST", result.responses().get(2).to());
+        assertEquals(800, result.responses().get(2).status());
+        assertEquals("PRIVATE", result.responses().get(3).to());
+        assertEquals(822, result.responses().get(3).status());
+    }
+
+    @Test
+    void TC2_4_commandRefusedBeforeLoginIsMatchedInOrderDespiteItsTo() throws JsonProcessingException {
+        receiveMessageWithTimeout(s); //welcome message
+        Pipeline pipeline = new Pipeline(s)
+                .add(new Broadcast("", "too early"))
+                .add(new Pong())
+                .add(new Login(name));
+
+        Pipeline.Result result = pipeline.flush(ofMillis(max_delta_allowed_ms));
+        assertTrue(result.complete());
+        assertEquals("LOGIN", result.responses().get(0).to()); // refused BROADCAST
+        assertEquals(710, result.responses().get(0).status());
+        assertEquals("PONG", result.responses().get(1).to()); // PONG without PING
+        assertEquals("LOGIN", result.responses().get(2).to());
+        assertEquals(800, result.responses().get(2).status());
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
     }
 
 }
\ No newline at end of file
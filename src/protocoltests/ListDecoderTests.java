@@ -0,0 +1,57 @@
+package protocoltests;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.utils.ListDecoder;
+import protocoltests.protocol.utils.UsernameSet;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListDecoderTests {
+
+    @Test
+    void LD_1_decodedUsersMatchGenericDecoding() throws IOException {
+        String message = "RESPONSE {\"content\":[\"user2\",\"user3\"],\"status\":800,\"to\":\"LIST\"}";
+        Response<List<String>> generic = Utils.messageToObject(message);
+        ListDecoder.UserList typed = ListDecoder.decode(message);
+        assertEquals(generic.status(), typed.status());
+        assertEquals(generic.to(), typed.to());
+        assertEquals(new HashSet<>(generic.content()), new HashSet<>(typed.users().toList()));
+    }
+
+    @Test
+    void LD_2_fieldOrderDoesNotMatterAndEmptyListIsEmpty() throws IOException {
+        ListDecoder.UserList list = ListDecoder.decode("RESPONSE {\"to\":\"LIST\",\"status\":800,\"content\":[]}");
+        assertEquals("LIST", list.to());
+        assertEquals(800, list.status());
+        assertTrue(list.users().isEmpty());
+    }
+
+    @Test
+    void LD_3_nonStringUsernameIsRejected() {
+        assertThrows(JsonParseException.class,
+                () -> ListDecoder.decode("RESPONSE {\"content\":[\"user2\",3],\"status\":800,\"to\":\"LIST\"}"));
+    }
+
+    @Test
+    void LD_4_largeRosterIsDecodedCompletely() throws IOException {
+        StringBuilder message = new StringBuilder("RESPONSE {\"content\":[");
+        for (int i = 0; i < 100_000; i++) {
+            message.append(i == 0 ? "\"" : ",\"").append(Usernames.generate("user", i)).append('"');
+        }
+        message.append("],\"status\":800,\"to\":\"LIST\"}");
+
+        UsernameSet users = ListDecoder.decode(message.toString()).users();
+        assertEquals(100_000, users.size());
+        assertTrue(users.contains(Usernames.generate("user", 0)));
+        assertTrue(users.contains(Usernames.generate("user", 99_999)));
+        assertFalse(users.contains(Usernames.generate("user", 100_000)));
+    }
+}
@@ -1,12 +1,12 @@
 package protocoltests;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
 import protocoltests.protocol.messages.Response;
-import protocoltests.protocol.utils.Utils;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
 
 import java.io.*;
-import java.net.Socket;
 import java.util.Properties;
 
 import static java.time.Duration.ofMillis;
@@ -14,26 +14,24 @@ import static org.junit.jupiter.api.Assertions.*;
 
 class PacketBreakup {
 
-    private static Properties props = new Properties();
+    private static Properties props;
+    private static ReferenceServer server;
 
-    private Socket s;
-    private BufferedReader in;
-    private PrintWriter out;
+    private ChatConnection s;
+    private final String name = Usernames.unique("myname");
 
     private final static int max_delta_allowed_ms = 100;
 
     @BeforeAll
     static void setupAll() throws IOException {
-        InputStream in = PacketBreakup.class.getResourceAsStream("testconfig.properties");
-        props.load(in);
-        in.close();
+        props = TestConfig.load(PacketBreakup.class);
+        props.setProperty("framing", "text"); // sends raw lines, so always tests the line protocol
+        server = ReferenceServer.startIfConfigured(props);
     }
 
     @BeforeEach
     void setup() throws IOException {
-        s = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-        out = new PrintWriter(s.getOutputStream(), true);
+        s = ChatConnection.fromConfig(props);
     }
 
     @AfterEach
@@ -41,25 +39,31 @@ class PacketBreakup {
         s.close();
     }
 
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
     @Test
-    void TC4_1_identFollowedByBroadcastWithMultipleFlushReturnsOk() throws JsonProcessingException {
-        receiveLineWithTimeout(in); //welcome message
-        out.print("LOGIN {\"username\":\"m");
-        out.flush();
-        out.print("yname\"}\r\nBROAD");
-        out.flush();
-        out.print("CAST {\"message\":\"a\"}\r\n");
-        out.flush();
-        String serverResponse = receiveLineWithTimeout(in);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+    void TC4_1_identFollowedByBroadcastWithMultipleFlushReturnsOk() {
+        receiveMessageWithTimeout(s); //welcome message
+        s.sendRaw("LOGIN {\"username\":\"" + name.substring(0, 1));
+        s.sendRaw(name.substring(1) + "\"}\r\nBROAD");
+        s.sendRaw("CAST {\"message\":\"a\"}\r\n");
+        Response<String> loginResp = receiveMessageWithTimeout(s);
         assertEquals(800, loginResp.status());
-        serverResponse = receiveLineWithTimeout(in);
-        Response<String> broadcastResp = Utils.messageToObject(serverResponse);
+        Response<String> broadcastResp = receiveMessageWithTimeout(s);
         assertEquals(800, broadcastResp.status());
     }
 
-    private String receiveLineWithTimeout(BufferedReader reader) {
-        return assertTimeoutPreemptively(ofMillis(max_delta_allowed_ms), reader::readLine);
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
     }
 
 }
\ No newline at end of file
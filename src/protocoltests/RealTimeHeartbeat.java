@@ -0,0 +1,116 @@
+package protocoltests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
+
+import java.io.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The PING interval measured against the wall clock, which takes ping_time_ms (10 s by default)
+ * per run. Skipped unless {@code real_time_tests=true}; {@link Heartbeat} covers the same
+ * behaviour of the reference server on a virtual clock.
+ */
+class RealTimeHeartbeat {
+
+    private static Properties props;
+    private static ReferenceServer server;
+    private static int ping_time_ms;
+    private static int ping_time_ms_delta_allowed;
+    private final static int max_delta_allowed_ms = 300;
+
+    private ChatConnection s;
+    private final String name = Usernames.unique("myname");
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(RealTimeHeartbeat.class);
+        assumeTrue(Boolean.parseBoolean(props.getProperty("real_time_tests", "false")), "real_time_tests is off");
+        props.setProperty("framing", "text");
+
+        ping_time_ms = Integer.parseInt(props.getProperty("ping_time_ms", "10000"));
+        ping_time_ms_delta_allowed = Integer.parseInt(props.getProperty("ping_time_ms_delta_allowed", "100"));
+        server = ReferenceServer.startIfConfigured(props);
+    }
+
+    @BeforeEach
+    void setup() throws IOException {
+        s = ChatConnection.fromConfig(props);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        s.close();
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void AsteriskTC5_5_pingIsReceivedAtExpectedTime(TestReporter testReporter) throws JsonProcessingException {
+        // this test is a bit weird, when ran isolated it passes
+        // otherwise it's all the LEFT messages that the client receives
+        // for some reason, when being SUPPOSEDLY the only one running
+        // during the testcase. As a solution I tried emptying the buffer
+        // before the expected 10 seconds pass,so that when the PING is
+        // received it will be the last line in the reader. I don't know
+        // why test client of this test receives the LEFT messages of
+        // all others. This might just be the servers state that needs
+        // resetting after each testcase.
+        receiveMessageWithTimeout(s); //welcome message
+        s.send(new Login(name));
+
+        System.err.println(ping_time_ms);
+        System.err.println(ping_time_ms_delta_allowed);
+
+        receiveMessageWithTimeout(s); //server response
+
+        //Make sure the test does not hang when no response is received by waiting against a deadline
+        Instant start = Instant.now();
+        Instant deadline = start.plus(ofMillis(ping_time_ms + ping_time_ms_delta_allowed));
+        // This is a rather messy solution, but so the test can
+        // be run together with all the others, I think its fine
+        //
+        // On the other hand, this might even be better, because
+        // now if the server was to do some additional sending
+        // in the meantime that WAS intended, what would also
+        // be ignored until ping is received. Like a blocking call
+        Object message;
+        do {
+            Duration remaining = Duration.between(Instant.now(), deadline);
+            message = remaining.isNegative() ? null : s.receive(remaining);
+        } while (message != null && !(message instanceof Ping));
+        Instant finish = Instant.now();
+
+        // Make sure the correct response is received
+        System.out.println(message);
+        assertNotNull(message, "No PING received within " + (ping_time_ms + ping_time_ms_delta_allowed) + " ms");
+
+        // Also make sure the response is not received too early
+        long timeElapsed = Duration.between(start, finish).toMillis();
+        testReporter.publishEntry("timeElapsed", String.valueOf(timeElapsed));
+        assertTrue(timeElapsed > ping_time_ms - ping_time_ms_delta_allowed);
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+}
@@ -0,0 +1,63 @@
+package protocoltests;
+
+import org.junit.jupiter.api.Test;
+import protocoltests.protocol.messages.NotFound;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.messages.RosterDelta;
+import protocoltests.protocol.messages.Score;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseContentTests {
+
+    @Test
+    void RC_1_notFoundIsDecodedAsARecordInOnePass() throws IOException {
+        Response<NotFound> res = Utils.messageToObject("RESPONSE {\"content\":{\"resource\":\"receiver\",\"content\":\"peter\"},\"status\":711,\"to\":\"PRIVATE\"}");
+        assertEquals(new Response<>(new NotFound("receiver", "peter"), 711, "PRIVATE"), res);
+
+        // The same with status and to before the content, and from a frame in bytes
+        Response<NotFound> reordered = Utils.messageToObject("RESPONSE {\"status\":711,\"to\":\"PRIVATE\",\"content\":{\"resource\":\"receiver\",\"content\":\"peter\"}}");
+        assertEquals(res, reordered);
+        byte[] frame = Utils.objectToFrame(res);
+        assertEquals(res, Utils.frameToObject(frame, 0, frame.length - 1));
+    }
+
+    @Test
+    void RC_2_notFoundAsJsonStringFromOlderServersIsStillTyped() throws IOException {
+        Response<NotFound> res = Utils.messageToObject("RESPONSE {\"content\":\"{\\\"resource\\\":\\\"receiver\\\",\\\"content\\\":\\\"peter\\\"}\",\"status\":711,\"to\":\"PRIVATE\"}");
+        assertEquals(new NotFound("receiver", "peter"), res.content());
+    }
+
+    @Test
+    void RC_3_listContentIsTypedByItsShape() throws IOException {
+        Response<List<String>> full = Utils.messageToObject("RESPONSE {\"content\":[\"user2\",\"user3\"],\"status\":800,\"to\":\"LIST\"}");
+        assertEquals(List.of("user2", "user3"), full.content());
+
+        Response<RosterDelta> delta = Utils.messageToObject("RESPONSE {\"content\":{\"version\":7,\"full\":false,\"joined\":[\"user4\"],\"left\":[]},\"status\":800,\"to\":\"LIST\"}");
+        assertEquals(new RosterDelta(7, false, List.of("user4"), List.of()), delta.content());
+    }
+
+    @Test
+    void RC_4_unregisteredContentIsDecodedGenerically() throws IOException {
+        Response<String> ok = Utils.messageToObject("RESPONSE {\"content\":\"OK\",\"status\":800,\"to\":\"LOGIN\"}");
+        assertEquals(new Response<>("OK", 800, "LOGIN"), ok);
+        Response<?> error = Utils.messageToObject("RESPONSE {\"status\":822,\"to\":\"PRIVATE\"}");
+        assertNull(error.content());
+        Response<?> other = Utils.messageToObject("RESPONSE {\"content\":{\"lobby\":\"a\",\"points\":1},\"status\":801,\"to\":\"SCORE\"}");
+        assertEquals(Map.of("lobby", "a", "points", 1), other.content());
+    }
+
+    @Test
+    void RC_5_registeredContentTypeIsUsedForItsCommandOnly() throws IOException {
+        Utils.registerResponseContent("SCORE", 802, Score.class);
+        Response<Score> score = Utils.messageToObject("RESPONSE {\"content\":{\"lobby\":\"a\",\"points\":1},\"status\":802,\"to\":\"SCORE\"}");
+        assertEquals(new Score("a", 1), score.content());
+        Response<?> other = Utils.messageToObject("RESPONSE {\"content\":{\"lobby\":\"a\",\"points\":1},\"status\":802,\"to\":\"LEADERBOARD\"}");
+        assertInstanceOf(Map.class, other.content());
+    }
+}
@@ -0,0 +1,97 @@
+package protocoltests;
+
+import org.junit.jupiter.api.Test;
+import protocoltests.protocol.messages.Leaderboard;
+import protocoltests.protocol.messages.LeaderboardUpdate;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ScoreBoard;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoreBoardTests {
+
+    private final static String lobby = "lobby";
+
+    @Test
+    void SB_1_leaderboardIsRankedByScoreThenUsername() {
+        ScoreBoard board = new ScoreBoard(3);
+        board.add("carol", 5);
+        board.add("alice", 7);
+        board.add("bob", 5);
+        board.add("dave", 1);
+
+        Leaderboard leaderboard = board.leaderboard(lobby);
+        assertArrayEquals(new String[]{"alice", "bob", "carol"}, leaderboard.usernames());
+        assertArrayEquals(new int[]{7, 5, 5}, leaderboard.scores());
+        assertEquals(4, board.count());
+    }
+
+    @Test
+    void SB_2_updatesDescribeEveryChangeToTheLeaderboard() {
+        ScoreBoard board = new ScoreBoard(2);
+        board.add("alice", 10);
+        board.add("bob", 5);
+        LeaderboardUpdate first = board.drainUpdate(lobby);
+        assertArrayEquals(new String[]{"alice", "bob"}, first.usernames());
+        assertNull(board.drainUpdate(lobby));
+
+        board.add("carol", 8); // pushes bob out
+        LeaderboardUpdate second = board.drainUpdate(lobby);
+        assertArrayEquals(new String[]{"carol"}, second.usernames());
+        assertArrayEquals(new int[]{8}, second.scores());
+        assertArrayEquals(new String[]{"bob"}, second.removed());
+
+        board.add("dave", 1); // not in the leaderboard, nothing to push
+        assertNull(board.drainUpdate(lobby));
+    }
+
+    @Test
+    void SB_3_appliedUpdatesMatchASortOfAllScores() {
+        int size = 10;
+        ScoreBoard board = new ScoreBoard(size);
+        Map<String, Integer> all = new HashMap<>();
+        Map<String, Integer> applied = new HashMap<>();
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 50; i++) {
+                String username = Usernames.generate("user", random.nextInt(300));
+                int points = random.nextInt(100) - 30;
+                all.merge(username, points, Integer::sum);
+                assertEquals(all.get(username), board.add(username, points));
+            }
+            LeaderboardUpdate update = board.drainUpdate(lobby);
+            if (update != null) {
+                for (String username : update.removed()) {
+                    applied.remove(username);
+                }
+                for (int i = 0; i < update.usernames().length; i++) {
+                    applied.put(update.usernames()[i], update.scores()[i]);
+                }
+            }
+            List<Map.Entry<String, Integer>> expected = ranked(all).subList(0, Math.min(size, all.size()));
+            assertEquals(expected, ranked(applied));
+            Leaderboard leaderboard = board.leaderboard(lobby);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getKey(), leaderboard.usernames()[i]);
+                assertEquals(expected.get(i).getValue(), leaderboard.scores()[i]);
+            }
+        }
+    }
+
+    @Test
+    void SB_4_scoresSaturateInsteadOfOverflowing() {
+        ScoreBoard board = new ScoreBoard(1);
+        board.add("alice", Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, board.add("alice", 1));
+        assertEquals(-1, board.add("bob", -1));
+        assertEquals(Integer.MIN_VALUE, board.add("bob", Integer.MIN_VALUE));
+    }
+
+    private static List<Map.Entry<String, Integer>> ranked(Map<String, Integer> scores) {
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return ranked;
+    }
+}
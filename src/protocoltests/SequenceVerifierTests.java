@@ -0,0 +1,133 @@
+package protocoltests;
+
+import org.junit.jupiter.api.Test;
+import protocoltests.protocol.messages.Broadcast;
+import protocoltests.protocol.messages.Private;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.utils.SequenceVerifier;
+import protocoltests.protocol.utils.Usernames;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SequenceVerifierTests {
+
+    private final SequenceVerifier verifier = new SequenceVerifier(List.of("alice", "bob", "carol"));
+
+    @Test
+    void SV_1_messagesInOrderGiveACleanReport() {
+        for (int i = 0; i < 100; i++) {
+            Broadcast broadcast = broadcast("alice");
+            assertTrue(verifier.received("bob", broadcast));
+            assertTrue(verifier.received("carol", broadcast));
+            assertTrue(verifier.received("carol", privateMessage("bob", "carol")));
+        }
+
+        SequenceVerifier.Report report = verifier.report();
+        assertTrue(report.clean(), report.summary());
+        assertEquals(300, report.delivered());
+    }
+
+    @Test
+    void SV_2_gapsAreLostForTheReceiverThatMissedThem() {
+        for (int i = 0; i < 100; i++) {
+            Broadcast broadcast = broadcast("alice");
+            verifier.received("bob", broadcast);
+            if (i != 10 && i != 50) {
+                verifier.received("carol", broadcast);
+            }
+        }
+
+        SequenceVerifier.Report report = verifier.report();
+        assertEquals(2, report.lost());
+        assertEquals(List.of("carol 2"), report.worstReceivers());
+    }
+
+    @Test
+    void SV_3_duplicatesAndReorderingsAreCounted() {
+        Broadcast first = broadcast("alice");
+        Broadcast second = broadcast("alice");
+        Broadcast third = broadcast("alice");
+        verifier.received("bob", first);
+        verifier.received("bob", third);
+        verifier.received("bob", second);
+        verifier.received("bob", third);
+
+        SequenceVerifier.Report report = verifier.report();
+        assertEquals(1, report.reordered());
+        assertEquals(1, report.duplicates());
+        assertEquals(List.of("carol 3"), report.worstReceivers()); // bob got everything
+    }
+
+    @Test
+    void SV_4_messagesFarBehindCountAsLateNotLost() {
+        Broadcast delayed = broadcast("alice");
+        for (int i = 0; i < 100; i++) {
+            verifier.received("bob", broadcast("alice"));
+        }
+        verifier.received("bob", delayed);
+
+        SequenceVerifier.Report report = verifier.report();
+        assertEquals(1, report.late());
+        assertEquals(101, report.delivered());
+        assertTrue(report.worstReceivers().stream().noneMatch(worst -> worst.startsWith("bob")), report.summary());
+    }
+
+    @Test
+    void SV_5_messagesNotYetReceivedAtTheEndAreLost() {
+        verifier.received("bob", broadcast("alice"));
+        broadcast("alice");
+        verifier.received("bob", privateMessage("carol", "bob"));
+        privateMessage("carol", "bob");
+        privateMessage("carol", "alice");
+
+        SequenceVerifier.Report report = verifier.report();
+        assertEquals(2 + 2 + 1, report.lost(), report.summary()); // carol got no broadcast at all
+    }
+
+    @Test
+    void SV_6_privateMessagesCountPerReceiver() {
+        for (int i = 0; i < 10; i++) {
+            verifier.received("bob", privateMessage("alice", "bob"));
+            verifier.received("carol", privateMessage("alice", "carol"));
+        }
+        assertTrue(verifier.report().clean(), verifier.report().summary());
+    }
+
+    @Test
+    void SV_7_unstampedMessagesAreIgnored() {
+        assertFalse(verifier.received("bob", new Broadcast("alice", "hello")));
+        assertFalse(verifier.received("bob", new Broadcast("alice", "#not a stamp")));
+        assertFalse(verifier.received("bob", new Response<>("OK", 800, "BROADCAST")));
+        assertEquals(0, verifier.report().delivered());
+    }
+
+    @Test
+    void SV_8_tenThousandUsersOnlyCostThePairsThatTalk() {
+        List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            usernames.add(Usernames.generate("sv", i));
+        }
+        SequenceVerifier large = new SequenceVerifier(usernames);
+        for (int i = 0; i < usernames.size(); i++) {
+            String sender = usernames.get(i), receiver = usernames.get((i + 1) % usernames.size());
+            large.received(receiver, new Private(sender, large.stampPrivate(sender, receiver, "text")));
+        }
+        large.stampPrivate(usernames.get(0), usernames.get(2), "never delivered");
+
+        SequenceVerifier.Report report = large.report();
+        assertEquals(10_000, report.delivered());
+        assertEquals(1, report.lost());
+        assertEquals(List.of(usernames.get(2) + " 1"), report.worstReceivers());
+    }
+
+    private Broadcast broadcast(String sender) {
+        return new Broadcast(sender, verifier.stampBroadcast(sender, "text"));
+    }
+
+    private Private privateMessage(String sender, String receiver) {
+        return new Private(sender, verifier.stampPrivate(sender, receiver, "text"));
+    }
+}
@@ -0,0 +1,253 @@
+package protocoltests;
+
+import org.junit.jupiter.api.*;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.client.Pipeline;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.protocol.utils.Utils;
+import protocoltests.server.ReferenceServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+/**
+ * A logged in client that stops reading while others broadcast heavily. TC9_1 runs against the
+ * configured server; the other cases start reference servers with a small outbound queue limit
+ * and check each slow_consumer_policy.
+ */
+class SlowConsumer {
+
+    private static Properties props;
+    private static ReferenceServer server;
+
+    private final static int max_delta_allowed_ms = 1000;
+    private final static int max_latency_ms = 500;
+    private final static int message_size = 4 * 1024;
+    private final static int queue_limit = 64 * 1024;
+    private final static int read_slack = 128 * 1024; // commands from one server read of the sender
+    private final static int block_deadline_ms = 30_000; // generous, as classes may run concurrently
+    private final static String padding = "x".repeat(message_size);
+
+    private ChatConnection sender, fast;
+    private Socket stalled;
+    private BufferedReader stalledReader;
+    private final String senderName = Usernames.unique("snd"), fastName = Usernames.unique("fst"),
+            stalledName = Usernames.unique("stl");
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(SlowConsumer.class);
+        server = ReferenceServer.startIfConfigured(props);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        if (sender != null) {
+            sender.close();
+            fast.close();
+            stalled.close();
+        }
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void TC9_1_fastConsumerKeepsItsLatencyWhileAnotherClientStopsReading(TestReporter testReporter) throws Exception {
+        assumeFalse("block".equals(props.getProperty("slow_consumer_policy")), "the block policy slows down the sender by design");
+        connect(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
+
+        // 2000 messages of 4 KB within about a second: more than the socket buffers of the stalled client hold
+        int count = 2_000;
+        Thread sending = startSending(count, 10, 5);
+        List<Long> latencies = new ArrayList<>(count);
+        receiveInOrder(fast, count, latencies);
+        sending.join();
+
+        Collections.sort(latencies);
+        long p99 = latencies.get(latencies.size() * 99 / 100) / 1_000_000;
+        long max = latencies.get(latencies.size() - 1) / 1_000_000;
+        testReporter.publishEntry("p99LatencyMs", String.valueOf(p99));
+        testReporter.publishEntry("maxLatencyMs", String.valueOf(max));
+        assertTrue(max < max_latency_ms, "max latency " + max + " ms");
+    }
+
+    @Test
+    void TC9_2_dropPolicyBoundsTheQueueAndDropsFrames() throws Exception {
+        try (ReferenceServer local = startServer("drop")) {
+            connect("127.0.0.1", local.port());
+            int count = 5_000;
+            startSending(count, count, 0).join();
+            receiveInOrder(fast, count, null);
+
+            assertTrue(local.peakQueuedBytes() <= queue_limit, "peak queue " + local.peakQueuedBytes() + " bytes");
+            assertTrue(local.droppedFrames() > 0);
+            // The stalled client is still connected, it just misses messages; what it gets is queued already
+            assertTrue(readStalled(count, max_delta_allowed_ms) < count);
+        }
+    }
+
+    @Test
+    void TC9_3_disconnectPolicySendsDisconnected() throws Exception {
+        try (ReferenceServer local = startServer("disconnect")) {
+            connect("127.0.0.1", local.port());
+            int count = 5_000;
+            startSending(count, count, 0).join();
+            receiveInOrder(fast, count, null);
+            assertTrue(local.peakQueuedBytes() <= queue_limit, "peak queue " + local.peakQueuedBytes() + " bytes");
+
+            stalled.setSoTimeout(max_delta_allowed_ms);
+            Object last = null;
+            String line;
+            while ((line = stalledReader.readLine()) != null) {
+                last = Utils.messageToObject(line);
+            }
+            assertEquals(new Disconnected("Slow consumer"), last);
+        }
+    }
+
+    @Test
+    void TC9_4_blockPolicyPausesSenderUntilReaderCatchesUp() throws Exception {
+        try (ReferenceServer local = startServer("block")) {
+            connect("127.0.0.1", local.port());
+            int count = 5_000;
+            Thread sending = startSending(count, count, 0);
+            long deadline = System.nanoTime() + block_deadline_ms * 1_000_000L;
+            while (local.sendersPaused() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(local.sendersPaused() > 0, "sender was not blocked");
+            assertTrue(local.peakQueuedBytes() <= queue_limit + read_slack, "peak queue " + local.peakQueuedBytes() + " bytes");
+
+            // Once the stalled client reads again everything arrives, nothing was dropped
+            assertEquals(count, readStalled(count, block_deadline_ms));
+            receiveInOrder(fast, count, null);
+            sending.join();
+            assertTrue(local.peakQueuedBytes() <= queue_limit + read_slack, "peak queue " + local.peakQueuedBytes() + " bytes");
+        }
+    }
+
+    private ReferenceServer startServer(String policy) throws IOException {
+        Properties settings = new Properties();
+        settings.putAll(props);
+        settings.setProperty("max_outbound_bytes", String.valueOf(queue_limit));
+        settings.setProperty("slow_consumer_policy", policy);
+        return new ReferenceServer(0, settings);
+    }
+
+    /**
+     * Logs in the stalled client (which then stops reading), the fast consumer and the sender.
+     */
+    private void connect(String host, int port) throws IOException {
+        stalled = new Socket();
+        stalled.setReceiveBufferSize(8 * 1024);
+        stalled.connect(new InetSocketAddress(host, port));
+        stalledReader = new BufferedReader(new InputStreamReader(stalled.getInputStream(), StandardCharsets.UTF_8));
+        stalledReader.readLine(); // WELCOME
+        stalled.getOutputStream().write((Utils.objectToMessage(new Login(stalledName)) + "\n").getBytes(StandardCharsets.UTF_8));
+        stalledReader.readLine(); // OK
+
+        fast = new ChatConnection(host, port);
+        receiveMessageWithTimeout(fast); // WELCOME
+        fast.send(new Login(fastName));
+        receiveMessageWithTimeout(fast); // OK
+        sender = new ChatConnection(host, port);
+        receiveMessageWithTimeout(sender); // WELCOME
+        sender.send(new Login(senderName));
+        receiveMessageWithTimeout(sender); // OK
+    }
+
+    /**
+     * Sends numbered, time stamped broadcasts of about message_size bytes in batches.
+     */
+    private Thread startSending(int count, int batch, int pauseMs) {
+        Thread thread = new Thread(() -> {
+            try {
+                for (int sent = 0; sent < count; ) {
+                    Pipeline pipeline = new Pipeline(sender);
+                    for (int i = 0; i < batch && sent < count; i++, sent++) {
+                        pipeline.add(new Broadcast("", sent + ":" + System.nanoTime() + ":" + padding));
+                    }
+                    pipeline.write();
+                    Thread.sleep(pauseMs);
+                }
+            } catch (InterruptedException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "slow-consumer-sender");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Receives the sender's broadcasts and checks that they arrive complete and in order.
+     */
+    private void receiveInOrder(ChatConnection connection, int count, List<Long> latencies) {
+        int expected = 0;
+        while (expected < count) {
+            Object message = receiveMessageWithTimeout(connection);
+            if (message instanceof Broadcast broadcast && senderName.equals(broadcast.username())) {
+                String[] parts = broadcast.message().split(":", 3);
+                assertEquals(expected, Integer.parseInt(parts[0]));
+                if (latencies != null) {
+                    latencies.add(System.nanoTime() - Long.parseLong(parts[1]));
+                }
+                expected++;
+            }
+        }
+    }
+
+    /**
+     * Reads the stalled client's socket until the sender's last broadcast, the end of the stream
+     * or the deadline, and returns how many of the sender's broadcasts arrived, checking their order.
+     * A read timeout is the deadline itself: a timed out readLine loses a partly read line.
+     */
+    private int readStalled(int count, int deadlineMs) throws IOException {
+        stalled.setSoTimeout(deadlineMs);
+        long deadline = System.nanoTime() + deadlineMs * 1_000_000L;
+        int received = 0;
+        int previous = -1;
+        try {
+            String line;
+            while (System.nanoTime() < deadline && (line = stalledReader.readLine()) != null) {
+                if (Utils.messageToObject(line) instanceof Broadcast broadcast && senderName.equals(broadcast.username())) {
+                    int sequence = Integer.parseInt(broadcast.message().split(":", 2)[0]);
+                    assertTrue(sequence > previous, "out of order");
+                    previous = sequence;
+                    received++;
+                    if (sequence == count - 1) {
+                        break;
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Nothing more is coming
+        }
+        return received;
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+}
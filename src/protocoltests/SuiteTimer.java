@@ -0,0 +1,65 @@
+package protocoltests;
+
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import protocoltests.protocol.utils.CommandMetrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reports the wall-clock time of every test class and of the whole run when the run ends, and
+ * the command metrics of all connections ({@link CommandMetrics#global()}); with
+ * {@code -Dmetrics_dir=...} these are also written there as metrics.json and metrics.csv.
+ * Registered for all classes through junit-platform.properties (extension autodetection).
+ */
+public class SuiteTimer implements BeforeAllCallback, AfterAllCallback {
+
+    private final static ExtensionContext.Namespace namespace = ExtensionContext.Namespace.create(SuiteTimer.class);
+
+    @Override
+    public void beforeAll(ExtensionContext context) {
+        Run run = context.getRoot().getStore(namespace).getOrComputeIfAbsent(Run.class, key -> new Run(), Run.class);
+        run.started.put(context.getRequiredTestClass().getSimpleName(), System.nanoTime());
+    }
+
+    @Override
+    public void afterAll(ExtensionContext context) {
+        Run run = context.getRoot().getStore(namespace).get(Run.class, Run.class);
+        String name = context.getRequiredTestClass().getSimpleName();
+        Long started = run == null ? null : run.started.get(name);
+        if (started != null) {
+            run.finished.put(name, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Closed by JUnit when the root context closes, i.e. after the last test class.
+     */
+    private static class Run implements ExtensionContext.Store.CloseableResource {
+        private final long start = System.nanoTime();
+        private final Map<String, Long> started = new ConcurrentHashMap<>();
+        private final Map<String, Long> finished = new ConcurrentHashMap<>();
+
+        @Override
+        public void close() {
+            long total = System.nanoTime() - start;
+            long sum = finished.values().stream().mapToLong(Long::longValue).sum();
+            finished.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .forEach(entry -> System.out.printf("%-20s %7.2f s%n", entry.getKey(), entry.getValue() / 1e9));
+            System.out.printf("Suite finished in %.2f s (%d classes, %.2f s if run one after another)%n",
+                    total / 1e9, finished.size(), sum / 1e9);
+
+            String directory = System.getProperty("metrics_dir");
+            try {
+                CommandMetrics.global().report(System.out, directory == null ? null : Path.of(directory));
+            } catch (IOException e) {
+                System.err.println("Could not write the metrics: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package protocoltests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Loads testconfig.properties for one test class.
+ * <p>
+ * A key prefixed with the simple class name overrides the plain key for that class only, e.g.
+ * {@code LoginTests.port=1338}, so classes that run in parallel can each use their own server.
+ * System properties with the same names ({@code -Dport=1338}, {@code -DLoginTests.port=1338})
+ * override the file.
+ */
+public class TestConfig {
+
+    public static Properties load(Class<?> testClass) throws IOException {
+        Properties file = new Properties();
+        try (InputStream in = TestConfig.class.getResourceAsStream("testconfig.properties")) {
+            if (in == null) {
+                throw new IOException("testconfig.properties not found on the classpath");
+            }
+            file.load(in);
+        }
+
+        String prefix = testClass.getSimpleName() + ".";
+        Properties props = new Properties();
+        for (String key : file.stringPropertyNames()) {
+            if (!key.contains(".")) {
+                props.setProperty(key, System.getProperty(key, file.getProperty(key)));
+            }
+        }
+        for (String key : file.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                String name = key.substring(prefix.length());
+                props.setProperty(name, System.getProperty(name, file.getProperty(key)));
+            }
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                props.setProperty(key.substring(prefix.length()), System.getProperty(key));
+            }
+        }
+        return props;
+    }
+}
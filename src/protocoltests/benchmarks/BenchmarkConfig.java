@@ -0,0 +1,42 @@
+package protocoltests.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings for the benchmark programs. Values come from testconfig.properties and
+ * can be overridden per run with system properties, e.g. -Dusers=10000.
+ */
+public class BenchmarkConfig {
+
+    private final Properties props = new Properties();
+
+    public BenchmarkConfig() throws IOException {
+        InputStream in = BenchmarkConfig.class.getResourceAsStream("../testconfig.properties");
+        assert in != null;
+        props.load(in);
+        in.close();
+        props.putAll(System.getProperties());
+    }
+
+    public Properties properties() {
+        return props;
+    }
+
+    public String host() {
+        return props.getProperty("host");
+    }
+
+    public int port() {
+        return Integer.parseInt(props.getProperty("port"));
+    }
+
+    public int intValue(String name, int defaultValue) {
+        return Integer.parseInt(props.getProperty(name, String.valueOf(defaultValue)));
+    }
+
+    public double doubleValue(String name, double defaultValue) {
+        return Double.parseDouble(props.getProperty(name, String.valueOf(defaultValue)));
+    }
+}
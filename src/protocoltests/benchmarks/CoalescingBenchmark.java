@@ -0,0 +1,79 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.Broadcast;
+import protocoltests.protocol.utils.LatencyHistogram;
+import protocoltests.server.ReferenceServer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the reference server's write strategies under a broadcast storm: direct writes
+ * (one write per frame and recipient) against coalesced writes with different flush windows.
+ * Every mode runs on a fresh in-process {@link ReferenceServer}; reports server write calls
+ * per second, writes per delivered message, delivered messages per second and latency.
+ * <p>
+ * Settings: modes (comma separated, "direct" or a flush window in ms, default direct,0,1,5),
+ * receivers (default 500), senders (default 10), messages_per_sender (default 500),
+ * login_timeout_s.
+ */
+public class CoalescingBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        String[] modes = config.properties().getProperty("modes", "direct,0,1,5").split(",");
+        int receivers = config.intValue("receivers", 500);
+        int senders = config.intValue("senders", 10);
+        int messagesPerSender = config.intValue("messages_per_sender", 500);
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 60));
+
+        for (int round = 0; round < modes.length; round++) {
+            String mode = modes[round].trim();
+            Properties settings = new Properties();
+            settings.putAll(config.properties());
+            settings.setProperty("write_coalescing", String.valueOf(!mode.equals("direct")));
+            if (!mode.equals("direct")) {
+                settings.setProperty("flush_window_ms", mode);
+            }
+
+            LatencyHistogram latency = new LatencyHistogram();
+            LongAdder delivered = new LongAdder();
+            long expected = (long) receivers * senders * messagesPerSender;
+            try (ReferenceServer server = new ReferenceServer(0, settings);
+                 ChatClientPool pool = new ChatClientPool("127.0.0.1", server.port())) {
+                SimulatedUsers receiverGroup = new SimulatedUsers(pool, "co" + round + "r", (user, message) -> {
+                    long stamp;
+                    if (message instanceof Broadcast broadcast && (stamp = FanoutBenchmark.stampOf(broadcast.message())) != FanoutBenchmark.no_stamp) {
+                        latency.record(System.nanoTime() - stamp);
+                        delivered.increment();
+                    }
+                });
+                SimulatedUsers senderGroup = new SimulatedUsers(pool, "co" + round + "s", (user, message) -> {
+                });
+                receiverGroup.login(receivers, loginTimeout);
+                List<SimulatedUsers.User> senderUsers = senderGroup.login(senders, loginTimeout);
+
+                long writesBefore = server.writeCalls();
+                long start = System.nanoTime();
+                for (int i = 0; i < messagesPerSender; i++) {
+                    for (SimulatedUsers.User sender : senderUsers) {
+                        sender.send(new Broadcast("", i + "@" + System.nanoTime()));
+                    }
+                }
+                FanoutBenchmark.awaitDelivery(delivered, expected, TimeUnit.SECONDS.toNanos(30));
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long writes = server.writeCalls() - writesBefore;
+
+                System.out.printf("%-7s writes %9.0f/s  %5.2f writes/msg  delivered %9.0f/s (%d of %d)  latency %s%n",
+                        mode.equals("direct") ? mode : mode + " ms", writes / seconds,
+                        delivered.sum() == 0 ? 0 : writes / (double) delivered.sum(),
+                        delivered.sum() / seconds, delivered.sum(), expected, latency.summary());
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.Broadcast;
+import protocoltests.protocol.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures broadcast fan-out latency: for every fan-out size M, logs in M receivers and K senders,
+ * lets the senders broadcast messages carrying a {@link System#nanoTime()} stamp and records the
+ * time from sending to arrival at every receiver.
+ * <p>
+ * Settings: fanouts (comma separated, default 10,100,1000), senders, messages_per_sender,
+ * send_interval_ms, login_timeout_s.
+ */
+public class FanoutBenchmark {
+
+    final static long no_stamp = Long.MIN_VALUE;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        String[] fanouts = config.properties().getProperty("fanouts", "10,100,1000").split(",");
+        int senders = config.intValue("senders", 4);
+        int messagesPerSender = config.intValue("messages_per_sender", 200);
+        int sendIntervalMs = config.intValue("send_interval_ms", 5);
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 60));
+
+        for (int round = 0; round < fanouts.length; round++) {
+            int receivers = Integer.parseInt(fanouts[round].trim());
+            LatencyHistogram histogram = new LatencyHistogram();
+            LongAdder delivered = new LongAdder();
+            long expected = (long) receivers * senders * messagesPerSender;
+
+            try (ChatClientPool pool = ChatClientPool.fromConfig(config.properties())) {
+                SimulatedUsers receiverGroup = new SimulatedUsers(pool, "fo" + round + "r", (user, message) -> {
+                    long stamp;
+                    if (message instanceof Broadcast broadcast && (stamp = stampOf(broadcast.message())) != no_stamp) {
+                        histogram.record(System.nanoTime() - stamp);
+                        delivered.increment();
+                    }
+                });
+                SimulatedUsers senderGroup = new SimulatedUsers(pool, "fo" + round + "s", (user, message) -> {
+                });
+                receiverGroup.login(receivers, loginTimeout);
+                List<SimulatedUsers.User> senderUsers = senderGroup.login(senders, loginTimeout);
+
+                for (int i = 0; i < messagesPerSender; i++) {
+                    for (SimulatedUsers.User sender : senderUsers) {
+                        sender.send(new Broadcast("", i + "@" + System.nanoTime()));
+                    }
+                    Thread.sleep(sendIntervalMs);
+                }
+                awaitDelivery(delivered, expected, TimeUnit.SECONDS.toNanos(10));
+            }
+            System.out.printf("fan-out %6d: %s  delivered %d/%d%n",
+                    receivers, histogram.summary(), delivered.sum(), expected);
+        }
+    }
+
+    /**
+     * Returns the nanoTime stamp of a benchmark message, or {@code no_stamp} for any other message.
+     */
+    static long stampOf(String message) {
+        int separator = message == null ? -1 : message.indexOf('@');
+        if (separator < 0) {
+            return no_stamp;
+        }
+        try {
+            return Long.parseLong(message, separator + 1, message.length(), 10);
+        } catch (NumberFormatException e) {
+            return no_stamp;
+        }
+    }
+
+    static void awaitDelivery(LongAdder delivered, long expected, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (delivered.sum() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
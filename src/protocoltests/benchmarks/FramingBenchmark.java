@@ -0,0 +1,110 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.FrameDecoder;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CPU cost per message of the line protocol compared to binary framing: every message is
+ * encoded and then decoded through a {@link FrameDecoder}, fed in network sized chunks.
+ * Reports CPU time of the benchmark thread per message and the bytes per message on the wire.
+ * <p>
+ * Settings: messages (per iteration, default 200000), list_users (size of the LIST reply in
+ * the message mix, default 100).
+ */
+public class FramingBenchmark {
+
+    private final static int warmup_iterations = 5;
+    private final static int measure_iterations = 10;
+    private final static int chunk_size = 16 * 1024;
+
+    private static Object sink;
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int messages = config.intValue("messages", 200_000);
+        int listUsers = config.intValue("list_users", 100);
+
+        List<String> users = new ArrayList<>();
+        for (int i = 0; i < listUsers; i++) {
+            users.add(Usernames.generate("user", i));
+        }
+        List<Object> mix = List.of(
+                new Broadcast("user1", "messagefromuser1"),
+                new Private("user1", "howdy"),
+                new Response<>("OK", 800, "BROADCAST"),
+                new Arrived("user2"),
+                new Left("user2"),
+                new Ping(),
+                new Response<>(users, 800, "LIST")
+        );
+
+        for (boolean binary : new boolean[]{false, true}) {
+            String name = binary ? "binary" : "text";
+            for (int i = 0; i < warmup_iterations; i++) {
+                iteration(mix, messages, binary);
+            }
+            double best = Double.MAX_VALUE;
+            double total = 0;
+            for (int i = 0; i < measure_iterations; i++) {
+                double nsPerMessage = iteration(mix, messages, binary);
+                best = Math.min(best, nsPerMessage);
+                total += nsPerMessage;
+            }
+            System.out.printf("%-6s cpu avg %8.1f ns/msg   best %8.1f ns/msg   %6.1f bytes/msg%n",
+                    name, total / measure_iterations, best, bytesPerMessage(mix, binary));
+        }
+    }
+
+    /**
+     * Encodes and decodes the given number of messages and returns the CPU time per message.
+     */
+    private static double iteration(List<Object> mix, int messages, boolean binary) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.binary(binary);
+        byte[] chunk = new byte[chunk_size];
+        int filled = 0;
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < messages; i++) {
+            Object message = mix.get(i % mix.size());
+            byte[] frame = binary ? Utils.objectToBinaryFrame(message) : Utils.objectToFrame(message);
+            if (filled + frame.length > chunk.length) {
+                filled = drain(decoder, chunk, filled);
+            }
+            if (frame.length > chunk.length) {
+                decoder.feed(frame, 0, frame.length);
+                drain(decoder, chunk, 0);
+            } else {
+                System.arraycopy(frame, 0, chunk, filled, frame.length);
+                filled += frame.length;
+            }
+        }
+        drain(decoder, chunk, filled);
+        return (threads.getCurrentThreadCpuTime() - start) / (double) messages;
+    }
+
+    private static int drain(FrameDecoder decoder, byte[] chunk, int filled) throws IOException {
+        decoder.feed(chunk, 0, filled);
+        Object message;
+        while ((message = decoder.next()) != null) {
+            sink = message;
+        }
+        return 0;
+    }
+
+    private static double bytesPerMessage(List<Object> mix, boolean binary) throws IOException {
+        long bytes = 0;
+        for (Object message : mix) {
+            bytes += (binary ? Utils.objectToBinaryFrame(message) : Utils.objectToFrame(message)).length;
+        }
+        return bytes / (double) mix.size();
+    }
+}
@@ -0,0 +1,115 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.Broadcast;
+import protocoltests.protocol.messages.Ping;
+import protocoltests.protocol.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Profiles the server's PING scheduling: keeps many logged in sessions that answer every PING,
+ * records the interval between consecutive PINGs per session and reports how far the intervals
+ * deviate from ping_time_ms while the broadcast load is raised step by step.
+ * <p>
+ * Settings: users (default 2000), broadcast_rates (comma separated messages/s, default 0,100,1000),
+ * phase_s (default three ping periods), login_timeout_s.
+ */
+public class HeartbeatProfiler {
+
+    private final static int tick_ms = 10;
+
+    private final long expectedIntervalNanos;
+    private final long allowedDeltaNanos;
+    private final Map<SimulatedUsers.User, Long> lastPing = new HashMap<>(); // selector thread only
+    private volatile Phase phase = new Phase();
+
+    HeartbeatProfiler(int pingTimeMs, int pingDeltaMs) {
+        expectedIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingTimeMs);
+        allowedDeltaNanos = TimeUnit.MILLISECONDS.toNanos(pingDeltaMs);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int pingTimeMs = config.intValue("ping_time_ms", 10_000);
+        int pingDeltaMs = config.intValue("ping_time_ms_delta_allowed", 100);
+        int userCount = config.intValue("users", 2_000);
+        String[] rates = config.properties().getProperty("broadcast_rates", "0,100,1000").split(",");
+        int phaseSeconds = config.intValue("phase_s", 3 * pingTimeMs / 1000);
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 60));
+
+        HeartbeatProfiler profiler = new HeartbeatProfiler(pingTimeMs, pingDeltaMs);
+        try (ChatClientPool pool = ChatClientPool.fromConfig(config.properties())) {
+            SimulatedUsers users = new SimulatedUsers(pool, "hb", profiler::onMessage);
+            List<SimulatedUsers.User> sessions = users.login(userCount, loginTimeout);
+            System.out.printf("logged in %d of %d sessions, expected ping interval %d ms +- %d ms%n",
+                    users.loggedInCount(), userCount, pingTimeMs, pingDeltaMs);
+
+            for (String rate : rates) {
+                int messagesPerSecond = Integer.parseInt(rate.trim());
+                profiler.phase = new Phase();
+                profiler.broadcast(sessions, messagesPerSecond, phaseSeconds);
+                Phase finished = profiler.phase;
+                int disconnected = sessions.size() - (int) sessions.stream().filter(SimulatedUsers.User::loggedIn).count();
+                System.out.printf("broadcast %6d/s: early %s%n", messagesPerSecond, finished.early.summary());
+                System.out.printf("                  late  %s%n", finished.late.summary());
+                System.out.printf("                  outside tolerance %d, sessions disconnected %d%n",
+                        finished.outsideTolerance.sum(), disconnected);
+            }
+        }
+    }
+
+    void broadcast(List<SimulatedUsers.User> sessions, int messagesPerSecond, int seconds) throws InterruptedException {
+        double perTick = messagesPerSecond * tick_ms / 1000.0;
+        double owed = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+            owed += perTick;
+            for (; owed >= 1; owed--) {
+                SimulatedUsers.User sender = sessions.get(random.nextInt(sessions.size()));
+                if (sender.loggedIn()) {
+                    try {
+                        sender.send(new Broadcast("", "heartbeat load"));
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            Thread.sleep(tick_ms);
+        }
+    }
+
+    private void onMessage(SimulatedUsers.User user, Object message) {
+        if (!(message instanceof Ping)) {
+            return;
+        }
+        long now = System.nanoTime();
+        Long previous = lastPing.put(user, now);
+        if (previous == null) {
+            return;
+        }
+        long deviation = (now - previous) - expectedIntervalNanos;
+        Phase current = phase;
+        if (deviation < 0) {
+            current.early.record(-deviation);
+        } else {
+            current.late.record(deviation);
+        }
+        if (Math.abs(deviation) > allowedDeltaNanos) {
+            current.outsideTolerance.increment();
+        }
+    }
+
+    private static class Phase {
+        private final LatencyHistogram early = new LatencyHistogram();
+        private final LatencyHistogram late = new LatencyHistogram();
+        private final LongAdder outsideTolerance = new LongAdder();
+    }
+}
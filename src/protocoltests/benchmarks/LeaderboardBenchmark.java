@@ -0,0 +1,118 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.messages.Leaderboard;
+import protocoltests.protocol.messages.LeaderboardUpdate;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.protocol.utils.Utils;
+import protocoltests.server.ScoreBoard;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Score update throughput of one lobby with many scores: the {@link ScoreBoard} used by the
+ * reference server against a {@code HashMap<String, Integer>} that is sorted for every push.
+ * Both get the same random updates and produce a push every updates_per_push updates (a
+ * LEADERBOARD_UPDATE delta for the score board, the full leaderboard for the map). Reports CPU
+ * time per update and bytes per push.
+ * <p>
+ * Settings: scores (users with a score, default 100000), updates (per iteration, default
+ * 200000), updates_per_push (default 1000), leaderboard_size (default 10).
+ */
+public class LeaderboardBenchmark {
+
+    private final static int warmup_iterations = 3;
+    private final static int measure_iterations = 5;
+    private final static String lobby = "lobby";
+
+    private static long pushedBytes;
+    private static int pushes;
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int scores = config.intValue("scores", 100_000);
+        int updates = config.intValue("updates", 200_000);
+        int updatesPerPush = config.intValue("updates_per_push", 1000);
+        int size = config.intValue("leaderboard_size", 10);
+
+        String[] usernames = new String[scores];
+        for (int i = 0; i < scores; i++) {
+            usernames[i] = Usernames.generate("user", i);
+        }
+        for (boolean sorted : new boolean[]{false, true}) {
+            String name = sorted ? "sorted map" : "score board";
+            for (int i = 0; i < warmup_iterations; i++) {
+                iteration(usernames, updates, updatesPerPush, size, sorted);
+            }
+            double best = Double.MAX_VALUE;
+            double total = 0;
+            pushedBytes = 0;
+            pushes = 0;
+            for (int i = 0; i < measure_iterations; i++) {
+                double nsPerUpdate = iteration(usernames, updates, updatesPerPush, size, sorted);
+                best = Math.min(best, nsPerUpdate);
+                total += nsPerUpdate;
+            }
+            System.out.printf("%-11s cpu avg %8.1f ns/update (%,.0f updates/s)   best %8.1f ns/update   %6.1f bytes/push%n",
+                    name, total / measure_iterations, 1e9 * measure_iterations / total, best,
+                    pushes == 0 ? 0 : pushedBytes / (double) pushes);
+        }
+    }
+
+    /**
+     * Applies the given number of random updates to a fresh lobby where every user already has
+     * a score, and returns the CPU time per update.
+     */
+    private static double iteration(String[] usernames, int updates, int updatesPerPush, int size, boolean sorted) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Random random = new Random(1);
+        ScoreBoard board = new ScoreBoard(size);
+        Map<String, Integer> map = new HashMap<>();
+        for (String username : usernames) {
+            int points = random.nextInt(1000);
+            if (sorted) {
+                map.put(username, points);
+            } else {
+                board.add(username, points);
+            }
+        }
+        board.drainUpdate(lobby);
+
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 1; i <= updates; i++) {
+            String username = usernames[random.nextInt(usernames.length)];
+            int points = random.nextInt(20);
+            if (sorted) {
+                map.merge(username, points, Integer::sum);
+            } else {
+                board.add(username, points);
+            }
+            if (i % updatesPerPush == 0) {
+                byte[] push = sorted ? Utils.objectToFrame(sortedLeaderboard(map, size)) : pushDelta(board);
+                pushedBytes += push.length;
+                pushes++;
+            }
+        }
+        return (threads.getCurrentThreadCpuTime() - start) / (double) updates;
+    }
+
+    private static byte[] pushDelta(ScoreBoard board) throws IOException {
+        LeaderboardUpdate update = board.drainUpdate(lobby);
+        return update == null ? new byte[0] : Utils.objectToFrame(update);
+    }
+
+    private static Leaderboard sortedLeaderboard(Map<String, Integer> map, int size) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(map.entrySet());
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        int count = Math.min(size, entries.size());
+        String[] usernames = new String[count];
+        int[] scores = new int[count];
+        for (int i = 0; i < count; i++) {
+            usernames[i] = entries.get(i).getKey();
+            scores[i] = entries.get(i).getValue();
+        }
+        return new Leaderboard(lobby, usernames, scores);
+    }
+}
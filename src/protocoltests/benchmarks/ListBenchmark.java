@@ -0,0 +1,70 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.utils.FrameDecoder;
+import protocoltests.protocol.utils.LatencyHistogram;
+import protocoltests.protocol.utils.ListDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Measures LIST latency and response size for growing user populations (1k, 10k and 100k
+ * by default). The replies are decoded with the streaming {@link ListDecoder}.
+ * <p>
+ * Note that a single client machine runs out of ephemeral ports to one server address at
+ * around 28k connections with default Linux settings; widen net.ipv4.ip_local_port_range for
+ * the largest population.
+ * <p>
+ * Settings: populations (comma separated, default 1000,10000,100000), requests, login_timeout_s.
+ */
+public class ListBenchmark {
+
+    private final static byte[] list_command = "LIST\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        String[] populations = config.properties().getProperty("populations", "1000,10000,100000").split(",");
+        int requests = config.intValue("requests", 50);
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 300));
+
+        try (ChatClientPool pool = ChatClientPool.fromConfig(config.properties());
+             Socket observer = new Socket(config.host(), config.port())) {
+            SimulatedUsers users = new SimulatedUsers(pool, "ls", (user, message) -> {
+            });
+            InputStream in = observer.getInputStream();
+            OutputStream out = observer.getOutputStream();
+            FrameDecoder decoder = new FrameDecoder();
+            int[] lastFrameLength = new int[1];
+            FrameDecoder.FrameReader<ListDecoder.UserList> listReader = (frame, offset, length) -> {
+                if (!ListDecoder.isResponse(frame, offset, length)) {
+                    return null; // GREET and anything else that is not the LIST reply
+                }
+                lastFrameLength[0] = length;
+                return ListDecoder.decode(frame, offset, length);
+            };
+
+            for (String population : populations) {
+                int target = Integer.parseInt(population.trim());
+                users.login(target - users.users().size(), loginTimeout);
+
+                LatencyHistogram latency = new LatencyHistogram();
+                int listed = 0;
+                for (int i = 0; i < requests; i++) {
+                    long start = System.nanoTime();
+                    out.write(list_command);
+                    out.flush();
+                    ListDecoder.UserList list = decoder.read(in, listReader);
+                    latency.record(System.nanoTime() - start);
+                    listed = list.users().size();
+                }
+                System.out.printf("population %7d (%d logged in): LIST %s  size %.1f KiB  users listed %d%n",
+                        target, users.loggedInCount(), latency.summary(), lastFrameLength[0] / 1024.0, listed);
+            }
+        }
+    }
+}
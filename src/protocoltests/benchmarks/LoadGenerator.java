@@ -0,0 +1,158 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.SequenceVerifier;
+import protocoltests.server.ReferenceServer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test entry point: connects many simulated users, logs them in and lets them
+ * broadcast and send private messages for a fixed time while answering every PING.
+ * All users share one {@link ChatClientPool}, so the number of users is not limited
+ * by the number of threads.
+ * <p>
+ * With {@code verify=true} every message carries a per sender sequence number, and a
+ * {@link SequenceVerifier} reports the messages that were lost, duplicated or reordered once
+ * the traffic has stopped. Runs against the configured server, or an in-process
+ * {@link ReferenceServer} with {@code -Dserver=embedded}.
+ * <p>
+ * Settings (system properties or testconfig.properties): users, duration_s,
+ * messages_per_user_s, private_ratio, login_timeout_s, verify, drain_timeout_s (how long
+ * the verifier waits for messages in flight, default 30).
+ */
+public class LoadGenerator {
+
+    private final static int tick_ms = 10;
+    private final static int quiet_ms = 1000;
+
+    private final LongAdder welcomed = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder chatReceived = new LongAdder();
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private volatile SequenceVerifier verifier;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int userCount = config.intValue("users", 1000);
+        int durationSeconds = config.intValue("duration_s", 30);
+        double messagesPerUserSecond = config.doubleValue("messages_per_user_s", 0.5);
+        double privateRatio = config.doubleValue("private_ratio", 0.2);
+        int loginTimeoutSeconds = config.intValue("login_timeout_s", 60);
+        boolean verify = Boolean.parseBoolean(config.properties().getProperty("verify", "false"));
+        int drainTimeoutSeconds = config.intValue("drain_timeout_s", 30);
+
+        LoadGenerator generator = new LoadGenerator();
+        ReferenceServer server = ReferenceServer.startIfConfigured(config.properties());
+        try (ChatClientPool pool = ChatClientPool.fromConfig(config.properties())) {
+            SimulatedUsers users = new SimulatedUsers(pool, "lg", generator::onMessage);
+            long start = System.nanoTime();
+            users.login(userCount, Duration.ofSeconds(loginTimeoutSeconds));
+            double loginSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("connections set up     %d in %.2f s (%.0f/s), %d logged in%n",
+                    generator.welcomed.sum(), loginSeconds, generator.welcomed.sum() / loginSeconds, users.loggedInCount());
+
+            if (verify) {
+                List<String> loggedIn = new ArrayList<>();
+                for (SimulatedUsers.User user : users.users()) {
+                    if (user.loggedIn()) {
+                        loggedIn.add(user.username());
+                    }
+                }
+                generator.verifier = new SequenceVerifier(loggedIn);
+            }
+            generator.chat(users.users(), durationSeconds, messagesPerUserSecond, privateRatio);
+            if (verify) {
+                LoginStormBenchmark.awaitQuiet(generator.chatReceived, TimeUnit.MILLISECONDS.toNanos(quiet_ms),
+                        TimeUnit.SECONDS.toNanos(drainTimeoutSeconds));
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        generator.print(durationSeconds);
+    }
+
+    void chat(List<SimulatedUsers.User> users, int durationSeconds, double messagesPerUserSecond, double privateRatio)
+            throws InterruptedException {
+        double perTick = users.size() * messagesPerUserSecond * tick_ms / 1000.0;
+        double owed = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+            owed += perTick;
+            for (; owed >= 1; owed--) {
+                SimulatedUsers.User sender = users.get(random.nextInt(users.size()));
+                if (!sender.loggedIn()) {
+                    continue;
+                }
+                try {
+                    if (random.nextDouble() < privateRatio) {
+                        SimulatedUsers.User receiver = users.get(random.nextInt(users.size()));
+                        if (receiver == sender || verifier != null && !receiver.loggedIn()) {
+                            continue;
+                        }
+                        sender.send(new Private(receiver.username(), verifier == null ? "load " + sent.sum()
+                                : verifier.stampPrivate(sender.username(), receiver.username(), "load")));
+                    } else {
+                        sender.send(new Broadcast("", verifier == null ? "load " + sent.sum()
+                                : verifier.stampBroadcast(sender.username(), "load")));
+                    }
+                    sent.increment();
+                } catch (IOException e) {
+                    failures.increment();
+                }
+            }
+            Thread.sleep(tick_ms);
+        }
+    }
+
+    private void onMessage(SimulatedUsers.User user, Object message) {
+        received.increment();
+        if (message instanceof Welcome) {
+            welcomed.increment();
+        } else if (message instanceof Ping) {
+            pings.increment();
+        } else if (message instanceof Response<?> response && response.status() != 800) {
+            statuses.computeIfAbsent(response.status(), s -> new LongAdder()).increment();
+        } else if (message instanceof Broadcast || message instanceof Private) {
+            chatReceived.increment();
+            SequenceVerifier sequences = verifier;
+            if (sequences != null) {
+                sequences.received(user.username(), message);
+            }
+        }
+    }
+
+    private void print(int durationSeconds) {
+        System.out.printf("messages sent          %d (%.0f/s)%n", sent.sum(), sent.sum() / (double) durationSeconds);
+        System.out.printf("chat messages received %d (%.0f/s)%n",
+                chatReceived.sum(), chatReceived.sum() / (double) durationSeconds);
+        System.out.printf("frames received        %d%n", received.sum());
+        System.out.printf("pings answered         %d%n", pings.sum());
+        System.out.printf("send failures          %d%n", failures.sum());
+        Map<Integer, Long> errors = new TreeMap<>();
+        for (int code : new int[]{811, 812, 710, 711, 822}) {
+            errors.put(code, 0L);
+        }
+        statuses.forEach((code, count) -> errors.put(code, count.sum()));
+        errors.forEach((code, count) -> System.out.printf("status %d             %d%n", code, count));
+        if (verifier != null) {
+            System.out.printf("sequences              %s%n", verifier.report().summary());
+        }
+    }
+}
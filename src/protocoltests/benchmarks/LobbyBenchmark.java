@@ -0,0 +1,96 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.Broadcast;
+import protocoltests.protocol.messages.Join;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.utils.LatencyHistogram;
+import protocoltests.server.ReferenceServer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lobby broadcast throughput of the reference server as the number of lobbies and lobby
+ * workers grows. Every lobby gets the same members and the same broadcast load, so with one
+ * worker the total throughput stays flat while with more workers (and cores) it should grow
+ * with the number of lobbies, up to the number of workers. Each round runs on a fresh
+ * in-process {@link ReferenceServer}; reports delivered messages per second and latency.
+ * The clients run in the same process, so on a machine with few cores they compete with the
+ * workers for CPU.
+ * <p>
+ * Settings: lobbies (comma separated, default 1,2,4,8), workers (comma separated lobby_workers,
+ * default 1 and the number of cores), members_per_lobby (default 100), senders_per_lobby
+ * (default 2), messages_per_sender (default 200), login_timeout_s.
+ */
+public class LobbyBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        String[] lobbyCounts = config.properties().getProperty("lobbies", "1,2,4,8").split(",");
+        String[] workerCounts = config.properties().getProperty("workers",
+                "1," + Runtime.getRuntime().availableProcessors()).split(",");
+        int members = config.intValue("members_per_lobby", 100);
+        int senders = config.intValue("senders_per_lobby", 2);
+        int messagesPerSender = config.intValue("messages_per_sender", 200);
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 60));
+
+        int round = 0;
+        for (String workerCount : workerCounts) {
+            for (String lobbyCount : lobbyCounts) {
+                int workers = Integer.parseInt(workerCount.trim());
+                int lobbies = Integer.parseInt(lobbyCount.trim());
+                Properties settings = new Properties();
+                settings.putAll(config.properties());
+                settings.setProperty("lobby_workers", String.valueOf(workers));
+
+                LatencyHistogram latency = new LatencyHistogram();
+                LongAdder delivered = new LongAdder();
+                LongAdder joined = new LongAdder();
+                long expected = (long) lobbies * senders * messagesPerSender * (members - 1);
+                try (ReferenceServer server = new ReferenceServer(0, settings);
+                     ChatClientPool pool = new ChatClientPool("127.0.0.1", server.port())) {
+                    SimulatedUsers group = new SimulatedUsers(pool, "lb" + round++ + "u", (user, message) -> {
+                        long stamp;
+                        if (message instanceof Broadcast broadcast && (stamp = FanoutBenchmark.stampOf(broadcast.message())) != FanoutBenchmark.no_stamp) {
+                            latency.record(System.nanoTime() - stamp);
+                            delivered.increment();
+                        } else if (message instanceof Response<?> response && "JOIN".equals(response.to()) && response.status() == 800) {
+                            joined.increment();
+                        }
+                    });
+                    List<SimulatedUsers.User> users = group.login(lobbies * members, loginTimeout);
+                    for (int i = 0; i < users.size(); i++) {
+                        users.get(i).send(new Join(lobbyName(i / members)));
+                    }
+                    FanoutBenchmark.awaitDelivery(joined, users.size(), loginTimeout.toNanos());
+
+                    long start = System.nanoTime();
+                    for (int i = 0; i < messagesPerSender; i++) {
+                        for (int lobby = 0; lobby < lobbies; lobby++) {
+                            for (int sender = 0; sender < senders; sender++) {
+                                users.get(lobby * members + sender).send(new Broadcast(lobbyName(lobby), "", i + "@" + System.nanoTime()));
+                            }
+                        }
+                    }
+                    FanoutBenchmark.awaitDelivery(delivered, expected, TimeUnit.SECONDS.toNanos(60));
+                    double seconds = (System.nanoTime() - start) / 1e9;
+
+                    System.out.printf("workers %2d  lobbies %2d  delivered %9.0f/s (%d of %d)  latency %s%n",
+                            workers, lobbies, delivered.sum() / seconds, delivered.sum(), expected, latency.summary());
+                }
+            }
+        }
+    }
+
+    /**
+     * Names that differ in the last character only, so consecutive lobbies hash to consecutive workers.
+     */
+    private static String lobbyName(int lobby) {
+        return "lobby" + (char) ('A' + lobby);
+    }
+}
@@ -0,0 +1,249 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.LatencyHistogram;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reconnect storm: opens many connections as fast as possible, waits for the GREET on every
+ * one of them and then sends all LOGINs at once. Reports the accept rate, time to GREET,
+ * time from LOGIN to its 800 and the ARRIVED storm that follows: every login is announced to
+ * everyone logged in before, about N*N/2 messages in total. A group of bystanders, logged in
+ * before the storm, keeps sending stamped PRIVATE probes to each other to show what the storm
+ * costs them (a broadcast probe would itself fan out to everyone).
+ * <p>
+ * Runs against the configured server, or an in-process {@link ReferenceServer} with
+ * {@code -Dserver=embedded}; add {@code -Dpresence=batched} to compare PRESENCE deltas with
+ * ARRIVED per login (bytes written are reported for the embedded server). Settings: users
+ * (default 10000), bystanders (default 100), probe_interval_ms (default 10), connect_timeout_s,
+ * login_timeout_s.
+ */
+public class LoginStormBenchmark {
+
+    private final static int quiet_ms = 500;
+
+    private final LatencyHistogram timeToGreet = new LatencyHistogram();
+    private final LatencyHistogram timeToLogin = new LatencyHistogram();
+    private final LatencyHistogram probeLatency = new LatencyHistogram();
+    private final LongAdder presenceFrames = new LongAdder(); // ARRIVED or PRESENCE
+    private final LongAdder announced = new LongAdder(); // logins announced in them, to all clients
+    private final LongAdder announcedToBystanders = new LongAdder();
+    private final LongAdder failedLogins = new LongAdder();
+    private volatile long lastAnnouncedAt;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int userCount = config.intValue("users", 10_000);
+        int bystanderCount = config.intValue("bystanders", 100);
+        int probeIntervalMs = config.intValue("probe_interval_ms", 10);
+        Duration connectTimeout = Duration.ofSeconds(config.intValue("connect_timeout_s", 60));
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 120));
+
+        Properties props = config.properties();
+        LoginStormBenchmark benchmark = new LoginStormBenchmark();
+        try (ReferenceServer server = ReferenceServer.startIfConfigured(props);
+             ChatClientPool pool = ChatClientPool.fromConfig(props)) {
+            SimulatedUsers bystanders = new SimulatedUsers(pool, "lsb", benchmark::onBystanderMessage);
+            List<SimulatedUsers.User> bystanderUsers = bystanders.login(bystanderCount, loginTimeout);
+            System.out.printf("logged in %d of %d bystanders%n", bystanders.loggedInCount(), bystanderCount);
+            Thread.sleep(500); // the bystanders' own announcements
+            benchmark.presenceFrames.reset();
+            benchmark.announced.reset();
+            benchmark.announcedToBystanders.reset();
+
+            // Connect storm
+            CountDownLatch welcomed = new CountDownLatch(userCount);
+            CountDownLatch answered = new CountDownLatch(userCount);
+            List<StormUser> users = new ArrayList<>(userCount);
+            long connectStart = System.nanoTime();
+            for (int i = 0; i < userCount; i++) {
+                StormUser user = benchmark.new StormUser(Usernames.generate("lsu", i), welcomed, answered);
+                users.add(user);
+                user.connectStartedAt = System.nanoTime();
+                user.client = pool.connect(user);
+            }
+            double acceptSeconds = awaitConnected(users, connectTimeout.toNanos()) / 1e9;
+            int accepted = connected(users);
+            if (!welcomed.await(connectTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                System.err.println("Not all of " + userCount + " connections were greeted within " + connectTimeout.toSeconds() + " s");
+            }
+            double greetSeconds = (System.nanoTime() - connectStart) / 1e9;
+
+            // Login storm, with the bystanders probing broadcast latency meanwhile
+            Thread probe = new Thread(() -> probe(bystanderUsers, probeIntervalMs), "probe");
+            probe.setDaemon(true);
+            probe.start();
+            long writesBefore = server == null ? 0 : server.writeCalls();
+            long bytesBefore = server == null ? 0 : server.writtenBytes();
+            long loginStart = System.nanoTime();
+            for (StormUser user : users) {
+                user.loginSentAt = System.nanoTime();
+                user.client.send(new Login(user.username));
+            }
+            if (!answered.await(loginTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                System.err.println("Not all of " + userCount + " logins were answered within " + loginTimeout.toSeconds() + " s");
+            }
+            double loginSeconds = (System.nanoTime() - loginStart) / 1e9;
+            // Done when every bystander knows every storm user and the announcements have stopped
+            FanoutBenchmark.awaitDelivery(benchmark.announcedToBystanders, (long) bystanderCount * userCount, loginTimeout.toNanos());
+            awaitQuiet(benchmark.announced, TimeUnit.MILLISECONDS.toNanos(quiet_ms), loginTimeout.toNanos());
+            double stormSeconds = (benchmark.lastAnnouncedAt - loginStart) / 1e9;
+            probe.interrupt();
+            long perEvent = (long) userCount * (userCount - 1) / 2 + (long) bystanderCount * userCount;
+
+            System.out.printf("accepted          %d connections in %.2f s (%.0f/s)%n",
+                    accepted, acceptSeconds, accepted / acceptSeconds);
+            System.out.printf("greeted           %d in %.2f s, time to GREET %s%n",
+                    userCount - welcomed.getCount(), greetSeconds, benchmark.timeToGreet.summary());
+            System.out.printf("logins answered   %d in %.2f s (%.0f/s), %d refused%n",
+                    userCount - answered.getCount(), loginSeconds, (userCount - answered.getCount()) / loginSeconds,
+                    benchmark.failedLogins.sum());
+            System.out.printf("time to LOGIN OK  %s%n", benchmark.timeToLogin.summary());
+            System.out.printf("presence storm    %d frames announcing %d logins (%d ARRIVED per event) in %.2f s (%.0f frames/s)%n",
+                    benchmark.presenceFrames.sum(), benchmark.announced.sum(), perEvent, stormSeconds,
+                    benchmark.presenceFrames.sum() / stormSeconds);
+            System.out.printf("probe latency     %s%n", benchmark.probeLatency.summary());
+            if (server != null) {
+                long bytes = server.writtenBytes() - bytesBefore;
+                System.out.printf("server writes     %d calls, %d bytes (%.0f per login) during the login storm%n",
+                        server.writeCalls() - writesBefore, bytes, bytes / (double) userCount);
+            }
+        }
+    }
+
+    /**
+     * Waits until the counter has not changed for the given time, or the timeout passed.
+     */
+    static void awaitQuiet(LongAdder counter, long quietNanos, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        long last = counter.sum();
+        long changedAt = System.nanoTime();
+        while (System.nanoTime() - changedAt < quietNanos && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            long current = counter.sum();
+            if (current != last) {
+                last = current;
+                changedAt = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Waits until every connection is established and returns the nanoseconds this took
+     * from the first connect.
+     */
+    private static long awaitConnected(List<StormUser> users, long timeoutNanos) throws InterruptedException {
+        long start = users.isEmpty() ? System.nanoTime() : users.get(0).connectStartedAt;
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (connected(users) < users.size() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int connected(List<StormUser> users) {
+        int count = 0;
+        for (StormUser user : users) {
+            if (user.client.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lets the bystanders take turns sending a stamped private probe to the next one until interrupted.
+     */
+    private static void probe(List<SimulatedUsers.User> bystanders, int intervalMs) {
+        try {
+            for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                SimulatedUsers.User receiver = bystanders.get((i + 1) % bystanders.size());
+                bystanders.get(i % bystanders.size()).send(new Private(receiver.username(), i + "@" + System.nanoTime()));
+                Thread.sleep(intervalMs);
+            }
+        } catch (IOException e) {
+            System.err.println("Probe stopped: " + e.getMessage());
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void onBystanderMessage(SimulatedUsers.User user, Object message) {
+        long stamp;
+        int names = announcedLogins(message);
+        if (names > 0) {
+            announcedToBystanders.add(names);
+        } else if (message instanceof Private probe && (stamp = FanoutBenchmark.stampOf(probe.message())) != FanoutBenchmark.no_stamp) {
+            probeLatency.record(System.nanoTime() - stamp);
+        }
+    }
+
+    /**
+     * Counts an ARRIVED or PRESENCE frame and returns the number of logins it announces.
+     */
+    private int announcedLogins(Object message) {
+        int names;
+        if (message instanceof Arrived) {
+            names = 1;
+        } else if (message instanceof Presence presence) {
+            names = presence.joined().size();
+        } else {
+            return 0;
+        }
+        presenceFrames.increment();
+        announced.add(names);
+        lastAnnouncedAt = System.nanoTime();
+        return names;
+    }
+
+    /**
+     * A connection of the storm. Unlike a {@link SimulatedUsers.User} it does not log in when
+     * greeted, the benchmark sends all logins together.
+     */
+    private class StormUser implements ChatClientPool.MessageListener {
+
+        private final String username;
+        private final CountDownLatch welcomed;
+        private final CountDownLatch answered;
+        private volatile ChatClientPool.Client client;
+        private volatile long connectStartedAt;
+        private volatile long loginSentAt;
+        private boolean loginAnswered;
+
+        private StormUser(String username, CountDownLatch welcomed, CountDownLatch answered) {
+            this.username = username;
+            this.welcomed = welcomed;
+            this.answered = answered;
+        }
+
+        @Override
+        public void onMessage(ChatClientPool.Client client, Object message) throws IOException {
+            if (message instanceof Welcome) {
+                timeToGreet.record(System.nanoTime() - connectStartedAt);
+                welcomed.countDown();
+            } else if (message instanceof Ping) {
+                client.send(new Pong());
+            } else if (announcedLogins(message) > 0) {
+                return;
+            } else if (message instanceof Response<?> response && "LOGIN".equals(response.to()) && !loginAnswered) {
+                loginAnswered = true;
+                if (response.status() == 800) {
+                    timeToLogin.record(System.nanoTime() - loginSentAt);
+                } else {
+                    failedLogins.increment();
+                }
+                answered.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.client.Pipeline;
+import protocoltests.protocol.messages.Broadcast;
+import protocoltests.protocol.messages.Login;
+import protocoltests.protocol.utils.Usernames;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Measures command throughput against pipeline depth: a logged in user sends BROADCASTs in
+ * batches of 1 to 1024 commands per write and waits for all responses of a batch before
+ * writing the next one.
+ * <p>
+ * Settings: messages_per_depth (default 20000), max_depth (default 1024).
+ */
+public class PipelineBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int messagesPerDepth = config.intValue("messages_per_depth", 20_000);
+        int maxDepth = config.intValue("max_depth", 1024);
+        Duration timeout = Duration.ofSeconds(10);
+
+        int round = 0;
+        for (int depth = 1; depth <= maxDepth; depth *= 2, round++) {
+            try (ChatConnection connection = ChatConnection.fromConfig(config.properties())) {
+                connection.receive(timeout); // WELCOME
+                Pipeline pipeline = new Pipeline(connection);
+                if (!pipeline.add(new Login(Usernames.generate("pl", round))).flush(timeout).complete()) {
+                    System.err.println("No login response at depth " + depth);
+                    continue;
+                }
+
+                int batches = Math.max(1, messagesPerDepth / depth);
+                int incomplete = 0;
+                long start = System.nanoTime();
+                for (int batch = 0; batch < batches; batch++) {
+                    for (int i = 0; i < depth; i++) {
+                        pipeline.add(new Broadcast("", "pipelined"));
+                    }
+                    if (!pipeline.flush(timeout).complete()) {
+                        incomplete++;
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("depth %5d: %9.0f commands/s  %8.1f us per batch  incomplete batches %d%n",
+                        depth, batches * depth / seconds, seconds * 1e6 / batches, incomplete);
+            }
+        }
+    }
+}
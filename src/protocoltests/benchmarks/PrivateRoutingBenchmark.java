@@ -0,0 +1,138 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.Private;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Private message routing over a large user population: logs in many users, sends PRIVATE
+ * messages between random pairs at a target rate while users keep leaving and new ones
+ * log in, and reports delivery latency, throughput and the share of 711 (not found) replies.
+ * <p>
+ * Settings: users (default 10000), duration_s, messages_per_s, churn_per_s, login_timeout_s.
+ */
+public class PrivateRoutingBenchmark {
+
+    private final static int tick_ms = 10;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder otherErrors = new LongAdder();
+    private final LongAdder churned = new LongAdder();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int userCount = config.intValue("users", 10_000);
+        int durationSeconds = config.intValue("duration_s", 30);
+        int messagesPerSecond = config.intValue("messages_per_s", 5_000);
+        int churnPerSecond = config.intValue("churn_per_s", 50);
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 120));
+
+        PrivateRoutingBenchmark benchmark = new PrivateRoutingBenchmark();
+        try (ChatClientPool pool = ChatClientPool.fromConfig(config.properties())) {
+            SimulatedUsers users = new SimulatedUsers(pool, "pr", benchmark::onMessage);
+            List<SimulatedUsers.User> initial = users.login(userCount, loginTimeout);
+            AtomicReferenceArray<SimulatedUsers.User> slots = new AtomicReferenceArray<>(initial.toArray(new SimulatedUsers.User[0]));
+            System.out.printf("logged in %d of %d users%n", users.loggedInCount(), userCount);
+
+            Thread churn = new Thread(() -> benchmark.churn(users, slots, churnPerSecond, loginTimeout), "churn");
+            churn.setDaemon(true);
+            churn.start();
+            long start = System.nanoTime();
+            benchmark.send(slots, durationSeconds, messagesPerSecond);
+            churn.interrupt();
+            FanoutBenchmark.awaitDelivery(benchmark.delivered, benchmark.accepted.sum(), TimeUnit.SECONDS.toNanos(5));
+            benchmark.print((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    void send(AtomicReferenceArray<SimulatedUsers.User> slots, int durationSeconds, int messagesPerSecond)
+            throws InterruptedException {
+        double perTick = messagesPerSecond * tick_ms / 1000.0;
+        double owed = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+            owed += perTick;
+            for (; owed >= 1; owed--) {
+                SimulatedUsers.User sender = slots.get(random.nextInt(slots.length()));
+                SimulatedUsers.User receiver = slots.get(random.nextInt(slots.length()));
+                if (sender == receiver || !sender.loggedIn()) {
+                    continue;
+                }
+                try {
+                    sender.send(new Private(receiver.username(), sent.sum() + "@" + System.nanoTime()));
+                    sent.increment();
+                } catch (IOException e) {
+                    otherErrors.increment();
+                }
+            }
+            Thread.sleep(tick_ms);
+        }
+    }
+
+    /**
+     * Replaces random users with newly logged in ones, so some messages target users that just left.
+     */
+    void churn(SimulatedUsers users, AtomicReferenceArray<SimulatedUsers.User> slots, int perSecond, Duration loginTimeout) {
+        if (perSecond <= 0) {
+            return;
+        }
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long next = System.nanoTime() + intervalNanos;
+                int slot = random.nextInt(slots.length());
+                slots.get(slot).client().close();
+                slots.set(slot, users.login(1, loginTimeout).get(0));
+                churned.increment();
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            }
+        } catch (IOException e) {
+            System.err.println("Churn stopped: " + e.getMessage());
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void onMessage(SimulatedUsers.User user, Object message) {
+        if (message instanceof Private privateMessage) {
+            long stamp = FanoutBenchmark.stampOf(privateMessage.message());
+            if (stamp != FanoutBenchmark.no_stamp) {
+                latency.record(System.nanoTime() - stamp);
+                delivered.increment();
+            }
+        } else if (message instanceof Response<?> response && "PRIVATE".equals(response.to())) {
+            if (response.status() == 800) {
+                accepted.increment();
+            } else if (response.status() == 711) {
+                notFound.increment();
+            } else {
+                otherErrors.increment();
+            }
+        }
+    }
+
+    private void print(double seconds) {
+        long answered = accepted.sum() + notFound.sum() + otherErrors.sum();
+        System.out.printf("sent              %d (%.0f/s)%n", sent.sum(), sent.sum() / seconds);
+        System.out.printf("delivered         %d (%.0f/s)%n", delivered.sum(), delivered.sum() / seconds);
+        System.out.printf("latency           %s%n", latency.summary());
+        System.out.printf("not found (711)   %d (%.2f%% of replies)%n",
+                notFound.sum(), answered == 0 ? 0 : 100.0 * notFound.sum() / answered);
+        System.out.printf("other errors      %d%n", otherErrors.sum());
+        System.out.printf("users churned     %d%n", churned.sum());
+    }
+}
@@ -0,0 +1,118 @@
+package protocoltests.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import protocoltests.protocol.messages.NotFound;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CPU cost of decoding an error-heavy mix of RESPONSEs (mostly 711 after PRIVATE to users who
+ * left, as seen under churn): typed content decoded in one pass by {@link Utils} against the
+ * former decoding, where the {@link NotFound} arrives as a JSON string in the content and is
+ * parsed a second time. Reports CPU time of the benchmark thread per response and the bytes
+ * per response of each format.
+ * <p>
+ * Settings: responses (per iteration, default 500000), not_found_percent (share of 711 in the
+ * mix, default 70).
+ */
+public class ResponseDecodingBenchmark {
+
+    private final static int warmup_iterations = 5;
+    private final static int measure_iterations = 10;
+    private final static int mix_size = 100;
+
+    private final static ObjectMapper mapper = new ObjectMapper();
+    private final static ObjectReader genericReader = mapper.readerFor(Response.class);
+
+    private static Object sink;
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int responses = config.intValue("responses", 500_000);
+        int notFoundPercent = config.intValue("not_found_percent", 70);
+
+        List<String> typed = new ArrayList<>();
+        List<String> embedded = new ArrayList<>();
+        for (int i = 0; i < mix_size; i++) {
+            Response<?> response = response(i, notFoundPercent);
+            typed.add(Utils.objectToMessage(response));
+            if (response.content() instanceof NotFound notFound) {
+                response = new Response<>(mapper.writeValueAsString(notFound), response.status(), response.to());
+            }
+            embedded.add(Utils.objectToMessage(response));
+        }
+
+        for (boolean twoPass : new boolean[]{true, false}) {
+            String name = twoPass ? "string + parse" : "typed";
+            List<String> mix = twoPass ? embedded : typed;
+            for (int i = 0; i < warmup_iterations; i++) {
+                iteration(mix, responses, twoPass);
+            }
+            double best = Double.MAX_VALUE;
+            double total = 0;
+            for (int i = 0; i < measure_iterations; i++) {
+                double nsPerResponse = iteration(mix, responses, twoPass);
+                best = Math.min(best, nsPerResponse);
+                total += nsPerResponse;
+            }
+            System.out.printf("%-14s cpu avg %8.1f ns/response   best %8.1f ns/response   %6.1f bytes/response%n",
+                    name, total / measure_iterations, best, bytesPerResponse(mix));
+        }
+    }
+
+    /**
+     * The i-th response of the mix: 711 for the given share, the rest split between the
+     * plain "OK", errors without content and a small LIST.
+     */
+    private static Response<?> response(int i, int notFoundPercent) {
+        if (i < notFoundPercent) {
+            return new Response<>(new NotFound("receiver", Usernames.generate("user", i)), 711, "PRIVATE");
+        }
+        return switch (i % 4) {
+            case 0 -> new Response<>("OK", 800, "PRIVATE");
+            case 1 -> new Response<>(null, 710, "LOGIN");
+            case 2 -> new Response<>(null, 822, "PRIVATE");
+            default -> new Response<>(List.of(Usernames.generate("user", 1), Usernames.generate("user", 2)), 800, "LIST");
+        };
+    }
+
+    /**
+     * Decodes the given number of responses and returns the CPU time per response.
+     */
+    private static double iteration(List<String> mix, int responses, boolean twoPass) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < responses; i++) {
+            String message = mix.get(i % mix.size());
+            sink = twoPass ? decodeTwoPass(message) : Utils.<Response<?>>messageToObject(message).content();
+        }
+        return (threads.getCurrentThreadCpuTime() - start) / (double) responses;
+    }
+
+    /**
+     * The former way: generic content, and the JSON of a 711 parsed again from the string.
+     */
+    private static Object decodeTwoPass(String message) throws IOException {
+        Response<?> response = genericReader.readValue(message.substring(message.indexOf(' ') + 1));
+        if (response.status() == 711) {
+            return mapper.readValue((String) response.content(), NotFound.class);
+        }
+        return response.content();
+    }
+
+    private static double bytesPerResponse(List<String> mix) {
+        long bytes = 0;
+        for (String message : mix) {
+            bytes += message.length() + 1;
+        }
+        return bytes / (double) mix.size();
+    }
+}
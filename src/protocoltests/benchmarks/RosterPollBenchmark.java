@@ -0,0 +1,124 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.ListSince;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.messages.RosterDelta;
+import protocoltests.protocol.utils.FrameDecoder;
+import protocoltests.protocol.utils.LatencyHistogram;
+import protocoltests.protocol.utils.ListDecoder;
+import protocoltests.protocol.utils.Utils;
+import protocoltests.server.ReferenceServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Polling the roster with the full LIST against {@code LIST {"since":v}} on a large, slowly
+ * changing population: between two polls some users disconnect and new ones log in, then an
+ * observer asks for both replies. Reports latency and reply size of each.
+ * <p>
+ * Runs against the configured server, or an in-process {@link ReferenceServer} with
+ * {@code -Dserver=embedded}; add {@code -Dpresence=batched -Dwrite_coalescing=true} there, or the
+ * ARRIVED storm of the initial logins disconnects users as slow consumers. See {@link ListBenchmark}
+ * about ephemeral ports for large populations. Settings: users (default 50000), polls (default 50), changes_per_poll
+ * (default 10), login_timeout_s.
+ */
+public class RosterPollBenchmark {
+
+    private final static byte[] list_command = "LIST\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkConfig config = new BenchmarkConfig();
+        int userCount = config.intValue("users", 50_000);
+        int polls = config.intValue("polls", 50);
+        int changesPerPoll = config.intValue("changes_per_poll", 10);
+        Duration loginTimeout = Duration.ofSeconds(config.intValue("login_timeout_s", 300));
+
+        Properties props = config.properties();
+        ReferenceServer server = ReferenceServer.startIfConfigured(props);
+        try (ChatClientPool pool = ChatClientPool.fromConfig(props);
+             Socket observer = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")))) {
+            SimulatedUsers users = new SimulatedUsers(pool, "rp", (user, message) -> {
+            });
+            users.login(userCount, loginTimeout);
+            System.out.printf("logged in %d of %d users%n", users.loggedInCount(), userCount);
+
+            InputStream in = observer.getInputStream();
+            OutputStream out = observer.getOutputStream();
+            FrameDecoder decoder = new FrameDecoder();
+            int[] lastFrameLength = new int[1];
+            FrameDecoder.FrameReader<ListDecoder.UserList> fullReader = (frame, offset, length) -> {
+                if (!ListDecoder.isResponse(frame, offset, length)) {
+                    return null; // GREET
+                }
+                lastFrameLength[0] = length;
+                return ListDecoder.decode(frame, offset, length);
+            };
+            FrameDecoder.FrameReader<Response<?>> sinceReader = (frame, offset, length) -> {
+                if (!ListDecoder.isResponse(frame, offset, length)) {
+                    return null; // GREET
+                }
+                lastFrameLength[0] = length;
+                return Utils.frameToObject(frame, offset, length);
+            };
+
+            LatencyHistogram fullLatency = new LatencyHistogram();
+            LatencyHistogram sinceLatency = new LatencyHistogram();
+            long fullBytes = 0;
+            long sinceBytes = 0;
+            long changes = 0;
+            int listed = 0;
+            out.write(Utils.objectToFrame(new ListSince(0)));
+            long version = ((RosterDelta) decoder.read(in, sinceReader).content()).version();
+
+            for (int poll = 0; poll < polls; poll++) {
+                churn(users, changesPerPoll, loginTimeout);
+
+                long start = System.nanoTime();
+                out.write(list_command);
+                listed = decoder.read(in, fullReader).users().size();
+                fullLatency.record(System.nanoTime() - start);
+                fullBytes += lastFrameLength[0];
+
+                start = System.nanoTime();
+                out.write(Utils.objectToFrame(new ListSince(version)));
+                RosterDelta delta = (RosterDelta) decoder.read(in, sinceReader).content();
+                sinceLatency.record(System.nanoTime() - start);
+                sinceBytes += lastFrameLength[0];
+                changes += delta.joined().size() + delta.left().size();
+                version = delta.version();
+            }
+            System.out.printf("full LIST   %s  %9.1f bytes/poll  (%d users)%n", fullLatency.summary(), fullBytes / (double) polls, listed);
+            System.out.printf("LIST since  %s  %9.1f bytes/poll  (%.1f changes/poll)%n", sinceLatency.summary(),
+                    sinceBytes / (double) polls, changes / (double) polls);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Disconnects half the given number of random users and logs in as many new ones.
+     */
+    private static void churn(SimulatedUsers users, int changes, Duration loginTimeout) throws IOException, InterruptedException {
+        List<SimulatedUsers.User> all = users.users();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int closed = 0; closed < changes / 2; ) {
+            SimulatedUsers.User user = all.get(random.nextInt(all.size()));
+            if (user.loggedIn()) {
+                user.client().close();
+                closed++;
+            }
+        }
+        users.login(changes - changes / 2, loginTimeout);
+    }
+}
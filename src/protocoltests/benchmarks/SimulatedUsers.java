@@ -0,0 +1,132 @@
+package protocoltests.benchmarks;
+
+import protocoltests.protocol.client.ChatClientPool;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group of simulated users on a {@link ChatClientPool} that log themselves in as soon as
+ * the server greets them and answer every PING. Every message (including the ones handled
+ * here) is passed on to the benchmark's handler on the selector thread.
+ */
+public class SimulatedUsers {
+
+    private final ChatClientPool pool;
+    private final String prefix;
+    private final Handler handler;
+    private final List<User> users = new ArrayList<>();
+
+    public SimulatedUsers(ChatClientPool pool, String prefix, Handler handler) {
+        this.pool = pool;
+        this.prefix = prefix;
+        this.handler = handler;
+    }
+
+    /**
+     * Connects the given number of additional users and waits until the server answered
+     * all their logins. Returns the new users; check {@link User#loggedIn()} for failures.
+     */
+    public List<User> login(int count, Duration timeout) throws IOException, InterruptedException {
+        CountDownLatch answered = new CountDownLatch(count);
+        List<User> added = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User(Usernames.generate(prefix, users.size()), answered);
+            users.add(user);
+            added.add(user);
+            user.connectedAt = System.nanoTime();
+            user.client = pool.connect(user);
+        }
+        if (!answered.await(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            System.err.println("Not all of " + count + " users logged in within " + timeout.toSeconds() + " s");
+        }
+        return added;
+    }
+
+    public List<User> users() {
+        return users;
+    }
+
+    public int loggedInCount() {
+        int count = 0;
+        for (User user : users) {
+            if (user.loggedIn) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public interface Handler {
+        void onMessage(User user, Object message) throws IOException;
+    }
+
+    public class User implements ChatClientPool.MessageListener {
+
+        private final String username;
+        private final CountDownLatch answered;
+        private volatile ChatClientPool.Client client;
+        private volatile boolean loggedIn;
+        private boolean loginAnswered;
+        private long connectedAt;
+        private volatile long welcomedAt;
+        private volatile long loggedInAt;
+
+        private User(String username, CountDownLatch answered) {
+            this.username = username;
+            this.answered = answered;
+        }
+
+        public String username() {
+            return username;
+        }
+
+        public ChatClientPool.Client client() {
+            return client;
+        }
+
+        public boolean loggedIn() {
+            return loggedIn && !client.isClosed();
+        }
+
+        /**
+         * Nanoseconds from starting the connect until the GREET arrived.
+         */
+        public long timeToWelcome() {
+            return welcomedAt - connectedAt;
+        }
+
+        /**
+         * Nanoseconds from starting the connect until the login was confirmed.
+         */
+        public long timeToLogin() {
+            return loggedInAt - connectedAt;
+        }
+
+        public void send(Object message) throws IOException {
+            client.send(message);
+        }
+
+        @Override
+        public void onMessage(ChatClientPool.Client client, Object message) throws IOException {
+            if (message instanceof Welcome) {
+                welcomedAt = System.nanoTime();
+                client.send(new Login(username));
+            } else if (message instanceof Ping) {
+                client.send(new Pong());
+            } else if (message instanceof Response<?> response && "LOGIN".equals(response.to()) && !loginAnswered) {
+                loginAnswered = true;
+                loggedInAt = System.nanoTime();
+                loggedIn = response.status() == 800;
+                answered.countDown();
+            }
+            handler.onMessage(this, message);
+        }
+    }
+}
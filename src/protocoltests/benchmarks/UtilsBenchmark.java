@@ -0,0 +1,167 @@
+package protocoltests.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the current {@link Utils} codec against the original implementation
+ * (linear header scan, per call serializer lookup). Run as a plain main; there is
+ * no JMH on the classpath, so warmup and measurement iterations are done by hand.
+ */
+public class UtilsBenchmark {
+
+    private final static int warmup_iterations = 5;
+    private final static int measure_iterations = 10;
+    private final static int ops_per_iteration = 200_000;
+
+    private final static List<String> lines = List.of(
+            "GREET {\"message\":\"Welcome to the chatroom! Please login to start chatting!\"}",
+            "RESPONSE {\"content\":\"OK\",\"status\":800,\"to\":\"LOGIN\"}",
+            "BROADCAST {\"username\":\"user1\",\"message\":\"messagefromuser1\"}",
+            "PRIVATE {\"username\":\"user1\",\"message\":\"howdy\"}",
+            "ARRIVED {\"message\":\"user2\"}",
+            "LEFT {\"username\":\"user2\"}",
+            "PING"
+    );
+
+    private final static List<Object> objects = List.of(
+            new Login("myname"),
+            new Broadcast("", "messagefromuser1"),
+            new Private("user2", "howdy"),
+            new Pong()
+    );
+
+    private static Object sink;
+
+    public static void main(String[] args) throws IOException {
+        byte[][] frames = lines.stream().map(l -> l.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        for (String line : lines) {
+            Object legacy = Legacy.messageToObject(line);
+            Object current = Utils.messageToObject(line);
+            if (!legacy.equals(current)) {
+                throw new IllegalStateException("Decoders disagree on " + line + ": " + legacy + " vs " + current);
+            }
+        }
+
+        run("messageToObject (legacy)", i -> Legacy.messageToObject(lines.get(i % lines.size())));
+        run("messageToObject (current)", i -> Utils.messageToObject(lines.get(i % lines.size())));
+        run("frameToObject", i -> {
+            byte[] frame = frames[i % frames.length];
+            return Utils.frameToObject(frame, 0, frame.length);
+        });
+        int[] headerLengths = new int[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            String line = lines.get(i);
+            headerLengths[i] = line.indexOf(' ') < 0 ? line.length() : line.indexOf(' ');
+        }
+        run("header lookup (linear scan)", i -> Legacy.classOfHeader(frames[i % frames.length], 0, headerLengths[i % frames.length]));
+        run("header lookup (hashed)", i -> Utils.classOfHeader(frames[i % frames.length], 0, headerLengths[i % frames.length]));
+        run("objectToMessage (legacy)", i -> Legacy.objectToMessage(objects.get(i % objects.size())));
+        run("objectToMessage (current)", i -> Utils.objectToMessage(objects.get(i % objects.size())));
+    }
+
+    private static void run(String name, Operation operation) throws IOException {
+        for (int i = 0; i < warmup_iterations; i++) {
+            iteration(operation);
+        }
+        double best = Double.MAX_VALUE;
+        double total = 0;
+        for (int i = 0; i < measure_iterations; i++) {
+            double nsPerOp = iteration(operation);
+            best = Math.min(best, nsPerOp);
+            total += nsPerOp;
+        }
+        System.out.printf("%-28s avg %8.1f ns/op   best %8.1f ns/op%n", name, total / measure_iterations, best);
+    }
+
+    private static double iteration(Operation operation) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < ops_per_iteration; i++) {
+            sink = operation.apply(i);
+        }
+        return (System.nanoTime() - start) / (double) ops_per_iteration;
+    }
+
+    private interface Operation {
+        Object apply(int i) throws IOException;
+    }
+
+    /**
+     * The codec as it was before the reverse index and cached readers were added, and the
+     * header scan frameToObject used before the hashed lookup (over every header of today).
+     */
+    private static class Legacy {
+
+        private final static ObjectMapper mapper = new ObjectMapper();
+        private final static Map<Class<?>, String> objToNameMapping = new HashMap<>();
+        private final static List<byte[]> headerBytes = new ArrayList<>();
+        private final static List<Class<?>> headerClasses = new ArrayList<>();
+
+        static {
+            objToNameMapping.put(Response.class, "RESPONSE");
+            objToNameMapping.put(Welcome.class, "GREET");
+            objToNameMapping.put(Login.class, "LOGIN");
+            objToNameMapping.put(Arrived.class, "ARRIVED");
+            objToNameMapping.put(Broadcast.class, "BROADCAST");
+            objToNameMapping.put(Pong.class, "PONG");
+            objToNameMapping.put(Ping.class, "PING");
+            objToNameMapping.put(Disconnected.class, "DISCONNECTED");
+            objToNameMapping.put(Left.class, "LEFT");
+            objToNameMapping.put(Private.class, "PRIVATE");
+            objToNameMapping.put(ParseError.class, "PARSE_ERROR");
+            objToNameMapping.put(PongError.class, "PONG_ERROR");
+
+            String header;
+            for (byte opcode = 1; (header = Utils.headerOf(opcode)) != null; opcode++) {
+                byte[] bytes = header.getBytes(StandardCharsets.US_ASCII);
+                try {
+                    headerClasses.add(Utils.classOfHeader(bytes, 0, bytes.length));
+                    headerBytes.add(bytes);
+                } catch (RuntimeException e) {
+                    // Commands without a message class, e.g. METRICS
+                }
+            }
+        }
+
+        static Class<?> classOfHeader(byte[] frame, int offset, int length) {
+            for (int i = 0; i < headerBytes.size(); i++) {
+                byte[] candidate = headerBytes.get(i);
+                if (candidate.length == length && Arrays.equals(candidate, 0, length, frame, offset, offset + length)) {
+                    return headerClasses.get(i);
+                }
+            }
+            throw new RuntimeException("Cannot find class belonging to header "
+                    + new String(frame, offset, length, StandardCharsets.UTF_8));
+        }
+
+        static String objectToMessage(Object object) throws JsonProcessingException {
+            String header = objToNameMapping.get(object.getClass());
+            if (header == null) {
+                throw new RuntimeException("Cannot convert this class to a message");
+            }
+            return header + " " + mapper.writeValueAsString(object);
+        }
+
+        static Object messageToObject(String message) throws JsonProcessingException {
+            String[] parts = message.split(" ", 2);
+            String header = parts[0];
+            String body = parts.length == 2 ? parts[1] : "{}";
+            Class<?> clazz = objToNameMapping.entrySet().stream()
+                    .filter(e -> e.getValue().equals(header))
+                    .map(Map.Entry::getKey)
+                    .findFirst()
+                    .orElseThrow(() -> new RuntimeException("Cannot find class belonging to header " + header));
+            return clazz.cast(mapper.readValue(body, clazz));
+        }
+    }
+}
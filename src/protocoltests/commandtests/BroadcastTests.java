@@ -1,105 +1,233 @@
 package protocoltests.commandtests;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import protocoltests.TestConfig;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.client.Pipeline;
 import protocoltests.protocol.messages.Broadcast;
 import protocoltests.protocol.messages.Login;
 import protocoltests.protocol.messages.Response;
-import protocoltests.protocol.utils.Utils;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
 
 import java.io.*;
-import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
-import static java.time.Duration.from;
 import static java.time.Duration.ofMillis;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class BroadcastTests {
-    private static Properties props = new Properties();
+    private static Properties props;
+    private static ReferenceServer server;
 
-    private Socket socketUser1, socketUser2;
-    private BufferedReader inUser1, inUser2;
-    private PrintWriter outUser1, outUser2;
+    private ChatConnection user1, user2;
+    private final String name1 = Usernames.unique("user"), name2 = Usernames.unique("user");
 
     private final static int max_delta_allowed_ms = 100;
+    private final static int burst_size = 200;
+    private final static int burst_timeout_ms = 1000;
 
     @BeforeAll
     static void setupAll() throws IOException {
-        InputStream in = BroadcastTests.class.getResourceAsStream("../testconfig.properties");
-        props.load(in);
-        in.close();
+        props = TestConfig.load(BroadcastTests.class);
+        server = ReferenceServer.startIfConfigured(props);
     }
 
     @BeforeEach
     void setup() throws IOException {
-        socketUser1 = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        inUser1 = new BufferedReader(new InputStreamReader(socketUser1.getInputStream()));
-        outUser1 = new PrintWriter(socketUser1.getOutputStream(), true);
-
-        socketUser2 = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        inUser2 = new BufferedReader(new InputStreamReader(socketUser2.getInputStream()));
-        outUser2 = new PrintWriter(socketUser2.getOutputStream(), true);
+        user1 = ChatConnection.fromConfig(props);
+        user2 = ChatConnection.fromConfig(props);
     }
 
     @AfterEach
     void cleanup() throws IOException {
-        socketUser1.close();
-        socketUser2.close();
+        user1.close();
+        user2.close();
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
     }
 
     @Test
     void TC3_2_broadcastMessageIsReceivedByOtherConnectedClients() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); // WELCOME
-        receiveLineWithTimeout(inUser2); // WELCOME
+        receiveMessageWithTimeout(user1); // WELCOME
+        receiveMessageWithTimeout(user2); // WELCOME
 
         // Connect user1
-        outUser1.println(Utils.objectToMessage(new Login("user1")));
-        outUser1.flush();
-        receiveLineWithTimeout(inUser1); // OK
+        user1.send(new Login(name1));
+        receiveMessageWithTimeout(user1); // OK
 
         // Connect user2
-        outUser2.println(Utils.objectToMessage(new Login("user2")));
-        outUser2.flush();
-        receiveLineWithTimeout(inUser2); // OK
-        receiveLineWithTimeout(inUser1); // U2 JOINED
+        user2.send(new Login(name2));
+        receiveMessageWithTimeout(user2); // OK
+        receiveMessageWithTimeout(user1); // U2 JOINED
 
         //send BROADCAST from user 1
-        outUser1.println(Utils.objectToMessage(new Broadcast("", "messagefromuser1")));
-        outUser1.flush();
-        String fromUser1 = receiveLineWithTimeout(inUser1);
-        Response<String> broadcastResp1 = Utils.messageToObject(fromUser1);
+        user1.send(new Broadcast("", "messagefromuser1"));
+        Response<String> broadcastResp1 = receiveMessageWithTimeout(user1);
 
         assertEquals(800, broadcastResp1.status());
         assertEquals("OK", broadcastResp1.content());
         assertEquals("BROADCAST", broadcastResp1.to());
 
-        String fromUser2 = receiveLineWithTimeout(inUser2);
-        System.out.println(fromUser2);
-        Broadcast broadcast2 = Utils.messageToObject(fromUser2);
-        assertEquals(new Broadcast("user1", "messagefromuser1"), broadcast2);
+        Broadcast broadcast2 = receiveMessageWithTimeout(user2);
+        System.out.println(broadcast2);
+        assertEquals(new Broadcast(name1, "messagefromuser1"), broadcast2);
 
         //send BROADCAST from user 2
-        outUser2.println(Utils.objectToMessage(new Broadcast("", "messagefromuser2")));
-        outUser2.flush();
-        fromUser2 = receiveLineWithTimeout(inUser2);
-        Response<String> broadcastResp2 = Utils.messageToObject(fromUser2);
+        user2.send(new Broadcast("", "messagefromuser2"));
+        Response<String> broadcastResp2 = receiveMessageWithTimeout(user2);
         assertEquals(800, broadcastResp2.status());
         assertEquals("OK", broadcastResp2.content());
         assertEquals("BROADCAST", broadcastResp2.to());
 
-        fromUser1 = receiveLineWithTimeout(inUser1);
-        System.out.println(fromUser1);
-        Broadcast broadcast1 = Utils.messageToObject(fromUser1);
-        assertEquals(new Broadcast("user2", "messagefromuser2"), broadcast1);
+        Broadcast broadcast1 = receiveMessageWithTimeout(user1);
+        System.out.println(broadcast1);
+        assertEquals(new Broadcast(name2, "messagefromuser2"), broadcast1);
+    }
+
+    @Test
+    void TC3_3_broadcastsKeepTheirOrderPerSender() throws IOException {
+        try (ChatConnection user3 = ChatConnection.fromConfig(props)) {
+            String name3 = Usernames.unique("user");
+            receiveMessageWithTimeout(user1); // WELCOME
+            receiveMessageWithTimeout(user2); // WELCOME
+            receiveMessageWithTimeout(user3); // WELCOME
+            user2.send(new Login(name2));
+            receiveMessageWithTimeout(user2); // OK
+            user1.send(new Login(name1));
+            receiveMessageWithTimeout(user1); // OK
+            receiveMessageWithTimeout(user2); // U1 JOINED
+            user3.send(new Login(name3));
+            receiveMessageWithTimeout(user3); // OK
+            receiveMessageWithTimeout(user1); // U3 JOINED
+            receiveMessageWithTimeout(user2); // U3 JOINED
+
+            // Two senders burst at the same time, user2 must see each sender's messages in order
+            Pipeline burst1 = new Pipeline(user1);
+            Pipeline burst3 = new Pipeline(user3);
+            for (int i = 0; i < burst_size; i++) {
+                burst1.add(new Broadcast("", String.valueOf(i)));
+                burst3.add(new Broadcast("", String.valueOf(i)));
+            }
+            burst1.write();
+            burst3.write();
+            assertInOrderPerSender(user2, Map.of(name1, burst_size, name3, burst_size));
+        }
+    }
+
+    @Test
+    void TC3_4_coalescedWritesKeepOrderAndNeedFewerWrites(TestReporter testReporter) throws IOException {
+        // Compares the reference server's write strategies, so it says nothing about an external server
+        assumeTrue(server != null, "Tests the reference server only (server=embedded)");
+        Properties direct = new Properties();
+        direct.putAll(props);
+        direct.setProperty("write_coalescing", "false");
+        Properties coalesced = new Properties();
+        coalesced.putAll(props);
+        coalesced.setProperty("write_coalescing", "true");
+        coalesced.setProperty("flush_window_ms", "1");
+
+        long directWrites = writesForBurst(direct, testReporter);
+        long coalescedWrites = writesForBurst(coalesced, testReporter);
+        assertTrue(coalescedWrites < directWrites,
+                "coalesced " + coalescedWrites + " writes, direct " + directWrites + " writes");
+    }
+
+    /**
+     * Lets two senders burst to three receivers on a fresh reference server and returns the
+     * number of socket writes the server needed.
+     */
+    private long writesForBurst(Properties settings, TestReporter testReporter) throws IOException {
+        try (ReferenceServer local = new ReferenceServer(0, settings)) {
+            ChatConnection[] connections = new ChatConnection[5];
+            String[] names = new String[connections.length];
+            try {
+                for (int i = 0; i < connections.length; i++) {
+                    connections[i] = new ChatConnection("127.0.0.1", local.port());
+                    names[i] = Usernames.unique("user");
+                    receiveMessageWithTimeout(connections[i]); // WELCOME
+                    connections[i].send(new Login(names[i]));
+                    receiveMessageWithTimeout(connections[i]); // OK
+                    for (int j = 0; j < i; j++) {
+                        receiveMessageWithTimeout(connections[j]); // JOINED
+                    }
+                }
+
+                long writesBefore = local.writeCalls();
+                long start = System.nanoTime();
+                Pipeline burst0 = new Pipeline(connections[0]);
+                Pipeline burst1 = new Pipeline(connections[1]);
+                for (int i = 0; i < burst_size; i++) {
+                    burst0.add(new Broadcast("", String.valueOf(i)));
+                    burst1.add(new Broadcast("", String.valueOf(i)));
+                }
+                burst0.write();
+                burst1.write();
+                for (int i = 2; i < connections.length; i++) {
+                    assertInOrderPerSender(connections[i], Map.of(names[0], burst_size, names[1], burst_size));
+                }
+                long elapsedNanos = System.nanoTime() - start;
+                long writes = local.writeCalls() - writesBefore;
+                String mode = Boolean.parseBoolean(settings.getProperty("write_coalescing")) ? "coalesced" : "direct";
+                testReporter.publishEntry(mode + ".writes", String.valueOf(writes));
+                testReporter.publishEntry(mode + ".writesPerSecond", String.valueOf(writes * 1_000_000_000L / elapsedNanos));
+                testReporter.publishEntry(mode + ".broadcastsPerSecond",
+                        String.valueOf(2L * burst_size * 1_000_000_000L / elapsedNanos));
+                return writes;
+            } finally {
+                for (ChatConnection connection : connections) {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the expected number of broadcasts per sender (the message is the sequence
+     * number) and checks that every sender's messages arrive in the order they were sent.
+     * Responses to the receiver's own commands are skipped.
+     */
+    private void assertInOrderPerSender(ChatConnection receiver, Map<String, Integer> expected) {
+        Map<String, Integer> next = new HashMap<>();
+        int remaining = expected.values().stream().mapToInt(Integer::intValue).sum();
+        while (remaining > 0) {
+            Object message = receiver.receive(ofMillis(burst_timeout_ms));
+            if (message == null) {
+                fail(remaining + " broadcasts not received within " + burst_timeout_ms + " ms");
+            }
+            if (message instanceof Broadcast broadcast && expected.containsKey(broadcast.username())) {
+                int sequence = next.getOrDefault(broadcast.username(), 0);
+                assertEquals(String.valueOf(sequence), broadcast.message(), "out of order from " + broadcast.username());
+                next.put(broadcast.username(), sequence + 1);
+                remaining--;
+            }
+        }
     }
 
-    private String receiveLineWithTimeout(BufferedReader reader) {
-        return assertTimeoutPreemptively(ofMillis(max_delta_allowed_ms), reader::readLine);
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
     }
 
 }
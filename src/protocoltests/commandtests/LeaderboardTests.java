@@ -0,0 +1,151 @@
+package protocoltests.commandtests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import protocoltests.TestConfig;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
+
+import java.io.*;
+import java.util.*;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class LeaderboardTests {
+
+    private static Properties props;
+    private static ReferenceServer server;
+    private final static int max_delta_allowed_ms = 1000;
+
+    private ChatConnection s1, s2;
+    private final String name1 = Usernames.unique("user"), name2 = Usernames.unique("user");
+    private final String lobby = Usernames.unique("lobby");
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(LeaderboardTests.class);
+        server = ReferenceServer.startIfConfigured(props);
+    }
+
+    @BeforeEach
+    void setup() throws IOException {
+        s1 = ChatConnection.fromConfig(props);
+        s2 = ChatConnection.fromConfig(props);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        s1.close();
+        s2.close();
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void TC11_1_leaderboardIsRankedByScore() throws JsonProcessingException {
+        login();
+        score(s1, 5);
+        score(s2, 3);
+        score(s2, 4);
+
+        Leaderboard leaderboard = leaderboard(s1);
+        assertEquals(lobby, leaderboard.lobby());
+        assertArrayEquals(new String[]{name2, name1}, leaderboard.usernames());
+        assertArrayEquals(new int[]{7, 5}, leaderboard.scores());
+    }
+
+    @Test
+    void TC11_2_subscriberReceivesChangesAsUpdates() throws JsonProcessingException {
+        login();
+        Leaderboard empty = leaderboard(s1);
+        assertEquals(0, empty.usernames().length);
+
+        score(s2, 10);
+        LeaderboardUpdate update = receive(s1, LeaderboardUpdate.class);
+        assertEquals(lobby, update.lobby());
+        assertArrayEquals(new String[]{name2}, update.usernames());
+        assertArrayEquals(new int[]{10}, update.scores());
+        assertEquals(0, update.removed().length);
+    }
+
+    @Test
+    void TC11_3_scoreAndLeaderboardRequireLoginAndLobby() throws JsonProcessingException {
+        receiveMessageWithTimeout(s1); // WELCOME
+        s1.send(new Score(lobby, 1));
+        Object reply = receiveMessageWithTimeout(s1);
+        assumeTrue(reply instanceof Response<?>, "Server does not support leaderboards");
+        assertEquals(710, ((Response<?>) reply).status());
+        s1.send(new Leaderboard(lobby, null, null));
+        Response<String> notLoggedIn = receiveMessageWithTimeout(s1);
+        assertEquals(710, notLoggedIn.status());
+        assertEquals("LOGIN", notLoggedIn.to());
+
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+        s1.send(new Score("", 1));
+        Response<String> noLobby = receiveMessageWithTimeout(s1);
+        assertEquals(850, noLobby.status());
+        assertEquals("SCORE", noLobby.to());
+        s1.send(new Leaderboard("", null, null));
+        Response<String> noLeaderboardLobby = receiveMessageWithTimeout(s1);
+        assertEquals(850, noLeaderboardLobby.status());
+        assertEquals("LEADERBOARD", noLeaderboardLobby.to());
+    }
+
+    private void login() throws JsonProcessingException {
+        receiveMessageWithTimeout(s1); // WELCOME
+        receiveMessageWithTimeout(s2); // WELCOME
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+        s2.send(new Login(name2));
+        receiveMessageWithTimeout(s2); // OK
+        receiveMessageWithTimeout(s1); // U2 IS HERE
+    }
+
+    private void score(ChatConnection connection, int points) throws JsonProcessingException {
+        connection.send(new Score(lobby, points));
+        Object reply = receiveMessageWithTimeout(connection);
+        assumeTrue(reply instanceof Response<?> response && response.status() == 800 && "SCORE".equals(response.to()),
+                "Server does not support leaderboards");
+    }
+
+    private Leaderboard leaderboard(ChatConnection connection) throws JsonProcessingException {
+        connection.send(new Leaderboard(lobby, null, null));
+        Object reply = receiveMessageWithTimeout(connection);
+        assumeTrue(reply instanceof Leaderboard, "Server does not support leaderboards");
+        return (Leaderboard) reply;
+    }
+
+    /**
+     * Receives messages until one of the given type arrives.
+     */
+    private <T> T receive(ChatConnection connection, Class<T> type) {
+        while (true) {
+            Object message = receiveMessageWithTimeout(connection);
+            if (type.isInstance(message)) {
+                return type.cast(message);
+            }
+        }
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+}
@@ -1,56 +1,53 @@
 package protocoltests.commandtests;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import protocoltests.TestConfig;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.messages.Left;
+import protocoltests.protocol.messages.ListSince;
 import protocoltests.protocol.messages.Login;
 import protocoltests.protocol.messages.Response;
-import protocoltests.protocol.utils.Utils;
+import protocoltests.protocol.messages.RosterDelta;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
 
 import java.io.*;
 import java.util.*;
-import java.net.Socket;
 
 import static java.time.Duration.ofMillis;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class ListTests {
 
-    private static Properties props = new Properties();
+    private static Properties props;
+    private static ReferenceServer server;
     private static int ping_time_ms;
     private static int ping_time_ms_delta_allowed;
     private final static int max_delta_allowed_ms = 300;
 
-    private Socket s1, s2, s3;
-    private BufferedReader in1, in2, in3;
-    private PrintWriter out1, out2, out3;
+    private ChatConnection s1, s2, s3;
+    private final String name1 = Usernames.unique("user"), name2 = Usernames.unique("user"), name3 = Usernames.unique("user");
 
     @BeforeAll
     static void setupAll() throws IOException {
-        InputStream in = ListTests.class.getResourceAsStream("../testconfig.properties");
-        props.load(in);
-        assert in != null;
-        in.close();
+        props = TestConfig.load(ListTests.class);
 
         ping_time_ms = Integer.parseInt(props.getProperty("ping_time_ms", "10000"));
         ping_time_ms_delta_allowed = Integer.parseInt(props.getProperty("ping_time_ms_delta_allowed", "100"));
+        server = ReferenceServer.startIfConfigured(props);
     }
 
     @BeforeEach
     void setup() throws IOException {
-        s1 = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        in1 = new BufferedReader(new InputStreamReader(s1.getInputStream()));
-        out1 = new PrintWriter(s1.getOutputStream(), true);
-
-        s2 = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        in2 = new BufferedReader(new InputStreamReader(s2.getInputStream()));
-        out2 = new PrintWriter(s2.getOutputStream(), true);
-
-        s3 = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        in3 = new BufferedReader(new InputStreamReader(s3.getInputStream()));
-        out3 = new PrintWriter(s3.getOutputStream(), true);
+        s1 = ChatConnection.fromConfig(props);
+        s2 = ChatConnection.fromConfig(props);
+        s3 = ChatConnection.fromConfig(props);
     }
 
     @AfterEach
@@ -60,72 +57,158 @@ class ListTests {
         s3.close();
     }
 
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
 
     @Test
     void TC6_1_correctListOfUsersIsReceived() throws JsonProcessingException {
-        receiveLineWithTimeout(in1); // WELCOME
-        receiveLineWithTimeout(in2); // WELCOME
-        receiveLineWithTimeout(in3); // WELCOME
-
-        out1.println(Utils.objectToMessage(new Login("user1")));
-        out1.flush();
-        receiveLineWithTimeout(in1); // OK
-
-        out2.println(Utils.objectToMessage(new Login("user2")));
-        out2.flush();
-        receiveLineWithTimeout(in2); // OK
-        receiveLineWithTimeout(in1); // U2 IS HERE
-
-        out3.println(Utils.objectToMessage(new Login("user3")));
-        out3.flush();
-        receiveLineWithTimeout(in3); // OK
-        receiveLineWithTimeout(in1); // U3 IS HERE
-        receiveLineWithTimeout(in2); // U3 IS HERE
-
-        out1.println("LIST");
-        out1.flush();
-        Response<List<String>> res = Utils.messageToObject(receiveLineWithTimeout(in1));
-        assertTrue(res.content().contains("user3"));
-        assertTrue(res.content().contains("user2"));
+        receiveMessageWithTimeout(s1); // WELCOME
+        receiveMessageWithTimeout(s2); // WELCOME
+        receiveMessageWithTimeout(s3); // WELCOME
+
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+
+        s2.send(new Login(name2));
+        receiveMessageWithTimeout(s2); // OK
+        receiveMessageWithTimeout(s1); // U2 IS HERE
+
+        s3.send(new Login(name3));
+        receiveMessageWithTimeout(s3); // OK
+        receiveMessageWithTimeout(s1); // U3 IS HERE
+        receiveMessageWithTimeout(s2); // U3 IS HERE
+
+        s1.sendCommand("LIST");
+        Response<List<String>> res = receiveMessageWithTimeout(s1);
+        assertTrue(res.content().contains(name3));
+        assertTrue(res.content().contains(name2));
     }
 
     @Test
     void TC6_2_notLoggedInUserCanSeeActiveUsersList() throws JsonProcessingException {
-        receiveLineWithTimeout(in1); // WELCOME
-        receiveLineWithTimeout(in2); // WELCOME
-        receiveLineWithTimeout(in3); // WELCOME
-
-        out2.println(Utils.objectToMessage(new Login("user2")));
-        out2.flush();
-        receiveLineWithTimeout(in2); // OK
-
-        out3.println(Utils.objectToMessage(new Login("user3")));
-        out3.flush();
-        receiveLineWithTimeout(in3); // OK
-        receiveLineWithTimeout(in2); // U3 IS HERE
-
-        out1.println("LIST");
-        out1.flush();
-        Response<List<String>> res = Utils.messageToObject(receiveLineWithTimeout(in1));
+        receiveMessageWithTimeout(s1); // WELCOME
+        receiveMessageWithTimeout(s2); // WELCOME
+        receiveMessageWithTimeout(s3); // WELCOME
+
+        s2.send(new Login(name2));
+        receiveMessageWithTimeout(s2); // OK
+
+        s3.send(new Login(name3));
+        receiveMessageWithTimeout(s3); // OK
+        receiveMessageWithTimeout(s2); // U3 IS HERE
+
+        s1.sendCommand("LIST");
+        Response<List<String>> res = receiveMessageWithTimeout(s1);
         assertEquals("LIST", res.to());
         assertEquals(800, res.status());
-        assertTrue(res.content().contains("user3"));
-        assertTrue(res.content().contains("user2"));
+        assertTrue(res.content().contains(name3));
+        assertTrue(res.content().contains(name2));
     }
 
     @Test
     void TC6_3_ifUserAloneReturnEmptyList() throws JsonProcessingException {
-        receiveLineWithTimeout(in1); // WELCOME
+        receiveMessageWithTimeout(s1); // WELCOME
 
-        out1.println("LIST");
-        out1.flush();
-        Response<List<String>> res = Utils.messageToObject(receiveLineWithTimeout(in1));
+        s1.sendCommand("LIST");
+        Response<List<String>> res = receiveMessageWithTimeout(s1);
         assertEquals("LIST", res.to());
         assertEquals(800, res.status());
         assertEquals(List.of(), res.content());
     }
 
-    private String receiveLineWithTimeout(BufferedReader reader) {
-        return assertTimeoutPreemptively(ofMillis(max_delta_allowed_ms), reader::readLine);
+    @Test
+    void TC6_4_listSinceReturnsOnlyLoginsAndDisconnectsAfterThatVersion() throws IOException {
+        receiveMessageWithTimeout(s1); // WELCOME
+        receiveMessageWithTimeout(s2); // WELCOME
+        receiveMessageWithTimeout(s3); // WELCOME
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+        RosterDelta initial = listSince(s1, 0);
+        assertTrue(initial.full());
+        assertFalse(initial.joined().contains(name1));
+
+        s2.send(new Login(name2));
+        receiveMessageWithTimeout(s2); // OK
+        receiveMessageWithTimeout(s1); // U2 IS HERE
+        s3.send(new Login(name3));
+        receiveMessageWithTimeout(s3); // OK
+        receiveMessageWithTimeout(s1); // U3 IS HERE
+
+        RosterDelta afterLogins = listSince(s1, initial.version());
+        assertFalse(afterLogins.full());
+        assertTrue(afterLogins.version() > initial.version());
+        assertTrue(afterLogins.joined().containsAll(List.of(name2, name3)));
+        assertFalse(afterLogins.left().contains(name2));
+
+        s2.close();
+        Left left = receiveMessageWithTimeout(s1);
+        assertEquals(name2, left.username());
+        RosterDelta afterDisconnect = listSince(s1, afterLogins.version());
+        assertTrue(afterDisconnect.left().contains(name2));
+        assertFalse(afterDisconnect.joined().contains(name2));
+        assertFalse(afterDisconnect.joined().contains(name3));
+    }
+
+    @Test
+    void TC6_5_userThatLoggedInAndOutBetweenPollsIsNotListed() throws IOException {
+        receiveMessageWithTimeout(s1); // WELCOME
+        receiveMessageWithTimeout(s2); // WELCOME
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+        RosterDelta initial = listSince(s1, 0);
+
+        s2.send(new Login(name2));
+        receiveMessageWithTimeout(s2); // OK
+        receiveMessageWithTimeout(s1); // U2 IS HERE
+        s2.close();
+        receiveMessageWithTimeout(s1); // U2 LEFT
+
+        RosterDelta delta = listSince(s1, initial.version());
+        assertFalse(delta.joined().contains(name2));
+        assertFalse(delta.left().contains(name2));
+    }
+
+    @Test
+    void TC6_6_listSinceUnknownVersionReturnsTheFullRoster() throws JsonProcessingException {
+        receiveMessageWithTimeout(s1); // WELCOME
+        receiveMessageWithTimeout(s2); // WELCOME
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+        s2.send(new Login(name2));
+        receiveMessageWithTimeout(s2); // OK
+        receiveMessageWithTimeout(s1); // U2 IS HERE
+
+        RosterDelta delta = listSince(s1, Long.MAX_VALUE);
+        assertTrue(delta.full());
+        s1.sendCommand("LIST");
+        Response<List<String>> list = receiveMessageWithTimeout(s1);
+        assertEquals(new HashSet<>(list.content()), new HashSet<>(delta.joined()));
+    }
+
+    /**
+     * Sends LIST since the given version; skips the test when the server does not support it.
+     */
+    private RosterDelta listSince(ChatConnection connection, long version) throws JsonProcessingException {
+        connection.send(new ListSince(version));
+        Object reply = receiveMessageWithTimeout(connection);
+        assumeTrue(reply instanceof Response<?> response && response.content() instanceof RosterDelta,
+                "Server does not support LIST since a version");
+        Response<?> response = (Response<?>) reply;
+        assertEquals(800, response.status());
+        assertEquals("LIST", response.to());
+        return (RosterDelta) response.content();
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
     }
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+package protocoltests.commandtests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import protocoltests.TestConfig;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.client.Pipeline;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
+
+import java.io.*;
+import java.util.*;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * JOIN, LEAVE and BROADCAST to a lobby: a lobby broadcast reaches the other members of that
+ * lobby and nobody else. The reference server fans lobbies out on {@code lobby_workers} threads;
+ * the two lobbies of a test are named so that they hash to different workers, so these cases
+ * also check that lobbies on different workers stay apart and keep their order.
+ */
+class LobbyTests {
+
+    private static Properties props;
+    private static ReferenceServer server;
+    private final static int max_delta_allowed_ms = 1000;
+    private final static int quiet_ms = 200; // how long to wait for a message that must not come
+    private final static int burst_size = 100;
+
+    private ChatConnection a1, a2, b1, c1;
+    private final String nameA1 = Usernames.unique("user"), nameA2 = Usernames.unique("user");
+    private final String nameB1 = Usernames.unique("user"), nameC1 = Usernames.unique("user");
+    private final String red = Usernames.unique("red"), blue = onAnotherWorker("blue", red);
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(LobbyTests.class);
+        server = ReferenceServer.startIfConfigured(props);
+    }
+
+    @BeforeEach
+    void setup() throws IOException {
+        a1 = ChatConnection.fromConfig(props);
+        a2 = ChatConnection.fromConfig(props);
+        b1 = ChatConnection.fromConfig(props);
+        c1 = ChatConnection.fromConfig(props);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        a1.close();
+        a2.close();
+        b1.close();
+        c1.close();
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void TC14_1_lobbyBroadcastReachesOnlyTheOtherMembersOfThatLobby() throws JsonProcessingException {
+        loginAll();
+        join(a1, red);
+        join(a2, red);
+        join(b1, blue);
+
+        assertEquals(800, broadcast(a1, red, "to red").status());
+        assertEquals(new Broadcast(red, nameA1, "to red"), receiveMessageWithTimeout(a2));
+        assertNull(b1.receive(ofMillis(quiet_ms)), "member of another lobby received a red broadcast");
+        assertNull(c1.receive(ofMillis(quiet_ms)), "user without lobby received a red broadcast");
+        assertNull(a1.receive(ofMillis(quiet_ms)), "sender received its own broadcast");
+
+        assertEquals(800, broadcast(b1, blue, "to blue").status());
+        assertNull(a1.receive(ofMillis(quiet_ms)), "member of another lobby received a blue broadcast");
+        assertNull(a2.receive(ofMillis(quiet_ms)), "member of another lobby received a blue broadcast");
+        assertNull(c1.receive(ofMillis(quiet_ms)), "user without lobby received a blue broadcast");
+    }
+
+    @Test
+    void TC14_2_broadcastsOfTwoLobbiesKeepTheirOrderPerLobby() throws IOException {
+        loginAll();
+        join(a1, red);
+        join(b1, blue);
+        join(a2, red);
+        join(a2, blue);
+
+        Pipeline redBurst = new Pipeline(a1);
+        Pipeline blueBurst = new Pipeline(b1);
+        for (int i = 0; i < burst_size; i++) {
+            redBurst.add(new Broadcast(red, "", String.valueOf(i)));
+            blueBurst.add(new Broadcast(blue, "", String.valueOf(i)));
+        }
+        redBurst.write();
+        blueBurst.write();
+
+        Map<String, Integer> next = new HashMap<>(Map.of(red, 0, blue, 0));
+        for (int i = 0; i < 2 * burst_size; i++) {
+            Broadcast received = receiveMessageWithTimeout(a2);
+            String lobby = received.lobby();
+            assertEquals(lobby.equals(red) ? nameA1 : nameB1, received.username());
+            assertEquals(String.valueOf(next.get(lobby)), received.message(), "out of order in " + lobby);
+            next.merge(lobby, 1, Integer::sum);
+        }
+        for (int i = 0; i < burst_size; i++) {
+            assertEquals(800, ((Response<?>) receiveMessageWithTimeout(a1)).status());
+            assertEquals(800, ((Response<?>) receiveMessageWithTimeout(b1)).status());
+        }
+        assertNull(a1.receive(ofMillis(quiet_ms)), "member of red received a blue broadcast");
+        assertNull(b1.receive(ofMillis(quiet_ms)), "member of blue received a red broadcast");
+    }
+
+    @Test
+    void TC14_3_leaveStopsDelivery() throws JsonProcessingException {
+        loginAll();
+        join(a1, red);
+        join(a2, red);
+
+        a2.send(new Leave(red));
+        Response<String> leaveResp = receiveMessageWithTimeout(a2);
+        assertEquals(800, leaveResp.status());
+        assertEquals("LEAVE", leaveResp.to());
+
+        assertEquals(800, broadcast(a1, red, "after leave").status());
+        assertNull(a2.receive(ofMillis(quiet_ms)), "received a broadcast of a lobby it left");
+        assertEquals(851, broadcast(a2, red, "not a member").status());
+    }
+
+    @Test
+    void TC14_4_joinLeaveAndLobbyBroadcastErrors() throws JsonProcessingException {
+        receiveMessageWithTimeout(a1); // WELCOME
+        a1.send(new Join(red));
+        Object reply = receiveMessageWithTimeout(a1);
+        assumeTrue(reply instanceof Response<?>, "Server does not support lobbies");
+        assertEquals(710, ((Response<?>) reply).status());
+
+        a1.send(new Login(nameA1));
+        receiveMessageWithTimeout(a1); // OK
+        a1.send(new Join(""));
+        Response<String> noLobby = receiveMessageWithTimeout(a1);
+        assertEquals(850, noLobby.status());
+        assertEquals("JOIN", noLobby.to());
+
+        join(a1, red);
+        a1.send(new Join(red));
+        Response<String> joinedTwice = receiveMessageWithTimeout(a1);
+        assertEquals(852, joinedTwice.status());
+        assertEquals("JOIN", joinedTwice.to());
+
+        a1.send(new Leave(blue));
+        Response<String> notAMember = receiveMessageWithTimeout(a1);
+        assertEquals(851, notAMember.status());
+        assertEquals("LEAVE", notAMember.to());
+
+        Response<String> broadcastResp = broadcast(a1, blue, "not a member");
+        assertEquals(851, broadcastResp.status());
+        assertEquals("BROADCAST", broadcastResp.to());
+    }
+
+    @Test
+    void TC14_5_disconnectedMemberLeavesItsLobbies() throws IOException {
+        loginAll();
+        join(a1, red);
+        join(a2, red);
+        join(b1, red);
+        a2.close();
+        receiveMessageWithTimeout(a1); // A2 LEFT
+        receiveMessageWithTimeout(b1); // A2 LEFT
+
+        assertEquals(800, broadcast(a1, red, "after disconnect").status());
+        assertEquals(new Broadcast(red, nameA1, "after disconnect"), receiveMessageWithTimeout(b1));
+    }
+
+    @Test
+    void TC14_6_globalBroadcastStillReachesLobbyMembers() throws JsonProcessingException {
+        loginAll();
+        join(a1, red);
+
+        assertEquals(800, broadcast(c1, null, "to everyone").status());
+        assertEquals(new Broadcast(nameC1, "to everyone"), receiveMessageWithTimeout(a1));
+        assertEquals(new Broadcast(nameC1, "to everyone"), receiveMessageWithTimeout(b1));
+    }
+
+    /**
+     * Logs in every connection in turn and consumes the ARRIVED of the ones that follow it.
+     */
+    private void loginAll() throws JsonProcessingException {
+        List<ChatConnection> connections = List.of(a1, a2, b1, c1);
+        List<String> names = List.of(nameA1, nameA2, nameB1, nameC1);
+        for (int i = 0; i < connections.size(); i++) {
+            ChatConnection connection = connections.get(i);
+            receiveMessageWithTimeout(connection); // WELCOME
+            connection.send(new Login(names.get(i)));
+            receiveMessageWithTimeout(connection); // OK
+            for (int j = 0; j < i; j++) {
+                assertEquals(new Arrived(names.get(i)), receiveMessageWithTimeout(connections.get(j)));
+            }
+        }
+    }
+
+    private void join(ChatConnection connection, String lobby) throws JsonProcessingException {
+        connection.send(new Join(lobby));
+        Object reply = receiveMessageWithTimeout(connection);
+        assumeTrue(reply instanceof Response<?> response && response.status() == 800 && "JOIN".equals(response.to()),
+                "Server does not support lobbies");
+    }
+
+    private Response<String> broadcast(ChatConnection connection, String lobby, String message) throws JsonProcessingException {
+        connection.send(new Broadcast(lobby, "", message));
+        return receiveMessageWithTimeout(connection);
+    }
+
+    /**
+     * A unique lobby name that the reference server shards to another worker than the given
+     * lobby, as {@code ReferenceServer.lobbyShard} does, if it runs more than one.
+     */
+    private static String onAnotherWorker(String prefix, String other) {
+        int workers = Integer.parseInt(props.getProperty("lobby_workers"));
+        String lobby;
+        do {
+            lobby = Usernames.unique(prefix);
+        } while (workers > 1 && Math.floorMod(lobby.hashCode(), workers) == Math.floorMod(other.hashCode(), workers));
+        return lobby;
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+}
@@ -2,14 +2,16 @@ package protocoltests.commandtests;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.junit.jupiter.api.*;
+import protocoltests.TestConfig;
+import protocoltests.protocol.client.ChatConnection;
 import protocoltests.protocol.messages.Arrived;
 import protocoltests.protocol.messages.Login;
 import protocoltests.protocol.messages.Pong;
 import protocoltests.protocol.messages.Response;
-import protocoltests.protocol.utils.Utils;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
 
 import java.io.*;
-import java.net.Socket;
 import java.util.Properties;
 
 import static java.time.Duration.ofMillis;
@@ -17,45 +19,44 @@ import static org.junit.jupiter.api.Assertions.*;
 
 class LoginTests {
 
-    private static Properties props = new Properties();
+    private static Properties props;
+    private static ReferenceServer server;
 
-    private Socket socketUser1, socketUser2;
-    private BufferedReader inUser1, inUser2;
-    private PrintWriter outUser1, outUser2;
+    private ChatConnection user1, user2;
+    private final String name1 = Usernames.unique("user"), name2 = Usernames.unique("user");
 
     private final static int max_delta_allowed_ms = 1000;
 
     @BeforeAll
     static void setupAll() throws IOException {
-        InputStream inUser1 = LoginTests.class.getResourceAsStream("../testconfig.properties");
-        props.load(inUser1);
-        inUser1.close();
+        props = TestConfig.load(LoginTests.class);
+        server = ReferenceServer.startIfConfigured(props);
     }
 
     @BeforeEach
     void setup() throws IOException {
-        socketUser1 = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        inUser1 = new BufferedReader(new InputStreamReader(socketUser1.getInputStream()));
-        outUser1 = new PrintWriter(socketUser1.getOutputStream(), true);
-
-        socketUser2 = new Socket(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
-        inUser2 = new BufferedReader(new InputStreamReader(socketUser2.getInputStream()));
-        outUser2 = new PrintWriter(socketUser2.getOutputStream(), true);
+        user1 = ChatConnection.fromConfig(props);
+        user2 = ChatConnection.fromConfig(props);
     }
 
     @AfterEach
     void cleanup() throws IOException {
-        socketUser1.close();
-        socketUser2.close();
+        user1.close();
+        user2.close();
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
     }
 
     @Test
     void TC1_1_userNameWithThreeCharactersIsAccepted() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //welcome message
-        outUser1.println(Utils.objectToMessage(new Login("mym")));
-        outUser1.flush();
-        String serverResponse = receiveLineWithTimeout(inUser1);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+        receiveMessageWithTimeout(user1); //welcome message
+        user1.send(new Login("mym"));
+        Response<String> loginResp = receiveMessageWithTimeout(user1);
         assertEquals(800, loginResp.status());
         assertEquals("OK", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
@@ -63,11 +64,9 @@ class LoginTests {
 
     @Test
     void TC1_2_userNameWithTwoCharactersReturnsError() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //welcome message
-        outUser1.println(Utils.objectToMessage(new Login("my")));
-        outUser1.flush();
-        String serverResponse = receiveLineWithTimeout(inUser1);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+        receiveMessageWithTimeout(user1); //welcome message
+        user1.send(new Login("my"));
+        Response<String> loginResp = receiveMessageWithTimeout(user1);
         assertEquals(811, loginResp.status());
         assertEquals("ERROR", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
@@ -75,11 +74,9 @@ class LoginTests {
 
     @Test
     void TC1_3_userNameWith14CharactersIsAccepted() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //welcome message
-        outUser1.println(Utils.objectToMessage(new Login("abcdefghijklmn")));
-        outUser1.flush();
-        String serverResponse = receiveLineWithTimeout(inUser1);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+        receiveMessageWithTimeout(user1); //welcome message
+        user1.send(new Login("abcdefghijklmn"));
+        Response<String> loginResp = receiveMessageWithTimeout(user1);
         assertEquals(800, loginResp.status());
         assertEquals("OK", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
@@ -87,11 +84,9 @@ class LoginTests {
 
     @Test
     void TC1_4_userNameWith15CharactersReturnsError() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //welcome message
-        outUser1.println(Utils.objectToMessage(new Login("abcdefghijklmop")));
-        outUser1.flush();
-        String serverResponse = receiveLineWithTimeout(inUser1);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+        receiveMessageWithTimeout(user1); //welcome message
+        user1.send(new Login("abcdefghijklmop"));
+        Response<String> loginResp = receiveMessageWithTimeout(user1);
         assertEquals(811, loginResp.status());
         assertEquals("ERROR", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
@@ -99,11 +94,9 @@ class LoginTests {
 
     @Test
     void TC1_5_userNameWithStarReturnsError() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //welcome message
-        outUser1.println(Utils.objectToMessage(new Login("*a*")));
-        outUser1.flush();
-        String serverResponse = receiveLineWithTimeout(inUser1);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+        receiveMessageWithTimeout(user1); //welcome message
+        user1.send(new Login("*a*"));
+        Response<String> loginResp = receiveMessageWithTimeout(user1);
         assertEquals(811, loginResp.status());
         assertEquals("ERROR", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
@@ -111,19 +104,15 @@ class LoginTests {
 
     @Test
     void TC1_6_loggingInTwiceReturnsError() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //welcome message
-        outUser1.println(Utils.objectToMessage(new Login("abcd"))); // first log in
-        outUser1.flush();
-        String serverResponse = receiveLineWithTimeout(inUser1);
-        Response<String> loginResp = Utils.messageToObject(serverResponse);
+        receiveMessageWithTimeout(user1); //welcome message
+        user1.send(new Login("abcd")); // first log in
+        Response<String> loginResp = receiveMessageWithTimeout(user1);
         assertEquals(800, loginResp.status());
         assertEquals("OK", loginResp.content());
         assertEquals("LOGIN", loginResp.to());
 
-        outUser1.println(Utils.objectToMessage(new Login("abcd"))); // second login
-        outUser1.flush();
-        String secondServerResponse = receiveLineWithTimeout(inUser1);
-        Response<String> secondLoginResp = Utils.messageToObject(secondServerResponse);
+        user1.send(new Login("abcd")); // second login
+        Response<String> secondLoginResp = receiveMessageWithTimeout(user1);
         assertEquals(810, secondLoginResp.status());
         assertEquals("ERROR", secondLoginResp.content());
         assertEquals("LOGIN", secondLoginResp.to());
@@ -131,19 +120,16 @@ class LoginTests {
 
     @Test
     void TC1_7_loginMessageWithAlreadyConnectedUsernameReturnsError() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //welcome message
-        receiveLineWithTimeout(inUser2); //welcome message
+        receiveMessageWithTimeout(user1); //welcome message
+        receiveMessageWithTimeout(user2); //welcome message
 
         // Connect user 1
-        outUser1.println(Utils.objectToMessage(new Login("user1")));
-        outUser1.flush();
-        receiveLineWithTimeout(inUser1); //OK
+        user1.send(new Login(name1));
+        receiveMessageWithTimeout(user1); //OK
 
         // Connect using same username
-        outUser2.println(Utils.objectToMessage(new Login("user1")));
-        outUser2.flush();
-        String resUser2 = receiveLineWithTimeout(inUser2);
-        Response<String> loginResp = Utils.messageToObject(resUser2);
+        user2.send(new Login(name1));
+        Response<String> loginResp = receiveMessageWithTimeout(user2);
         assertEquals("ERROR", loginResp.content());
         assertEquals(812, loginResp.status());
         assertEquals("LOGIN", loginResp.to());
@@ -151,31 +137,31 @@ class LoginTests {
 
     @Test
     void TC1_8_joinedIsReceivedByOtherUserWhenUserConnects() throws JsonProcessingException {
-        receiveLineWithTimeout(inUser1); //WELCOME
-        receiveLineWithTimeout(inUser2); //WELCOME
+        receiveMessageWithTimeout(user1); //WELCOME
+        receiveMessageWithTimeout(user2); //WELCOME
 
         // Connect user1
-        outUser1.println(Utils.objectToMessage(new Login("user1")));
-        outUser1.flush();
-        outUser1.println(Utils.objectToMessage(new Pong()));
-        outUser1.flush();
-        receiveLineWithTimeout(inUser1); //OK
-        receiveLineWithTimeout(inUser1); //PING
+        user1.send(new Login(name1));
+        user1.send(new Pong());
+        receiveMessageWithTimeout(user1); //OK
+        receiveMessageWithTimeout(user1); //PING
 
         // Connect user2
-        outUser2.println(Utils.objectToMessage(new Login("user2")));
-        outUser2.flush();
-        receiveLineWithTimeout(inUser2); //OK
+        user2.send(new Login(name2));
+        receiveMessageWithTimeout(user2); //OK
 
         //JOINED is received by user1 when user2 connects
-        String resIdent = receiveLineWithTimeout(inUser1);
-        Arrived joined = Utils.messageToObject(resIdent);
+        Arrived joined = receiveMessageWithTimeout(user1);
 
-        assertEquals(new Arrived("user2"), joined);
+        assertEquals(new Arrived(name2), joined);
     }
 
-    private String receiveLineWithTimeout(BufferedReader reader) {
-        return assertTimeoutPreemptively(ofMillis(max_delta_allowed_ms), reader::readLine);
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+package protocoltests.commandtests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import protocoltests.TestConfig;
+import protocoltests.protocol.client.ChatConnection;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.CommandMetrics;
+import protocoltests.protocol.utils.Usernames;
+import protocoltests.server.ReferenceServer;
+
+import java.io.*;
+import java.util.*;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class MetricsTests {
+
+    private static Properties props;
+    private static ReferenceServer server;
+    private final static int max_delta_allowed_ms = 1000;
+
+    private ChatConnection s1;
+    private final String name1 = Usernames.unique("user");
+
+    @BeforeAll
+    static void setupAll() throws IOException {
+        props = TestConfig.load(MetricsTests.class);
+        server = ReferenceServer.startIfConfigured(props);
+    }
+
+    @BeforeEach
+    void setup() throws IOException {
+        s1 = ChatConnection.fromConfig(props);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        s1.close();
+    }
+
+    @AfterAll
+    static void cleanupAll() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void TC13_1_metricsCountCommandsAndErrorStatuses() throws JsonProcessingException {
+        receiveMessageWithTimeout(s1); // WELCOME
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+        s1.send(new Private(Usernames.unique("nobody"), "howdy"));
+        receiveMessageWithTimeout(s1); // 711
+        s1.sendCommand("LIST");
+        receiveMessageWithTimeout(s1);
+
+        Map<String, CommandStats> stats = metrics(s1);
+        assertTrue(stats.get("LOGIN").requests() >= 1);
+        assertTrue(stats.get("LIST").requests() >= 1);
+        assertTrue(stats.get("PRIVATE").errors().getOrDefault(711, 0L) >= 1);
+        assertTrue(stats.get("LOGIN").maxUs() > 0);
+    }
+
+    @Test
+    void TC13_2_connectionTimesEveryCommandUntilItsReply() throws JsonProcessingException {
+        CommandStats before = clientStats("PRIVATE");
+        receiveMessageWithTimeout(s1); // WELCOME
+        s1.send(new Login(name1));
+        receiveMessageWithTimeout(s1); // OK
+        s1.send(new Private(Usernames.unique("nobody"), "howdy"));
+        receiveMessageWithTimeout(s1); // 711
+
+        // At least, as classes running in parallel record into the same metrics
+        CommandStats after = clientStats("PRIVATE");
+        assertTrue(after.requests() >= before.requests() + 1);
+        assertTrue(after.responses() >= before.responses() + 1);
+        assertTrue(after.errors().get(711) >= before.errors().getOrDefault(711, 0L) + 1);
+        assertTrue(after.maxUs() > 0);
+    }
+
+    @Test
+    void TC13_3_replyIsMatchedToTheOldestCommandWhateverItsTo() {
+        CommandMetrics metrics = new CommandMetrics();
+        CommandMetrics.Tracker tracker = metrics.tracker();
+        tracker.sent("BROADCAST");
+        tracker.sent("PONG");
+        tracker.sent("LEADERBOARD");
+        tracker.received(new Response<>("ERROR", 710, "LOGIN"));
+        tracker.received(new Response<>("ERROR", 830, "PONG"));
+        tracker.received(new Leaderboard("lobby", new String[0], new int[0]));
+
+        Map<String, CommandStats> stats = byCommand(metrics.snapshot());
+        assertEquals(Map.of(710, 1L), stats.get("BROADCAST").errors());
+        assertEquals(1, stats.get("BROADCAST").responses());
+        assertEquals(Map.of(830, 1L), stats.get("PONG").errors());
+        assertNull(stats.get("PONG").maxUs()); // only answered when wrong, so not timed
+        assertEquals(Map.of(), stats.get("LEADERBOARD").errors());
+        assertEquals(1, stats.get("LEADERBOARD").responses());
+        List<String> csv = CommandMetrics.toCsv(metrics.snapshot()).lines().toList();
+        assertEquals("command,requests,responses,errors,p50_us,p99_us,max_us", csv.get(0));
+        assertTrue(csv.contains("PONG,1,1,830:1,,,"), "untimed PONG has latency columns: " + csv);
+    }
+
+    /**
+     * Sends METRICS; skips the test when the server does not support it.
+     */
+    private Map<String, CommandStats> metrics(ChatConnection connection) {
+        connection.sendCommand("METRICS");
+        Object reply = receiveMessageWithTimeout(connection);
+        assumeTrue(reply instanceof Response<?> response && response.content() instanceof List,
+                "Server does not support METRICS");
+        @SuppressWarnings("unchecked") // METRICS content is registered as a list of CommandStats (see Utils)
+        Response<List<CommandStats>> response = (Response<List<CommandStats>>) reply;
+        assertEquals(800, response.status());
+        return byCommand(response.content());
+    }
+
+    private static CommandStats clientStats(String command) {
+        CommandStats stats = byCommand(CommandMetrics.global().snapshot()).get(command);
+        return stats != null ? stats : new CommandStats(command, 0, 0, Map.of(), null, null, null);
+    }
+
+    private static Map<String, CommandStats> byCommand(List<CommandStats> stats) {
+        Map<String, CommandStats> map = new HashMap<>();
+        for (CommandStats command : stats) {
+            map.put(command.command(), command);
+        }
+        return map;
+    }
+
+    private <T> T receiveMessageWithTimeout(ChatConnection connection) {
+        T message = connection.receive(ofMillis(max_delta_allowed_ms));
+        if (message == null) {
+            fail("No message received within " + max_delta_allowed_ms + " ms");
+        }
+        return message;
+    }
+}
@@ -0,0 +1,305 @@
+package protocoltests.protocol.client;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import protocoltests.protocol.utils.FrameDecoder;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives many chat connections from a single selector thread. Every client gets its own
+ * non-blocking {@link SocketChannel} and an inbound queue with the decoded messages
+ * the server sent to it, so a simulated user does not need a thread of its own.
+ */
+public class ChatClientPool implements Closeable {
+
+    private final static int read_buffer_size = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final Queue<Client> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(read_buffer_size);
+    private volatile boolean running = true;
+
+    public ChatClientPool(String host, int port) throws IOException {
+        this.address = new InetSocketAddress(host, port);
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(this::run, "chat-client-pool");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /**
+     * Creates a pool for the server configured by the host and port properties of testconfig.properties.
+     */
+    public static ChatClientPool fromConfig(Properties props) throws IOException {
+        return new ChatClientPool(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
+    }
+
+    /**
+     * Starts connecting a new client. The connection is completed asynchronously;
+     * messages sent before that are queued and written once connected.
+     */
+    public Client connect() throws IOException {
+        return connect(null);
+    }
+
+    /**
+     * Like {@link #connect()}, but every decoded message is handed to the listener on the
+     * selector thread instead of being queued. The listener must not block.
+     */
+    public Client connect(MessageListener listener) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Client client = new Client(channel, listener);
+        if (channel.connect(address)) {
+            client.connected = true;
+        }
+        pendingRegistrations.add(client);
+        selector.wakeup();
+        return client;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Client) key.attachment()).closeChannel();
+        }
+        selector.close();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerPending();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handle(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("Client pool selector stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    private void registerPending() {
+        Client client;
+        while ((client = pendingRegistrations.poll()) != null) {
+            try {
+                int ops = client.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+                synchronized (client) {
+                    if (client.connected && !client.outbound.isEmpty()) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+                    client.key = client.channel.register(selector, ops, client);
+                }
+            } catch (IOException e) {
+                client.fail(e);
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Client client = (Client) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                client.channel.finishConnect();
+                synchronized (client) {
+                    client.connected = true;
+                    key.interestOps(client.outbound.isEmpty()
+                            ? SelectionKey.OP_READ
+                            : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                client.flush();
+            }
+            if (key.isReadable()) {
+                readBuffer.clear();
+                int read = client.channel.read(readBuffer);
+                if (read < 0) {
+                    client.closeChannel();
+                    return;
+                }
+                readBuffer.flip();
+                client.decoder.feed(readBuffer);
+                Object message;
+                while ((message = client.decoder.next()) != null) {
+                    if (client.listener != null) {
+                        client.listener.onMessage(client, message);
+                    } else {
+                        client.inbound.add(message);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            client.fail(e);
+        }
+    }
+
+    public interface MessageListener {
+        void onMessage(Client client, Object message) throws IOException;
+    }
+
+    /**
+     * A single simulated user. All methods may be called from any thread.
+     */
+    public class Client implements Closeable {
+
+        private final SocketChannel channel;
+        private final MessageListener listener;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final BlockingQueue<Object> inbound = new LinkedBlockingQueue<>();
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private SelectionKey key;
+        private volatile boolean connected;
+        private volatile boolean closed;
+        private volatile Exception failure;
+
+        private Client(SocketChannel channel, MessageListener listener) {
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        public void send(Object message) throws JsonProcessingException {
+            write(ByteBuffer.wrap(Utils.objectToFrame(message)));
+        }
+
+        /**
+         * Sends the given text exactly as is, without adding a line ending.
+         */
+        public void sendRaw(String text) {
+            write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Writes the remaining bytes of an already encoded buffer. Only a view of the
+         * buffer is queued, so one encoded frame can be written to many clients.
+         */
+        public void write(ByteBuffer frame) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                boolean wasEmpty = outbound.isEmpty();
+                outbound.add(frame.duplicate());
+                if (!wasEmpty || !connected || key == null) {
+                    return;
+                }
+                try {
+                    writeQueued();
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                if (!outbound.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                }
+            }
+        }
+
+        /**
+         * Waits at most the given time for the next message; returns null on timeout.
+         */
+        public <T> T receive(Duration timeout) throws InterruptedException {
+            @SuppressWarnings("unchecked") // the caller names the message type it expects
+            T message = (T) inbound.poll(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            return message;
+        }
+
+        /**
+         * Returns the next message if one already arrived, otherwise null.
+         */
+        public <T> T poll() {
+            @SuppressWarnings("unchecked") // the caller names the message type it expects
+            T message = (T) inbound.poll();
+            return message;
+        }
+
+        public BlockingQueue<Object> inbound() {
+            return inbound;
+        }
+
+        public boolean isConnected() {
+            return connected && !closed;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public Exception failure() {
+            return failure;
+        }
+
+        @Override
+        public void close() {
+            closeChannel();
+        }
+
+        private synchronized void flush() throws IOException {
+            writeQueued();
+            if (outbound.isEmpty() && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void writeQueued() throws IOException {
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return;
+                }
+                outbound.poll();
+            }
+        }
+
+        private void fail(Exception e) {
+            failure = e;
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            synchronized (this) {
+                closed = true;
+                outbound.clear();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package protocoltests.protocol.client;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import protocoltests.protocol.messages.Framing;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.utils.CommandMetrics;
+import protocoltests.protocol.utils.FrameDecoder;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking connection to the chat server with one long-lived reader thread. The reader
+ * decodes every incoming frame and queues it, so waiting for a message with a timeout
+ * does not hand the socket to another thread and a timed out wait leaves it intact.
+ * <p>
+ * Uses the line protocol unless binary framing is negotiated, see {@link #useBinaryFraming(Duration)}.
+ * Commands and their replies are recorded in {@link CommandMetrics#current()}.
+ */
+public class ChatConnection implements Closeable {
+
+    private final static Object end_of_stream = new Object();
+    private final static Duration negotiation_timeout = Duration.ofSeconds(1);
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final BlockingDeque<Object> inbound = new LinkedBlockingDeque<>();
+    private final CommandMetrics.Tracker metrics = CommandMetrics.current().tracker();
+    private volatile Exception failure;
+    private volatile boolean binaryRequested; // read by the reader thread when FRAMING is accepted
+    private volatile boolean binary;
+
+    public ChatConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        Thread reader = new Thread(this::read, "chat-connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connects to the server configured by the host and port properties of testconfig.properties.
+     * With {@code framing=binary} binary framing is negotiated before the connection is returned.
+     */
+    public static ChatConnection fromConfig(Properties props) throws IOException {
+        ChatConnection connection = new ChatConnection(props.getProperty("host"), Integer.parseInt(props.getProperty("port")));
+        if ("binary".equals(props.getProperty("framing", "text")) && !connection.useBinaryFraming(negotiation_timeout)) {
+            connection.close();
+            throw new IOException("Server did not accept binary framing");
+        }
+        return connection;
+    }
+
+    /**
+     * Switches this connection to length prefixed binary frames with FRAMING. Call it right
+     * after connecting: it waits for GREET, which stays queued for the caller. Returns false
+     * and keeps the line protocol when the server refuses or does not know FRAMING.
+     */
+    public boolean useBinaryFraming(Duration timeout) throws JsonProcessingException {
+        Object greet = receive(timeout);
+        binaryRequested = true;
+        send(new Framing("binary"));
+        Object reply = receive(timeout);
+        binary = reply instanceof Response<?> response && isFramingAccepted(response);
+        if (greet != null) {
+            inbound.offerFirst(greet);
+        }
+        return binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void send(Object message) throws JsonProcessingException {
+        write(List.of(Utils.headerOf(message)), encode(message));
+    }
+
+    /**
+     * Sends a command without body, e.g. LIST, in the framing of this connection.
+     */
+    public void sendCommand(String header) {
+        write(List.of(header), encode(header));
+    }
+
+    /**
+     * Encodes a message as one complete frame in the framing of this connection.
+     */
+    public byte[] encode(Object message) throws JsonProcessingException {
+        return binary ? Utils.objectToBinaryFrame(message) : Utils.objectToFrame(message);
+    }
+
+    public byte[] encode(String header) {
+        return binary ? Utils.commandToBinaryFrame(header) : (header + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends the given text exactly as is (no line ending is added) in a single flush.
+     */
+    public void sendRaw(String text) {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes encoded commands with the given headers in a single flush, timing each of them
+     * until its reply.
+     */
+    public synchronized void write(List<String> headers, byte[] bytes) {
+        for (String header : headers) {
+            metrics.sent(header);
+        }
+        write(bytes);
+    }
+
+    /**
+     * Writes bytes as is; replies to commands in them are not timed.
+     */
+    public synchronized void write(byte[] bytes) {
+        try {
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits at most the given time for the next message. Returns null on timeout
+     * or when the server closed the connection.
+     */
+    public <T> T receive(Duration timeout) {
+        Object message;
+        try {
+            message = inbound.poll(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (message == end_of_stream) {
+            // Keep the marker so later calls return immediately as well
+            inbound.add(end_of_stream);
+            if (failure != null) {
+                throw new RuntimeException("Reading from the server failed", failure);
+            }
+            return null;
+        }
+        @SuppressWarnings("unchecked") // the caller names the message type it expects
+        T typed = (T) message;
+        return typed;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void read() {
+        FrameDecoder decoder = new FrameDecoder();
+        try (InputStream in = socket.getInputStream()) {
+            Object message;
+            while ((message = decoder.read(in)) != null) {
+                if (message instanceof Response<?> response && isFramingAccepted(response)) {
+                    // Every frame after this response uses the new framing
+                    decoder.binary(binaryRequested);
+                }
+                metrics.received(message);
+                inbound.add(message);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!socket.isClosed()) {
+                failure = e;
+            }
+        }
+        inbound.add(end_of_stream);
+    }
+
+    private static boolean isFramingAccepted(Response<?> response) {
+        return "FRAMING".equals(response.to()) && response.status() == 800;
+    }
+}
@@ -0,0 +1,127 @@
+package protocoltests.protocol.client;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import protocoltests.protocol.messages.Response;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Batches several commands into a single write on a {@link ChatConnection} and matches the
+ * RESPONSE frames that come back to the commands that caused them.
+ * <p>
+ * The server answers commands in order, so responses are matched strictly in order, whatever
+ * their {@code to} says: a command refused before login is answered with {@code "to":"LOGIN"}.
+ * PONG is only answered when it is wrong, so it is skipped unless a response names it; a command
+ * answered with a frame of its own header (e.g. LEADERBOARD) gets that frame in the other messages.
+ */
+public class Pipeline {
+
+    private final ChatConnection connection;
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final List<String> headers = new ArrayList<>();
+
+    public Pipeline(ChatConnection connection) {
+        this.connection = connection;
+    }
+
+    public Pipeline add(Object message) throws JsonProcessingException {
+        headers.add(Utils.headerOf(message));
+        batch.writeBytes(connection.encode(message));
+        return this;
+    }
+
+    /**
+     * Adds a command without a body, e.g. LIST.
+     */
+    public Pipeline addRaw(String header) {
+        headers.add(header);
+        batch.writeBytes(connection.encode(header));
+        return this;
+    }
+
+    public int size() {
+        return headers.size();
+    }
+
+    /**
+     * Writes all queued commands in one write without waiting for their responses,
+     * which stay queued on the connection.
+     */
+    public void write() {
+        connection.write(headers, batch.toByteArray());
+        batch.reset();
+        headers.clear();
+    }
+
+    /**
+     * Writes all queued commands in one write and waits until every command has a response
+     * or the timeout has passed. Messages that are not responses are returned separately.
+     */
+    public Result flush(Duration timeout) {
+        List<String> pending = new ArrayList<>(headers);
+        Response<?>[] responses = new Response<?>[pending.size()];
+        boolean[] answered = new boolean[pending.size()];
+        List<Object> others = new ArrayList<>();
+        int expected = 0;
+        for (String header : pending) {
+            if (!"PONG".equals(header)) {
+                expected++;
+            }
+        }
+        write();
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        int next = 0; // oldest command that may still get a reply, PONG aside
+        int replies = 0;
+        while (replies < expected) {
+            long remaining = deadline - System.nanoTime();
+            Object message = remaining > 0 ? connection.receive(Duration.ofNanos(remaining)) : null;
+            if (message == null) {
+                break;
+            }
+            if (message instanceof Response<?> response && "PONG".equals(response.to())) {
+                int pong = 0;
+                while (pong < pending.size() && (answered[pong] || !"PONG".equals(pending.get(pong)))) {
+                    pong++;
+                }
+                if (pong < pending.size()) {
+                    responses[pong] = response;
+                    answered[pong] = true;
+                } else {
+                    others.add(message);
+                }
+                continue;
+            }
+            while (next < pending.size() && (answered[next] || "PONG".equals(pending.get(next)))) {
+                next++;
+            }
+            if (next == pending.size()) {
+                others.add(message);
+            } else if (message instanceof Response<?> response) {
+                responses[next] = response;
+                answered[next] = true;
+                replies++;
+            } else {
+                others.add(message);
+                if (pending.get(next).equals(Utils.headerOf(message))) {
+                    answered[next] = true; // answered with a frame of its own header
+                    replies++;
+                }
+            }
+        }
+        return new Result(Arrays.asList(responses), others, replies == expected);
+    }
+
+    /**
+     * Responses in command order (null where none arrived in time, for a PONG that was not
+     * refused and for a command answered with a frame of its own header), every other message
+     * received while waiting, and whether every command that gets a reply got one.
+     */
+    public record Result(List<Response<?>> responses, List<Object> others, boolean complete) {
+    }
+}
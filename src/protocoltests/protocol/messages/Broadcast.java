@@ -1,4 +1,13 @@
 package protocoltests.protocol.messages;
 
-public record Broadcast(String username, String message) {
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * A broadcast to everyone, or with a lobby only to the members of that lobby (see {@link Join}).
+ */
+public record Broadcast(@JsonInclude(JsonInclude.Include.NON_NULL) String lobby, String username, String message) {
+
+    public Broadcast(String username, String message) {
+        this(null, username, message);
+    }
 }
@@ -0,0 +1,12 @@
+package protocoltests.protocol.messages;
+
+import java.util.Map;
+
+/**
+ * Counters and latency of one command header, as reported by METRICS. Latencies are in
+ * microseconds, and null for a command that was never timed (PONG is only answered when it is
+ * wrong); errors counts every status other than 800 by code.
+ */
+public record CommandStats(String command, long requests, long responses, Map<Integer, Long> errors,
+                           Double p50Us, Double p99Us, Double maxUs) {
+}
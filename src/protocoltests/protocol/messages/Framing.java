@@ -0,0 +1,3 @@
+package protocoltests.protocol.messages;
+
+public record Framing(String mode) {}
@@ -0,0 +1,4 @@
+package protocoltests.protocol.messages;
+
+public record Join(String lobby) {
+}
@@ -1,6 +1,8 @@
 package protocoltests.protocol.messages;
 
-import java.util.HashMap;
-
-public record Leaderboard(String lobby, HashMap<String, Integer> leaderboard) {
+/**
+ * The best scores of a lobby, best first, as parallel arrays (no boxed map on the hot path).
+ * Sent by a client with only the lobby to request it and to subscribe to its updates.
+ */
+public record Leaderboard(String lobby, String[] usernames, int[] scores) {
 }
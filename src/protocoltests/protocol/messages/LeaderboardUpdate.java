@@ -0,0 +1,8 @@
+package protocoltests.protocol.messages;
+
+/**
+ * Changes to a lobby's leaderboard since the last update: new scores of entries that are in it
+ * (usernames and scores as parallel arrays) and the users that dropped out.
+ */
+public record LeaderboardUpdate(String lobby, String[] usernames, int[] scores, String[] removed) {
+}
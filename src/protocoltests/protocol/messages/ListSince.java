@@ -0,0 +1,3 @@
+package protocoltests.protocol.messages;
+
+public record ListSince(long since) {}
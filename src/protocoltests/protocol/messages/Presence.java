@@ -0,0 +1,5 @@
+package protocoltests.protocol.messages;
+
+import java.util.List;
+
+public record Presence(List<String> joined, List<String> left) {}
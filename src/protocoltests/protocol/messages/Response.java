@@ -1,5 +1,9 @@
 package protocoltests.protocol.messages;
 
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+// Status and to first, so a client knows the content type before it reaches the content
+@JsonPropertyOrder({"status", "to", "content"})
 public record Response<T>(T content, int status, String to) {
 
     @Override
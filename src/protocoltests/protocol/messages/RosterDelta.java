@@ -0,0 +1,10 @@
+package protocoltests.protocol.messages;
+
+import java.util.List;
+
+/**
+ * Content of the response to {@code LIST {"since":v}}: the users that logged in and out after
+ * version v, or the whole roster in {@code joined} when {@code full} is set (the server no
+ * longer knows version v).
+ */
+public record RosterDelta(long version, boolean full, List<String> joined, List<String> left) {}
@@ -0,0 +1,257 @@
+package protocoltests.protocol.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import protocoltests.protocol.messages.CommandStats;
+import protocoltests.protocol.messages.Response;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request count, error statuses and response latency per command header. Every
+ * {@link protocoltests.protocol.client.ChatConnection} records into {@link #current()} through a
+ * {@link Tracker}, which times each command from the write of its frame to the decoded reply;
+ * the reference server keeps its own instance for METRICS. Recording does not lock.
+ * <p>
+ * An instance with a parent records into the parent as well, so a test class can have its own
+ * metrics (see {@link #scope(CommandMetrics)}) that still count for the whole run.
+ * <p>
+ * {@link #busyNanos()} is the time at least one timed command was waiting for its reply, on any
+ * connection: the union of the intervals from sending to the reply. Timed replies per second of
+ * busy time is a throughput that setup, sleeps and receive timeouts do not count in.
+ */
+public class CommandMetrics {
+
+    private final static CommandMetrics global = new CommandMetrics();
+    private final static String csv_header = "command,requests,responses,errors,p50_us,p99_us,max_us";
+    private final static InheritableThreadLocal<CommandMetrics> scope = new InheritableThreadLocal<>();
+
+    private final Map<String, Command> commands = new ConcurrentHashMap<>();
+    private final CommandMetrics parent;
+    private final Object busyLock = new Object();
+    private long busyUntil = Long.MIN_VALUE; // end of the last busy interval, System.nanoTime()
+    private long busyNanos;
+
+    public CommandMetrics() {
+        this(null);
+    }
+
+    public CommandMetrics(CommandMetrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * The metrics of all connections in this JVM, reported at the end of a test run.
+     */
+    public static CommandMetrics global() {
+        return global;
+    }
+
+    /**
+     * The metrics connections created by this thread (and threads it starts) record into:
+     * the scoped instance if there is one, otherwise {@link #global()}.
+     */
+    public static CommandMetrics current() {
+        CommandMetrics scoped = scope.get();
+        return scoped != null ? scoped : global;
+    }
+
+    /**
+     * Sets the metrics for {@link #current()} on this thread; null goes back to the global ones.
+     */
+    public static void scope(CommandMetrics metrics) {
+        if (metrics == null) {
+            scope.remove();
+        } else {
+            scope.set(metrics);
+        }
+    }
+
+    public Tracker tracker() {
+        return new Tracker();
+    }
+
+    public void requested(String command) {
+        command(command).requests.increment();
+        if (parent != null) {
+            parent.requested(command);
+        }
+    }
+
+    /**
+     * Records the reply to a command: its status (0 when there is none, e.g. for a PONG) and
+     * the latency, or a negative latency when it is unknown.
+     */
+    public void answered(String command, int status, long latencyNanos) {
+        Command counters = command(command);
+        counters.responses.increment();
+        if (status != 0 && status != 800) {
+            counters.errors.computeIfAbsent(status, code -> new LongAdder()).increment();
+        }
+        if (latencyNanos >= 0) {
+            counters.latency.record(latencyNanos);
+            long now = System.nanoTime();
+            busy(now - latencyNanos, now);
+        }
+        if (parent != null) {
+            parent.answered(command, status, latencyNanos);
+        }
+    }
+
+    /**
+     * Time spent waiting for the replies of timed commands so far, overlapping waits counted once.
+     */
+    public long busyNanos() {
+        synchronized (busyLock) {
+            return busyNanos;
+        }
+    }
+
+    /**
+     * Adds the part of an interval that the intervals recorded before it do not cover. Replies
+     * are recorded about in the order they arrive, so the intervals come ordered by their end.
+     */
+    private void busy(long start, long end) {
+        synchronized (busyLock) {
+            busyNanos += Math.max(0, end - Math.max(start, busyUntil));
+            busyUntil = Math.max(busyUntil, end);
+        }
+    }
+
+    /**
+     * Latency of one command so far, or null when it was never answered.
+     */
+    public LatencyHistogram latency(String command) {
+        Command counters = commands.get(command);
+        return counters == null ? null : counters.latency;
+    }
+
+    public void reset() {
+        commands.clear();
+        synchronized (busyLock) {
+            busyUntil = Long.MIN_VALUE;
+            busyNanos = 0;
+        }
+    }
+
+    /**
+     * Current counters of every command seen, sorted by header.
+     */
+    public List<CommandStats> snapshot() {
+        List<CommandStats> stats = new ArrayList<>();
+        for (Map.Entry<String, Command> entry : new TreeMap<>(commands).entrySet()) {
+            Command counters = entry.getValue();
+            Map<Integer, Long> errors = new TreeMap<>();
+            counters.errors.forEach((status, count) -> errors.put(status, count.sum()));
+            LatencyHistogram latency = counters.latency;
+            boolean timed = latency.count() > 0;
+            stats.add(new CommandStats(entry.getKey(), counters.requests.sum(), counters.responses.sum(), errors,
+                    timed ? latency.percentile(50) / 1e3 : null, timed ? latency.percentile(99) / 1e3 : null,
+                    timed ? latency.max() / 1e3 : null));
+        }
+        return stats;
+    }
+
+    public static String toCsv(List<CommandStats> stats) {
+        StringBuilder csv = new StringBuilder(csv_header).append('\n');
+        for (CommandStats command : stats) {
+            StringJoiner errors = new StringJoiner(";");
+            command.errors().forEach((status, count) -> errors.add(status + ":" + count));
+            csv.append(command.command()).append(',').append(command.requests()).append(',').append(command.responses())
+                    .append(',').append(errors).append(',').append(csvMicros(command.p50Us()))
+                    .append(',').append(csvMicros(command.p99Us())).append(',').append(csvMicros(command.maxUs()))
+                    .append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * A latency column of the CSV; empty for a command that was never timed.
+     */
+    private static String csvMicros(Double micros) {
+        return micros == null ? "" : String.format(Locale.ROOT, "%.1f", micros);
+    }
+
+    /**
+     * Prints one line per command and, when a directory is given, writes metrics.json and
+     * metrics.csv into it.
+     */
+    public void report(PrintStream out, Path directory) throws IOException {
+        List<CommandStats> stats = snapshot();
+        for (CommandStats command : stats) {
+            String latency = command.maxUs() == null ? String.format("%-49s", "not timed")
+                    : String.format("p50 %8.1f us  p99 %8.1f us  max %8.1f us", command.p50Us(), command.p99Us(), command.maxUs());
+            out.printf("%-20s %6d requests  %s  errors %s%n", command.command(), command.requests(), latency, command.errors());
+        }
+        if (directory != null) {
+            Files.createDirectories(directory);
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(directory.resolve("metrics.json").toFile(), stats);
+            Files.writeString(directory.resolve("metrics.csv"), toCsv(stats));
+        }
+    }
+
+    private Command command(String command) {
+        return commands.computeIfAbsent(command, header -> new Command());
+    }
+
+    private static class Command {
+        final LongAdder requests = new LongAdder();
+        final LongAdder responses = new LongAdder();
+        final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Matches the replies on one connection to the commands sent on it. The server answers
+     * commands in order, so a reply belongs to the oldest command still waiting, whatever its
+     * {@code to} says (a BROADCAST before LOGIN is answered with {@code "to":"LOGIN"}). PONG is
+     * only answered when it is wrong, so it is counted but not timed. Frames written without
+     * a header, such as raw test input, are not tracked; their replies are ignored while no
+     * tracked command is waiting.
+     */
+    public class Tracker {
+
+        private final Queue<Sent> waiting = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Call right before the frame of the command is written, in the order of writing.
+         */
+        public void sent(String header) {
+            requested(header);
+            if (!"PONG".equals(header)) {
+                waiting.add(new Sent(header, System.nanoTime()));
+            }
+        }
+
+        /**
+         * Call for every decoded message, in the order received.
+         */
+        public void received(Object message) {
+            if (message instanceof Response<?> response) {
+                if ("PONG".equals(response.to())) {
+                    answered("PONG", response.status(), -1);
+                    return;
+                }
+                Sent sent = waiting.poll();
+                if (sent != null) {
+                    answered(sent.header, response.status(), System.nanoTime() - sent.at);
+                }
+                return;
+            }
+            // Commands answered with a frame of their own header, e.g. LEADERBOARD
+            Sent oldest = waiting.peek();
+            if (oldest != null && oldest.header.equals(Utils.headerOf(message)) && waiting.remove(oldest)) {
+                answered(oldest.header, 800, System.nanoTime() - oldest.at);
+            }
+        }
+    }
+
+    private record Sent(String header, long at) {
+    }
+}
@@ -0,0 +1,195 @@
+package protocoltests.protocol.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental decoder for the line based protocol (HEADER + " " + JSON, terminated by LF or CRLF).
+ * Bytes can be fed in arbitrary chunks, e.g. a frame split over several reads like in
+ * PacketBreakup.TC4_1; incomplete frames are kept until their line ending arrives.
+ * Complete frames are decoded in place with {@link Utils#frameToObject(byte[], int, int)}.
+ * <p>
+ * After {@link #binary(boolean)} the decoder reads length prefixed binary frames instead
+ * (see {@link Utils#objectToBinaryFrame(Object)}) and hands the readers opcode and body.
+ */
+public class FrameDecoder {
+
+    private final static int initial_capacity = 8 * 1024;
+    private final static int read_chunk = 8 * 1024;
+    private final static int length_prefix = 4;
+    private final static int max_binary_frame = 16 * 1024 * 1024;
+
+    private byte[] buffer = new byte[initial_capacity];
+    private int start; // first byte of the frame not yet decoded
+    private int limit; // end of the valid bytes in the buffer
+    private int scanned; // position up to which no line ending was found
+    private boolean binary;
+
+    /**
+     * Switches between line frames and binary frames. Applies to the next frame that is
+     * decoded, including bytes that are already buffered.
+     */
+    public void binary(boolean binary) {
+        this.binary = binary;
+        scanned = start;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Appends all remaining bytes of the given buffer.
+     */
+    public void feed(ByteBuffer src) {
+        int length = src.remaining();
+        ensureCapacity(length);
+        src.get(buffer, limit, length);
+        limit += length;
+    }
+
+    public void feed(byte[] src, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(src, offset, buffer, limit, length);
+        limit += length;
+    }
+
+    /**
+     * Decodes the next complete frame, or returns null when no complete frame is buffered.
+     * Empty lines are skipped.
+     */
+    public <T> T next() throws IOException {
+        return binary ? next(Utils::binaryFrameToObject) : next(Utils::frameToObject);
+    }
+
+    /**
+     * Like {@link #next()}, but hands the frame bytes to the given reader. Frames for which
+     * the reader returns null are skipped.
+     */
+    public <T> T next(FrameReader<T> reader) throws IOException {
+        if (binary) {
+            return nextBinary(reader);
+        }
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) {
+                return null;
+            }
+            int frameStart = start;
+            int frameEnd = lineEnd > frameStart && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            start = lineEnd + 1;
+            scanned = start;
+            if (start == limit) {
+                // Buffer fully consumed, reuse it from the front
+                start = limit = scanned = 0;
+            }
+            if (frameEnd > frameStart) {
+                T frame = reader.read(buffer, frameStart, frameEnd - frameStart);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+        }
+    }
+
+    private <T> T nextBinary(FrameReader<T> reader) throws IOException {
+        while (limit - start >= length_prefix) {
+            int length = (buffer[start] & 0xff) << 24 | (buffer[start + 1] & 0xff) << 16
+                    | (buffer[start + 2] & 0xff) << 8 | (buffer[start + 3] & 0xff);
+            if (length < 1 || length > max_binary_frame) {
+                throw new IOException("Invalid binary frame length " + length);
+            }
+            if (limit - start - length_prefix < length) {
+                return null;
+            }
+            int frameStart = start + length_prefix;
+            start = frameStart + length;
+            scanned = start;
+            if (start == limit) {
+                start = limit = scanned = 0;
+            }
+            T frame = reader.read(buffer, frameStart, length);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Blocks until a complete frame has been read from the stream and returns it decoded.
+     * Returns null when the stream ends; a trailing frame without line ending is discarded.
+     */
+    public <T> T read(InputStream in) throws IOException {
+        T frame;
+        while ((frame = next()) == null) {
+            if (!fill(in)) {
+                return null;
+            }
+        }
+        return frame;
+    }
+
+    public <T> T read(InputStream in, FrameReader<T> reader) throws IOException {
+        T frame;
+        while ((frame = next(reader)) == null) {
+            if (!fill(in)) {
+                return null;
+            }
+        }
+        return frame;
+    }
+
+    private boolean fill(InputStream in) throws IOException {
+        ensureCapacity(read_chunk);
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * Number of bytes belonging to a frame that has not been completed yet.
+     */
+    public int pending() {
+        return limit - start;
+    }
+
+    /**
+     * Decodes one frame (without its line ending, or opcode and body of a binary frame). The bytes are only valid during the call.
+     */
+    public interface FrameReader<T> {
+        T read(byte[] frame, int offset, int length) throws IOException;
+    }
+
+    private int findLineEnd() {
+        for (int i = scanned; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        scanned = limit;
+        return -1;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.length - limit >= extra) {
+            return;
+        }
+        // Move the unfinished frame to the front before growing
+        int pending = limit - start;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+            scanned -= start;
+            start = 0;
+            limit = pending;
+        }
+        if (buffer.length - limit < extra) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, limit + extra));
+        }
+    }
+}
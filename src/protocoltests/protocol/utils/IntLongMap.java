@@ -0,0 +1,94 @@
+package protocoltests.protocol.utils;
+
+/**
+ * Open addressing map from user indexes to longs, for state kept per pair of users. Key and
+ * value sit next to each other in one array, so a lookup touches one cache line, instead of a
+ * boxed key, value and node per entry like {@link java.util.HashMap}; and it starts small, so a
+ * user that only talks to a few others costs a few entries. Keys must not be negative; a
+ * missing key reads as 0.
+ */
+class IntLongMap {
+
+    private long[] table = new long[2 * 4]; // key + 1 (0 marks a free slot), then the value
+    private int size;
+
+    long get(int key) {
+        int mask = capacity() - 1;
+        for (int i = spread(key) & mask; table[2 * i] != 0; i = (i + 1) & mask) {
+            if (table[2 * i] == key + 1) {
+                return table[2 * i + 1];
+            }
+        }
+        return 0;
+    }
+
+    void put(int key, long value) {
+        setValueAt(slotOf(key), value);
+    }
+
+    /**
+     * The slot of a key, added with the value 0 when it is missing; read and update the value
+     * with {@link #valueAt} and {@link #setValueAt} to look the key up only once.
+     */
+    int slotOf(int key) {
+        if ((size + 1) * 4 > capacity() * 3) {
+            resize(capacity() * 2);
+        }
+        int mask = capacity() - 1;
+        int i = spread(key) & mask;
+        for (; table[2 * i] != 0; i = (i + 1) & mask) {
+            if (table[2 * i] == key + 1) {
+                return i;
+            }
+        }
+        table[2 * i] = key + 1;
+        size++;
+        return i;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The key in a slot, or -1 for a free slot; slots run from 0 to {@link #capacity()} and
+     * move when the map grows.
+     */
+    int keyAt(int slot) {
+        return (int) table[2 * slot] - 1;
+    }
+
+    long valueAt(int slot) {
+        return table[2 * slot + 1];
+    }
+
+    void setValueAt(int slot, long value) {
+        table[2 * slot + 1] = value;
+    }
+
+    int capacity() {
+        return table.length / 2;
+    }
+
+    private void resize(int capacity) {
+        long[] old = table;
+        table = new long[2 * capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length; j += 2) {
+            if (old[j] != 0) {
+                int i = spread((int) old[j] - 1) & mask;
+                while (table[2 * i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[2 * i] = old[j];
+                table[2 * i + 1] = old[j + 1];
+            }
+        }
+    }
+
+    private static int spread(int key) {
+        // User indexes are consecutive; scatter them over the table as UsernameSet does
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
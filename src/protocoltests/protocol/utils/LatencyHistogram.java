@@ -0,0 +1,137 @@
+package protocoltests.protocol.utils;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, log-linear histogram of latencies in nanoseconds, in the style of HdrHistogram:
+ * every power of two is split into 64 sub-buckets, so recorded values keep about two
+ * significant digits (under 1.6% error) regardless of magnitude. Recording is lock free
+ * and does not allocate, so it can be done on the selector thread.
+ */
+public class LatencyHistogram {
+
+    private final static int sub_bucket_bits = 7;
+    private final static int sub_bucket_count = 1 << sub_bucket_bits;
+    private final static int half_sub_bucket_count = sub_bucket_count / 2;
+    private final static int max_shift = 37; // about 2.4 hours in nanoseconds
+    private final static long max_value = (1L << (max_shift + sub_bucket_bits)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(sub_bucket_count + max_shift * half_sub_bucket_count);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), max_value);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        long otherMax = other.max.get();
+        long currentMax;
+        while (otherMax > (currentMax = max.get()) && !max.compareAndSet(currentMax, otherMax)) {
+        }
+    }
+
+    /**
+     * The counts of the non-empty buckets by bucket index, to store a histogram and restore it
+     * with {@link #addBuckets(Map, long)}.
+     */
+    public SortedMap<Integer, Long> buckets() {
+        SortedMap<Integer, Long> buckets = new TreeMap<>();
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                buckets.put(i, count);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Adds stored bucket counts (see {@link #buckets()}) and the largest value recorded in them.
+     */
+    public void addBuckets(Map<Integer, Long> buckets, long maxValue) {
+        buckets.forEach((index, count) -> {
+            counts.addAndGet(index, count);
+            total.addAndGet(count);
+        });
+        long currentMax;
+        while (maxValue > (currentMax = max.get()) && !max.compareAndSet(currentMax, maxValue)) {
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the highest value equivalent to the value at the given percentile (0-100).
+     */
+    public long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * One line summary with p50/p99/p99.9/max in microseconds.
+     */
+    public String summary() {
+        return String.format("count %d  p50 %.1f us  p99 %.1f us  p99.9 %.1f us  max %.1f us",
+                count(), percentile(50) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3, max() / 1e3);
+    }
+
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - sub_bucket_bits);
+        if (shift == 0) {
+            return (int) value;
+        }
+        return sub_bucket_count + (shift - 1) * half_sub_bucket_count + (int) ((value >> shift) - half_sub_bucket_count);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < sub_bucket_count) {
+            return index;
+        }
+        int shift = (index - sub_bucket_count) / half_sub_bucket_count + 1;
+        long subBucket = (index - sub_bucket_count) % half_sub_bucket_count + half_sub_bucket_count;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,94 @@
+package protocoltests.protocol.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Typed, streaming decoder for the RESPONSE to a LIST command. Walks the user array token by
+ * token into a {@link UsernameSet} instead of building a generic {@code List<Object>}, and
+ * fails on any element that is not a string.
+ */
+public class ListDecoder {
+
+    private final static JsonFactory factory = new JsonFactory();
+    private final static byte[] response_header = "RESPONSE ".getBytes(StandardCharsets.US_ASCII);
+
+    public record UserList(UsernameSet users, int status, String to) {
+    }
+
+    public static UserList decode(String message) throws IOException {
+        byte[] frame = message.getBytes(StandardCharsets.UTF_8);
+        return decode(frame, 0, frame.length);
+    }
+
+    /**
+     * Decodes a frame (header and body, without line ending).
+     */
+    public static UserList decode(byte[] frame, int offset, int length) throws IOException {
+        if (!isResponse(frame, offset, length)) {
+            throw new RuntimeException("Not a RESPONSE frame");
+        }
+        int bodyOffset = offset + response_header.length;
+        try (JsonParser parser = factory.createParser(frame, bodyOffset, length - response_header.length)) {
+            return decode(parser);
+        }
+    }
+
+    /**
+     * Returns true when the frame is a RESPONSE (to any command).
+     */
+    public static boolean isResponse(byte[] frame, int offset, int length) {
+        if (length < response_header.length) {
+            return false;
+        }
+        for (int i = 0; i < response_header.length; i++) {
+            if (frame[offset + i] != response_header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static UserList decode(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a JSON object");
+        }
+        UsernameSet users = null;
+        int status = 0;
+        String to = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "content" -> users = readUsers(parser, value);
+                case "status" -> status = parser.getIntValue();
+                case "to" -> to = parser.getValueAsString();
+                default -> parser.skipChildren();
+            }
+        }
+        if (users == null) {
+            throw new JsonParseException(parser, "LIST response has no content");
+        }
+        return new UserList(users, status, to);
+    }
+
+    private static UsernameSet readUsers(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "LIST content is not an array but " + value);
+        }
+        UsernameSet users = new UsernameSet();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.VALUE_STRING) {
+                throw new JsonParseException(parser, "LIST content contains " + token + " instead of a username");
+            }
+            users.add(parser.getText());
+        }
+        return users;
+    }
+}
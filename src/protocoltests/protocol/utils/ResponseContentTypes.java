@@ -0,0 +1,96 @@
+package protocoltests.protocol.utils;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the content type of a RESPONSE by status code, optionally for one command only
+ * (e.g. 711 is a {@code NotFound}, the 800 to LIST a list of usernames). A status can have
+ * several types of different JSON shapes (string, array or object); the one matching the
+ * content is used. Content without a registered type decodes generically, as before.
+ */
+public class ResponseContentTypes {
+
+    private final TypeFactory typeFactory = TypeFactory.defaultInstance();
+    private final Map<Integer, StatusTypes> types = new HashMap<>();
+
+    /**
+     * Registers the content type of a status for every command.
+     */
+    public void register(int status, Class<?> type) {
+        register(null, status, typeFactory.constructType(type));
+    }
+
+    /**
+     * Registers the content type of a status in the response to one command, or to every
+     * command when it is null.
+     */
+    public void register(String to, int status, JavaType type) {
+        StatusTypes statusTypes = types.computeIfAbsent(status, k -> new StatusTypes());
+        List<JavaType> candidates = to == null ? statusTypes.anyCommand : statusTypes.byCommand.computeIfAbsent(to, k -> new ArrayList<>());
+        candidates.add(type);
+    }
+
+    public void register(String to, int status, Class<?> type) {
+        register(to, status, typeFactory.constructType(type));
+    }
+
+    public TypeFactory typeFactory() {
+        return typeFactory;
+    }
+
+    /**
+     * Returns the registered type for content starting with the given token, preferring one
+     * registered for the command over one for any command; null when none matches.
+     */
+    public JavaType lookup(String to, int status, JsonToken first) {
+        StatusTypes statusTypes = types.get(status);
+        if (statusTypes == null) {
+            return null;
+        }
+        JavaType type = to == null ? null : match(statusTypes.byCommand.get(to), first);
+        return type != null ? type : match(statusTypes.anyCommand, first);
+    }
+
+    /**
+     * Returns an object type registered for the status, for content that older servers send as
+     * a JSON document inside a string; null when there is none.
+     */
+    public JavaType lookupEmbedded(String to, int status) {
+        JavaType type = lookup(to, status, JsonToken.START_OBJECT);
+        return type == null || type.isMapLikeType() ? null : type;
+    }
+
+    private static JavaType match(List<JavaType> candidates, JsonToken first) {
+        if (candidates == null) {
+            return null;
+        }
+        for (JavaType type : candidates) {
+            if (fits(type, first)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private static boolean fits(JavaType type, JsonToken first) {
+        if (type.isCollectionLikeType() || type.isArrayType()) {
+            return first == JsonToken.START_ARRAY;
+        }
+        if (type.hasRawClass(String.class)) {
+            return first == JsonToken.VALUE_STRING;
+        }
+        return first == JsonToken.START_OBJECT;
+    }
+
+    private static class StatusTypes {
+        final List<JavaType> anyCommand = new ArrayList<>();
+        final Map<String, List<JavaType>> byCommand = new HashMap<>();
+    }
+}
@@ -0,0 +1,91 @@
+package protocoltests.protocol.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import protocoltests.protocol.messages.Response;
+
+import java.io.IOException;
+
+/**
+ * Decodes a RESPONSE with its content typed by {@link ResponseContentTypes} in a single pass
+ * over the JSON. Content that comes before status and to (as servers usually write it) is
+ * buffered as tokens, not as text, until the type is known; {@link Response} itself is written
+ * with status and to first.
+ */
+class ResponseDeserializer extends StdDeserializer<Response<?>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ResponseContentTypes contentTypes;
+    private final ObjectMapper mapper;
+
+    ResponseDeserializer(ResponseContentTypes contentTypes, ObjectMapper mapper) {
+        super(Response.class);
+        this.contentTypes = contentTypes;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public Response<?> deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            token = parser.nextToken();
+        }
+        String to = null;
+        int status = 0;
+        boolean statusRead = false;
+        boolean toRead = false;
+        Object content = null;
+        TokenBuffer buffered = null;
+        for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "status" -> {
+                    status = parser.getIntValue();
+                    statusRead = true;
+                }
+                case "to" -> {
+                    to = value == JsonToken.VALUE_NULL ? null : parser.getText();
+                    toRead = true;
+                }
+                case "content" -> {
+                    if (statusRead && toRead) {
+                        content = readContent(parser, context, to, status);
+                    } else {
+                        buffered = context.bufferAsCopyOfValue(parser);
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        if (buffered != null) {
+            try (JsonParser contentParser = buffered.asParser(parser.getCodec())) {
+                contentParser.nextToken();
+                content = readContent(contentParser, context, to, status);
+            }
+        }
+        return new Response<>(content, status, to);
+    }
+
+    private Object readContent(JsonParser parser, DeserializationContext context, String to, int status) throws IOException {
+        JsonToken first = parser.currentToken();
+        if (first == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        JavaType type = contentTypes.lookup(to, status, first);
+        if (type != null) {
+            return context.readValue(parser, type);
+        }
+        JavaType embedded = first == JsonToken.VALUE_STRING ? contentTypes.lookupEmbedded(to, status) : null;
+        if (embedded != null && parser.getText().startsWith("{")) {
+            return mapper.readValue(parser.getText(), embedded); // servers that still send the JSON as a string
+        }
+        return context.readValue(parser, Object.class);
+    }
+}
@@ -0,0 +1,297 @@
+package protocoltests.protocol.utils;
+
+import protocoltests.protocol.messages.Broadcast;
+import protocoltests.protocol.messages.Private;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks under load that no broadcast or private message is lost, duplicated or reordered,
+ * where the tests compare single messages. Senders stamp the body with {@link #stampBroadcast}
+ * or {@link #stampPrivate}: it starts with {@code #sender.sequence}, counting the broadcasts of
+ * a sender, or its private messages to one receiver. Every message a user receives is passed
+ * to {@link #received}; {@link #report()} at the end of the run, once the traffic has stopped.
+ * <p>
+ * Per sender and receiver the verifier keeps the highest sequence seen and a bitmap of the 32
+ * sequences below it, packed into one long per stream. State only exists for pairs that actually
+ * exchange messages, so memory grows with the traffic and not with the square of the users:
+ * broadcast streams are rows per receiver that grow up to the highest sender heard from (8 bytes
+ * per pair; a broadcast reaches everybody, so these rows fill up anyway and an array is the
+ * fastest lookup), private streams and the counts of private messages sent are small open
+ * addressing tables per receiver and sender ({@link IntLongMap}, about 24 bytes per pair).
+ * A sequence that is still missing when it falls out of the bitmap counts as lost; arriving
+ * later than that it counts as late instead (a duplicate that old cannot be told apart and
+ * counts as late too).
+ */
+public class SequenceVerifier {
+
+    private final static int window = 32;
+    private final static long window_mask = 0xffffffffL;
+    private final static int worst_receivers = 5;
+
+    private final List<String> usernames;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final AtomicIntegerArray broadcastsSent;
+    private final IntLongMap[] privatesSent; // per sender, by receiver
+    private final long[][] broadcastStreams; // per receiver, by sender, up to the highest one heard from
+    private final IntLongMap[] privateStreams; // per receiver, by sender
+    private final Object[] receiverLocks;
+    private final AtomicLongArray lostByReceiver;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder lost = new LongAdder(); // fell out of the bitmap unseen
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    public SequenceVerifier(List<String> usernames) {
+        this.usernames = List.copyOf(usernames);
+        int count = usernames.size();
+        for (int i = 0; i < count; i++) {
+            indexes.put(usernames.get(i), i);
+        }
+        broadcastsSent = new AtomicIntegerArray(count);
+        privatesSent = new IntLongMap[count];
+        broadcastStreams = new long[count][];
+        privateStreams = new IntLongMap[count];
+        receiverLocks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            receiverLocks[i] = new Object();
+        }
+        lostByReceiver = new AtomicLongArray(count);
+    }
+
+    /**
+     * The body of the next broadcast of a sender.
+     */
+    public String stampBroadcast(String sender, String text) {
+        int index = indexOf(sender);
+        return stamp(index, broadcastsSent.getAndIncrement(index), text);
+    }
+
+    /**
+     * The body of the sender's next private message to the receiver.
+     */
+    public String stampPrivate(String sender, String receiver, String text) {
+        int index = indexOf(sender);
+        int to = indexOf(receiver);
+        IntLongMap sent = privatesSent(index);
+        int sequence;
+        synchronized (sent) {
+            int slot = sent.slotOf(to);
+            sequence = (int) sent.valueAt(slot);
+            sent.setValueAt(slot, sequence + 1);
+        }
+        return stamp(index, sequence, text);
+    }
+
+    /**
+     * Checks a message received by a user. Returns false for messages without a stamp, which are ignored.
+     */
+    public boolean received(String receiver, Object message) {
+        String body;
+        boolean broadcast;
+        if (message instanceof Broadcast b) {
+            body = b.message();
+            broadcast = true;
+        } else if (message instanceof Private p) {
+            body = p.message();
+            broadcast = false;
+        } else {
+            return false;
+        }
+        long stamp = parseStamp(body);
+        if (stamp < 0) {
+            return false;
+        }
+        int sender = (int) (stamp >>> 32);
+        int sequence = (int) stamp;
+        int index = indexOf(receiver);
+        delivered.increment();
+        synchronized (receiverLocks[index]) {
+            if (broadcast) {
+                long[] streams = broadcastStreams[index];
+                if (streams == null || streams.length <= sender) {
+                    int length = Math.min(usernames.size(), Math.max(sender + 1, streams == null ? 0 : 2 * streams.length));
+                    streams = broadcastStreams[index] = streams == null ? new long[length] : Arrays.copyOf(streams, length);
+                }
+                streams[sender] = receive(streams[sender], sequence, index);
+            } else {
+                IntLongMap streams = privateStreams[index];
+                if (streams == null) {
+                    streams = privateStreams[index] = new IntLongMap();
+                }
+                int slot = streams.slotOf(sender);
+                streams.setValueAt(slot, receive(streams.valueAt(slot), sequence, index));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts what is still missing against what was sent and summarizes the run. Call it when
+     * no more messages are in flight, or those count as lost.
+     */
+    public Report report() {
+        int count = usernames.size();
+        long[] missingByReceiver = new long[count];
+        long broadcasts = 0;
+        for (int sender = 0; sender < count; sender++) {
+            broadcasts += broadcastsSent.get(sender);
+        }
+        for (int receiver = 0; receiver < count; receiver++) {
+            // Every broadcast of the others, less what the streams of the senders it heard from account for
+            long missing = broadcasts - broadcastsSent.get(receiver);
+            synchronized (receiverLocks[receiver]) {
+                long[] streams = broadcastStreams[receiver];
+                for (int sender = 0; streams != null && sender < streams.length; sender++) {
+                    if (sender != receiver) {
+                        int sent = broadcastsSent.get(sender);
+                        missing += missing(streams[sender], sent) - sent;
+                    }
+                }
+            }
+            missingByReceiver[receiver] = missing;
+        }
+        for (int sender = 0; sender < count; sender++) {
+            IntLongMap sent = privatesSent(sender);
+            synchronized (sent) { // received() only takes receiver locks, so this order cannot deadlock
+                for (int slot = 0; slot < sent.capacity(); slot++) {
+                    int receiver = sent.keyAt(slot);
+                    if (receiver >= 0) {
+                        synchronized (receiverLocks[receiver]) {
+                            IntLongMap streams = privateStreams[receiver];
+                            missingByReceiver[receiver] += missing(streams == null ? 0 : streams.get(sender), sent.valueAt(slot));
+                        }
+                    }
+                }
+            }
+        }
+        long missing = 0;
+        for (int receiver = 0; receiver < count; receiver++) {
+            missing += missingByReceiver[receiver];
+            missingByReceiver[receiver] += lostByReceiver.get(receiver);
+        }
+        Integer[] byLoss = new Integer[usernames.size()];
+        for (int i = 0; i < byLoss.length; i++) {
+            byLoss[i] = i;
+        }
+        Arrays.sort(byLoss, Comparator.comparingLong((Integer receiver) -> missingByReceiver[receiver]).reversed());
+        List<String> worst = new ArrayList<>();
+        for (int i = 0; i < Math.min(worst_receivers, byLoss.length) && missingByReceiver[byLoss[i]] > 0; i++) {
+            worst.add(usernames.get(byLoss[i]) + " " + missingByReceiver[byLoss[i]]);
+        }
+        return new Report(delivered.sum(), Math.max(0, lost.sum() - late.sum()) + missing,
+                duplicates.sum(), reordered.sum(), late.sum(), worst);
+    }
+
+    /**
+     * Applies a received sequence to the packed state of one stream: the next sequence after
+     * the highest one seen in the upper half, the bitmap in the lower half (bit i stands for
+     * the sequence i below the highest).
+     */
+    private long receive(long state, int sequence, int receiver) {
+        long next = state >>> 32;
+        long bits = state & window_mask;
+        if (sequence >= next) {
+            long shift = sequence - next + 1;
+            long unseen = ~bits & validBits(next);
+            long dropped = shift >= window ? Long.bitCount(unseen) + (shift - window) : Long.bitCount(unseen >>> (window - shift));
+            if (dropped > 0) {
+                lost.add(dropped);
+                lostByReceiver.addAndGet(receiver, dropped);
+            }
+            bits = shift >= window ? 1 : (bits << shift | 1) & window_mask;
+            return (long) (sequence + 1) << 32 | bits;
+        }
+        long offset = next - 1 - sequence;
+        if (offset >= window) {
+            late.increment();
+            lostByReceiver.decrementAndGet(receiver);
+        } else if ((bits & 1L << offset) != 0) {
+            duplicates.increment();
+        } else {
+            reordered.increment();
+            bits |= 1L << offset;
+        }
+        return next << 32 | bits;
+    }
+
+    /**
+     * Sequences of a stream that were sent but are neither received nor already counted lost.
+     */
+    private static long missing(long state, long sent) {
+        long next = state >>> 32;
+        long unseen = ~state & validBits(next);
+        return Long.bitCount(unseen) + Math.max(0, sent - next);
+    }
+
+    /**
+     * The bitmap positions that stand for a sequence at all: below the first 32 there are fewer.
+     */
+    private static long validBits(long next) {
+        return next >= window ? window_mask : (1L << next) - 1;
+    }
+
+    private IntLongMap privatesSent(int sender) {
+        synchronized (privatesSent) {
+            if (privatesSent[sender] == null) {
+                privatesSent[sender] = new IntLongMap();
+            }
+            return privatesSent[sender];
+        }
+    }
+
+    private int indexOf(String username) {
+        Integer index = indexes.get(username);
+        if (index == null) {
+            throw new IllegalArgumentException("Not a verified user: " + username);
+        }
+        return index;
+    }
+
+    private static String stamp(int sender, int sequence, String text) {
+        return "#" + sender + "." + sequence + " " + text;
+    }
+
+    /**
+     * Sender and sequence of a stamped body packed into a long, or -1 without a stamp.
+     */
+    private long parseStamp(String body) {
+        if (body == null || body.length() < 4 || body.charAt(0) != '#') {
+            return -1;
+        }
+        int dot = body.indexOf('.');
+        int space = body.indexOf(' ', dot + 1);
+        try {
+            int sender = Integer.parseInt(body, 1, dot, 10);
+            int sequence = Integer.parseInt(body, dot + 1, space < 0 ? body.length() : space, 10);
+            if (sender < 0 || sender >= usernames.size() || sequence < 0) {
+                return -1;
+            }
+            return (long) sender << 32 | sequence;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The outcome of a run: stamped messages delivered, lost (sent but never received), received
+     * twice, received after a later one of the same stream, received more than 32 late, and the
+     * receivers that lost the most with their counts.
+     */
+    public record Report(long delivered, long lost, long duplicates, long reordered, long late, List<String> worstReceivers) {
+
+        public boolean clean() {
+            return lost == 0 && duplicates == 0 && reordered == 0 && late == 0;
+        }
+
+        public String summary() {
+            return String.format("delivered %d  lost %d  duplicates %d  reordered %d  late %d%s",
+                    delivered, lost, duplicates, reordered, late,
+                    worstReceivers.isEmpty() ? "" : "  most lost by " + String.join(", ", worstReceivers));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package protocoltests.protocol.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing set of usernames. Uses one array slot per entry instead of a node object
+ * per entry like {@link java.util.HashSet}, which matters for rosters of 100k users.
+ */
+public class UsernameSet {
+
+    private String[] table;
+    private int size;
+
+    public UsernameSet() {
+        this(16);
+    }
+
+    public UsernameSet(int expectedSize) {
+        table = new String[tableSizeFor(expectedSize)];
+    }
+
+    /**
+     * Adds the username; returns false when it was already present.
+     */
+    public boolean add(String username) {
+        if ((size + 1) * 4 > table.length * 3) {
+            resize(table.length * 2);
+        }
+        if (insert(table, username)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(String username) {
+        int mask = table.length - 1;
+        for (int i = spread(username.hashCode()) & mask; table[i] != null; i = (i + 1) & mask) {
+            if (table[i].equals(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public List<String> toList() {
+        List<String> list = new ArrayList<>(size);
+        for (String username : table) {
+            if (username != null) {
+                list.add(username);
+            }
+        }
+        return list;
+    }
+
+    private static boolean insert(String[] table, String username) {
+        int mask = table.length - 1;
+        int i = spread(username.hashCode()) & mask;
+        for (; table[i] != null; i = (i + 1) & mask) {
+            if (table[i].equals(username)) {
+                return false;
+            }
+        }
+        table[i] = username;
+        return true;
+    }
+
+    private void resize(int capacity) {
+        String[] resized = new String[capacity];
+        for (String username : table) {
+            if (username != null) {
+                insert(resized, username);
+            }
+        }
+        table = resized;
+    }
+
+    private static int spread(int hash) {
+        // Usernames like user1, user2... have consecutive hash codes; scatter them
+        // over the table to avoid long probe sequences
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 4 / 3 + 1) - 1) << 1;
+        return Math.max(16, capacity);
+    }
+}
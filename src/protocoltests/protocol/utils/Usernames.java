@@ -0,0 +1,40 @@
+package protocoltests.protocol.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates usernames that pass the server's username rules (3 to 14 letters or digits,
+ * see LoginTests) and are unique per prefix and index.
+ */
+public class Usernames {
+
+    private final static int min_length = 3;
+    private final static int max_length = 14;
+
+    // Differs per JVM, so two suite runs against the same server do not collide either
+    private final static String run_id = Integer.toString(ThreadLocalRandom.current().nextInt(36 * 36, 36 * 36 * 36), 36);
+    private final static AtomicInteger next_unique = new AtomicInteger();
+
+    public static String generate(String prefix, int index) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Index must not be negative");
+        }
+        StringBuilder username = new StringBuilder(prefix).append(Integer.toString(index, 36));
+        while (username.length() < min_length) {
+            username.insert(prefix.length(), '0');
+        }
+        if (username.length() > max_length) {
+            throw new IllegalArgumentException("Username " + username + " is longer than " + max_length + " characters");
+        }
+        return username.toString();
+    }
+
+    /**
+     * Returns a username that no other call in this JVM returns, e.g. "user" becomes "userk3x0".
+     * Test classes running in parallel against one server use this to avoid 812 (already logged in).
+     */
+    public static String unique(String prefix) {
+        return generate(prefix + run_id, next_unique.getAndIncrement());
+    }
+}
@@ -1,18 +1,53 @@
 package protocoltests.protocol.utils;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import protocoltests.protocol.messages.*;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Utils {
 
     private final static ObjectMapper mapper = new ObjectMapper();
+    private final static ResponseContentTypes contentTypes = new ResponseContentTypes();
     private final static Map<Class<?>, String> objToNameMapping = new HashMap<>();
+    private final static Map<String, Class<?>> nameToObjMapping = new HashMap<>();
+    private final static Map<Class<?>, ObjectReader> readers = new HashMap<>();
+    private final static Map<Class<?>, ObjectWriter> writers = new HashMap<>();
+    private final static byte[] emptyBody = "{}".getBytes(StandardCharsets.UTF_8);
+    private final static int length_prefix = 4;
+    // Opcode of a header in binary framing is its index; the order is part of the wire format
+    private final static String[] opcodeHeaders = {
+            null, "RESPONSE", "GREET", "LOGIN", "ARRIVED", "BROADCAST", "PONG", "PING", "DISCONNECTED",
+            "LEFT", "PRIVATE", "PARSE_ERROR", "PONG_ERROR", "LIST", "FRAMING",
+            "PRESENCE", "SCORE", "LEADERBOARD", "LEADERBOARD_UPDATE", "METRICS", "JOIN", "LEAVE"
+    };
+    private final static Map<String, Byte> headerOpcodes = new HashMap<>();
+    // Headers of the line protocol by a hash of their bytes, so decoding a frame finds its class
+    // and reader with one probe or two instead of comparing it with every header
+    private final static int header_table_size = 64; // a power of two, at least twice the headers
+    private static byte[][] headerBytes;
+    private static Class<?>[] headerClasses;
+    private static ObjectReader[] headerReaders;
+    private static int[] headerTable; // index of the header + 1, 0 for a free slot
 
     static {
+        // Typed RESPONSE content, decoded in one pass (see ResponseDeserializer)
+        contentTypes.register(711, NotFound.class);
+        contentTypes.register("LIST", 800, contentTypes.typeFactory().constructCollectionType(List.class, String.class));
+        contentTypes.register("LIST", 800, RosterDelta.class);
+        contentTypes.register("METRICS", 800, contentTypes.typeFactory().constructCollectionType(List.class, CommandStats.class));
+        mapper.registerModule(new SimpleModule().addDeserializer(Response.class, new ResponseDeserializer(contentTypes, mapper)));
+
         objToNameMapping.put(Response.class, "RESPONSE");
         objToNameMapping.put(Welcome.class, "GREET");
         objToNameMapping.put(Login.class, "LOGIN");
@@ -25,6 +60,45 @@ public class Utils {
         objToNameMapping.put(Private.class, "PRIVATE");
         objToNameMapping.put(ParseError.class, "PARSE_ERROR");
         objToNameMapping.put(PongError.class, "PONG_ERROR");
+        objToNameMapping.put(Framing.class, "FRAMING");
+        objToNameMapping.put(Presence.class, "PRESENCE");
+        objToNameMapping.put(ListSince.class, "LIST");
+        objToNameMapping.put(Score.class, "SCORE");
+        objToNameMapping.put(Leaderboard.class, "LEADERBOARD");
+        objToNameMapping.put(LeaderboardUpdate.class, "LEADERBOARD_UPDATE");
+        objToNameMapping.put(Join.class, "JOIN");
+        objToNameMapping.put(Leave.class, "LEAVE");
+
+        // Reverse index and prebuilt readers/writers, so decoding a line does not
+        // scan the mapping or resolve a (de)serializer every time
+        for (Map.Entry<Class<?>, String> entry : objToNameMapping.entrySet()) {
+            nameToObjMapping.put(entry.getValue(), entry.getKey());
+            readers.put(entry.getKey(), mapper.readerFor(entry.getKey()));
+            writers.put(entry.getKey(), mapper.writerFor(entry.getKey()));
+        }
+        indexHeaderBytes();
+        for (int opcode = 1; opcode < opcodeHeaders.length; opcode++) {
+            headerOpcodes.put(opcodeHeaders[opcode], (byte) opcode);
+        }
+    }
+
+    private static void indexHeaderBytes() {
+        headerBytes = new byte[nameToObjMapping.size()][];
+        headerClasses = new Class<?>[nameToObjMapping.size()];
+        headerReaders = new ObjectReader[nameToObjMapping.size()];
+        headerTable = new int[header_table_size];
+        int i = 0;
+        for (Map.Entry<String, Class<?>> entry : nameToObjMapping.entrySet()) {
+            headerBytes[i] = entry.getKey().getBytes(StandardCharsets.US_ASCII);
+            headerClasses[i] = entry.getValue();
+            headerReaders[i] = readers.get(entry.getValue());
+            int slot = spread(headerHash(headerBytes[i], 0, headerBytes[i].length)) & (header_table_size - 1);
+            while (headerTable[slot] != 0) {
+                slot = (slot + 1) & (header_table_size - 1);
+            }
+            headerTable[slot] = i + 1;
+            i++;
+        }
     }
 
     public static String objectToMessage(Object object) throws JsonProcessingException {
@@ -33,31 +107,200 @@ public class Utils {
         if (header == null) {
             throw new RuntimeException("Cannot convert this class to a message");
         }
-        String body = mapper.writeValueAsString(object);
+        String body = writers.get(clazz).writeValueAsString(object);
         return header + " " + body;
     }
 
-    public static <T> T messageToObject(String message) throws JsonProcessingException {
-        String[] parts = message.split(" ", 2);
-        if (parts.length > 2 || parts.length == 0) {
-            throw new RuntimeException("Invalid message");
+    /**
+     * Returns the header the given message is sent with, e.g. "LOGIN" for a {@link Login}.
+     */
+    public static String headerOf(Object object) {
+        String header = objToNameMapping.get(object.getClass());
+        if (header == null) {
+            throw new RuntimeException("Cannot convert this class to a message");
         }
-        String header = parts[0];
-        String body = "{}";
-        if (parts.length == 2) {
-            body = parts[1];
+        return header;
+    }
+
+    /**
+     * Encodes a message as a complete frame, including the terminating line feed.
+     */
+    public static byte[] objectToFrame(Object object) throws JsonProcessingException {
+        Class<?> clazz = object.getClass();
+        String header = objToNameMapping.get(clazz);
+        if (header == null) {
+            throw new RuntimeException("Cannot convert this class to a message");
         }
+        byte[] prefix = header.getBytes(StandardCharsets.US_ASCII);
+        byte[] body = writers.get(clazz).writeValueAsBytes(object);
+        byte[] frame = new byte[prefix.length + body.length + 2];
+        System.arraycopy(prefix, 0, frame, 0, prefix.length);
+        frame[prefix.length] = ' ';
+        System.arraycopy(body, 0, frame, prefix.length + 1, body.length);
+        frame[frame.length - 1] = '\n';
+        return frame;
+    }
+
+    public static <T> T messageToObject(String message) throws JsonProcessingException {
+        int separator = message.indexOf(' ');
+        String header = separator < 0 ? message : message.substring(0, separator);
+        String body = separator < 0 ? "{}" : message.substring(separator + 1);
         Class<?> clazz = getClass(header);
-        Object obj = mapper.readValue(body, clazz);
+        Object obj = readers.get(clazz).readValue(body);
         return (T) clazz.cast(obj);
     }
 
     private static Class<?> getClass(String header) {
-        return objToNameMapping.entrySet().stream()
-                .filter(e -> e.getValue().equals(header))
-                .map(Map.Entry::getKey)
-                .findFirst()
-                .orElseThrow(() -> new RuntimeException("Cannot find class belonging to header " + header));
+        Class<?> clazz = nameToObjMapping.get(header);
+        if (clazz == null) {
+            throw new RuntimeException("Cannot find class belonging to header " + header);
+        }
+        return clazz;
+    }
+
+    /**
+     * Decodes a single frame (header, optional space and JSON body, without line ending)
+     * directly from a byte slice. Behaves the same as {@link #messageToObject(String)}
+     * on the equivalent string, but does not create any intermediate strings.
+     */
+    public static <T> T frameToObject(byte[] frame, int offset, int length) throws IOException {
+        int end = offset + length;
+        int separator = offset;
+        int hash = 0;
+        while (separator < end && frame[separator] != ' ') {
+            hash = 31 * hash + frame[separator]; // the hash of headerHash, while looking for the separator
+            separator++;
+        }
+        int header = headerIndex(frame, offset, separator - offset, hash);
+        Class<?> clazz = headerClasses[header];
+        ObjectReader reader = headerReaders[header];
+        JsonParser parser = separator == end
+                ? reader.createParser(emptyBody)
+                : reader.createParser(frame, separator + 1, end - separator - 1);
+        try (parser) {
+            @SuppressWarnings("unchecked") // the caller names the message type it expects; cast() checks the class
+            T message = (T) clazz.cast(reader.readValue(parser));
+            return message;
+        }
+    }
+
+    /**
+     * Class of the message a header in a byte slice (without the body) decodes to.
+     */
+    public static Class<?> classOfHeader(byte[] frame, int offset, int length) {
+        return headerClasses[headerIndex(frame, offset, length, headerHash(frame, offset, length))];
+    }
+
+    private static int headerIndex(byte[] frame, int offset, int length, int hash) {
+        int mask = header_table_size - 1;
+        for (int slot = spread(hash) & mask; headerTable[slot] != 0; slot = (slot + 1) & mask) {
+            byte[] candidate = headerBytes[headerTable[slot] - 1];
+            if (candidate.length == length && regionMatches(candidate, frame, offset)) {
+                return headerTable[slot] - 1;
+            }
+        }
+        throw new RuntimeException("Cannot find class belonging to header "
+                + new String(frame, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private static int headerHash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionMatches(byte[] candidate, byte[] frame, int offset) {
+        for (int i = 0; i < candidate.length; i++) {
+            if (candidate[i] != frame[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opcode that replaces the given header in binary framing, e.g. 5 for "BROADCAST".
+     */
+    public static byte opcodeOf(String header) {
+        Byte opcode = headerOpcodes.get(header);
+        if (opcode == null) {
+            throw new RuntimeException("No opcode for header " + header);
+        }
+        return opcode;
+    }
+
+    /**
+     * Header belonging to an opcode, or null for an unknown opcode.
+     */
+    public static String headerOf(byte opcode) {
+        return opcode > 0 && opcode < opcodeHeaders.length ? opcodeHeaders[opcode] : null;
+    }
+
+    /**
+     * Encodes a message as a binary frame: a 4 byte big endian length, then the opcode and
+     * the JSON body. The length counts opcode and body. An empty body ({}) is left out.
+     */
+    public static byte[] objectToBinaryFrame(Object object) throws JsonProcessingException {
+        Class<?> clazz = object.getClass();
+        byte opcode = opcodeOf(headerOf(object));
+        byte[] body = writers.get(clazz).writeValueAsBytes(object);
+        int bodyLength = Arrays.equals(body, emptyBody) ? 0 : body.length;
+        byte[] frame = binaryFrame(opcode, bodyLength);
+        System.arraycopy(body, 0, frame, length_prefix + 1, bodyLength);
+        return frame;
+    }
+
+    /**
+     * Encodes a command without body (e.g. LIST) as a binary frame.
+     */
+    public static byte[] commandToBinaryFrame(String header) {
+        return binaryFrame(opcodeOf(header), 0);
+    }
+
+    private static byte[] binaryFrame(byte opcode, int bodyLength) {
+        byte[] frame = new byte[length_prefix + 1 + bodyLength];
+        int length = bodyLength + 1;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[length_prefix] = opcode;
+        return frame;
+    }
+
+    /**
+     * Decodes the payload of a binary frame (opcode and body, without the length prefix).
+     */
+    public static <T> T binaryFrameToObject(byte[] frame, int offset, int length) throws IOException {
+        String header = headerOf(frame[offset]);
+        Class<?> clazz = header == null ? null : nameToObjMapping.get(header);
+        if (clazz == null) {
+            throw new RuntimeException("Cannot find class belonging to opcode " + frame[offset]);
+        }
+        ObjectReader reader = readers.get(clazz);
+        JsonParser parser = length == 1
+                ? reader.createParser(emptyBody)
+                : reader.createParser(frame, offset + 1, length - 1);
+        try (parser) {
+            @SuppressWarnings("unchecked") // the caller names the message type it expects; cast() checks the class
+            T message = (T) clazz.cast(reader.readValue(parser));
+            return message;
+        }
+    }
+
+    /**
+     * Registers the content type of a RESPONSE status, e.g. for a new error code with a typed body.
+     * Must happen before the first response with that status is decoded.
+     */
+    public static void registerResponseContent(String to, int status, Class<?> type) {
+        contentTypes.register(to, status, type);
     }
 
     public static <T> T jsonToObject(String json, Class<T> clazz) {
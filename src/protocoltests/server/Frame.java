@@ -0,0 +1,47 @@
+package protocoltests.server;
+
+import protocoltests.protocol.utils.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A server message that is sent to one or more sessions. It is encoded at most once per
+ * framing, and only for the framings its recipients actually use.
+ */
+class Frame {
+
+    private final Object message;
+    private ByteBuffer text;
+    private ByteBuffer binary;
+
+    Frame(Object message) {
+        this.message = message;
+    }
+
+    /**
+     * A message whose line encoding differs from the default, e.g. "PING" without a body.
+     */
+    Frame(Object message, String line) {
+        this.message = message;
+        this.text = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    Object message() {
+        return message;
+    }
+
+    ByteBuffer encoded(boolean binaryFraming) throws IOException {
+        if (binaryFraming) {
+            if (binary == null) {
+                binary = ByteBuffer.wrap(Utils.objectToBinaryFrame(message)).asReadOnlyBuffer();
+            }
+            return binary;
+        }
+        if (text == null) {
+            text = ByteBuffer.wrap(Utils.objectToFrame(message)).asReadOnlyBuffer();
+        }
+        return text;
+    }
+}
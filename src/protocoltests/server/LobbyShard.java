@@ -0,0 +1,138 @@
+package protocoltests.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The lobbies of the {@link ReferenceServer} that hash to one worker thread. The worker owns
+ * their member lists and fans lobby broadcasts out to the members, so a busy lobby occupies
+ * its own worker and neither the selector thread nor the lobbies of other workers.
+ * <p>
+ * The server thread validates and answers JOIN, LEAVE and lobby BROADCAST and hands them over
+ * in the order they arrived, so every member receives the broadcasts of a lobby in the order
+ * they were sent. Frames are queued on the member sessions directly (see {@link Session});
+ * with {@code write_coalescing=true} each session is written once per batch of tasks. A frame
+ * that does not fit into a member's queue goes back to the server, which applies the slow
+ * consumer policy.
+ */
+class LobbyShard implements Closeable {
+
+    private final ReferenceServer server;
+    private final long maxOutboundBytes;
+    private final boolean coalesceWrites;
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Map<String, List<Session>> members = new HashMap<>(); // only used by the worker
+    private final ArrayDeque<Session> unflushed = new ArrayDeque<>();
+    private final Thread thread;
+
+    LobbyShard(ReferenceServer server, String name, long maxOutboundBytes, boolean coalesceWrites) {
+        this.server = server;
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.coalesceWrites = coalesceWrites;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void join(String lobby, Session session) {
+        tasks.add(() -> members.computeIfAbsent(lobby, l -> new ArrayList<>()).add(session));
+    }
+
+    void leave(String lobby, Session session) {
+        tasks.add(() -> {
+            List<Session> lobbyMembers = members.get(lobby);
+            if (lobbyMembers != null && lobbyMembers.remove(session) && lobbyMembers.isEmpty()) {
+                members.remove(lobby);
+            }
+        });
+    }
+
+    /**
+     * Sends a frame to every member of the lobby except the sender.
+     */
+    void broadcast(String lobby, Session sender, Frame frame) {
+        tasks.add(() -> {
+            List<Session> lobbyMembers = members.get(lobby);
+            if (lobbyMembers == null) {
+                return;
+            }
+            for (Session member : lobbyMembers) {
+                if (member != sender) {
+                    deliver(member, frame, sender);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Runnable task = tasks.take();
+                do {
+                    task.run();
+                } while ((task = tasks.poll()) != null);
+                flushUnflushed();
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private void deliver(Session member, Frame frame, Session origin) {
+        boolean full = false;
+        boolean wrote = false;
+        boolean complete = true;
+        try {
+            synchronized (member) {
+                if (member.closed || member.closing) {
+                    return;
+                }
+                int size = frame.encoded(member.binary).remaining();
+                if (coalesceWrites && member.queuedBytes() + size > maxOutboundBytes) {
+                    member.flush(); // as on the server thread, only a full socket makes a slow consumer
+                }
+                if (member.queuedBytes() + size > maxOutboundBytes) {
+                    full = true;
+                } else if (member.queue(frame)) {
+                    if (coalesceWrites) {
+                        unflushed.add(member);
+                    } else {
+                        wrote = true;
+                        complete = member.flush();
+                    }
+                }
+            }
+        } catch (IOException | CancelledKeyException e) {
+            return; // disconnected meanwhile, or the server notices on the next read
+        }
+        if (full) {
+            server.overflow(member, frame, origin);
+        } else if (wrote) {
+            server.written(member, complete);
+        }
+    }
+
+    private void flushUnflushed() {
+        Session session;
+        while ((session = unflushed.poll()) != null) {
+            try {
+                server.written(session, session.flush());
+            } catch (IOException | CancelledKeyException e) {
+                // Disconnected meanwhile, or the server notices on the next read
+            }
+        }
+    }
+}
@@ -0,0 +1,1090 @@
+package protocoltests.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import protocoltests.protocol.messages.*;
+import protocoltests.protocol.utils.CommandMetrics;
+import protocoltests.protocol.utils.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the chat server, implementing the protocol as encoded by this test
+ * suite: GREET, LOGIN, BROADCAST, PRIVATE, LIST (full or since a roster version), PING/PONG, ARRIVED/LEFT and the 7xx/8xx
+ * status codes, plus FRAMING to switch a connection to binary frames and SCORE/LEADERBOARD for
+ * per lobby leaderboards. Runs on a single NIO selector thread, so all protocol state is confined to
+ * that thread and needs no locking; only lobby broadcasts are fanned out elsewhere (see below).
+ * <p>
+ * Started per test class on an ephemeral port when testconfig.properties sets
+ * {@code server=embedded}, see {@link #startIfConfigured(Properties)}.
+ * <p>
+ * With {@code write_coalescing=true} frames are not written when they are sent but collected
+ * per session and written with one gathering write per session after {@code flush_window_ms}
+ * (0 = at the end of each selector pass), so a burst of broadcasts costs one write per recipient.
+ * <p>
+ * Each session queues at most {@code max_outbound_bytes}. When a frame does not fit,
+ * {@code slow_consumer_policy} decides: {@code drop} the frame, {@code disconnect} the session
+ * with DISCONNECTED, or {@code block} the session that caused the frame by not reading from it
+ * until the slow session has written half its queue.
+ * <p>
+ * With {@code presence=batched} logins and disconnects are not announced one by one with
+ * ARRIVED/LEFT but collected and sent to every logged in user as one PRESENCE delta every
+ * {@code presence_interval_ms}. Clients apply {@code left} before {@code joined}; a user that
+ * logs in and disconnects within one interval is not announced at all, and a delta can contain
+ * the recipient's own login.
+ * <p>
+ * SCORE adds points to the sender's score in a lobby. LEADERBOARD with only a lobby replies with
+ * the best {@code leaderboard_size} scores of that lobby (see {@link ScoreBoard}) and subscribes
+ * the session: changes are pushed as LEADERBOARD_UPDATE deltas every {@code leaderboard_interval_ms}.
+ * <p>
+ * JOIN and LEAVE add and remove the sender to and from a lobby; a BROADCAST with a lobby goes to
+ * the other members of that lobby only. Lobbies are sharded by name over {@code lobby_workers}
+ * threads ({@link LobbyShard}, started on the first JOIN), which keep the members and do the
+ * fan-out, so a busy lobby does not hold up the selector thread or lobbies on other workers.
+ * <p>
+ * Every command is counted with its status and handling time; METRICS replies with these
+ * counters (see {@link CommandMetrics}).
+ * <p>
+ * With {@code clock=virtual} the timers (PING, pong timeout, presence and leaderboard intervals)
+ * run on a clock that only moves on with {@link #advanceClock(Duration)}, so heartbeat tests take
+ * milliseconds. The {@code flush_window_ms} of coalesced writes always runs on the system clock,
+ * as frames would otherwise wait for the next advance.
+ */
+public class ReferenceServer implements Closeable {
+
+    public final static String welcome_message = "Welcome to the chatroom! Please login to start chatting!";
+    public final static int pong_timeout_code = 7000;
+
+    private final static Pattern valid_username = Pattern.compile("[A-Za-z0-9_]{3,14}");
+    private final static Object list_command = new Object();
+    private final static Object metrics_command = new Object();
+    private final static Object parse_failure = new Object();
+    private final static int read_buffer_size = 64 * 1024;
+    private final static String slow_consumer_reason = "Slow consumer";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final long pingIntervalNanos;
+    private final long pongTimeoutNanos;
+    private final boolean coalesceWrites;
+    private final long flushWindowNanos;
+    private final ArrayDeque<Session> unflushed = new ArrayDeque<>();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder writtenBytes = new LongAdder();
+    private final long maxOutboundBytes;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final ArrayDeque<Session> slowConsumers = new ArrayDeque<>();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder sendersPaused = new LongAdder();
+    private final PresenceMode presenceMode;
+    private final long presenceIntervalNanos;
+    private final Set<String> pendingJoined = new LinkedHashSet<>();
+    private final Set<String> pendingLeft = new LinkedHashSet<>();
+    private final int rosterHistoryLimit;
+    private final ArrayList<RosterChange> rosterHistory = new ArrayList<>(); // change i has version historyBase + 1 + i
+    private long historyBase;
+    private long rosterVersion;
+    private final int leaderboardSize;
+    private final long leaderboardIntervalNanos;
+    private final Map<String, ScoreBoard> scoreBoards = new HashMap<>();
+    private final Map<String, List<Session>> leaderboardSubscribers = new HashMap<>();
+    private final Set<String> changedLobbies = new LinkedHashSet<>();
+    private boolean leaderboardScheduled;
+    private final LobbyShard[] lobbyShards; // created on the first JOIN of a lobby that hashes to them
+    private final ConcurrentLinkedQueue<Runnable> posted = new ConcurrentLinkedQueue<>(); // from lobby workers
+    private volatile long peakQueuedBytes;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(read_buffer_size);
+    private final Map<String, Session> users = new HashMap<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Frame welcomeFrame;
+    private final Frame pingFrame;
+    private final CommandMetrics metrics = new CommandMetrics();
+    private Session dispatching; // the session whose command is being handled
+    private int dispatchStatus; // status of the first response to that command, 0 if none yet
+    private long timerSequence;
+    private final boolean virtualClock;
+    private final Object clockMonitor = new Object();
+    private volatile long virtualTarget; // set by advanceClock
+    private long virtualNanos; // the virtual time on the server thread, at most virtualTarget
+    private long timersRunUntil; // guarded by clockMonitor
+    private boolean flushScheduled;
+    private long flushDue; // System.nanoTime() of the next flush window, also with clock=virtual
+    private boolean presenceScheduled;
+    private volatile boolean running = true;
+
+    /**
+     * Starts a server on the given port (0 = ephemeral) with the settings from a test
+     * configuration: ping_time_ms, pong_timeout_ms, write_coalescing, flush_window_ms,
+     * max_outbound_bytes, slow_consumer_policy, presence, presence_interval_ms, roster_history,
+     * leaderboard_size, leaderboard_interval_ms, lobby_workers and clock.
+     */
+    public ReferenceServer(int port, Properties props) throws IOException {
+        this.pingIntervalNanos = Long.parseLong(props.getProperty("ping_time_ms", "10000")) * 1_000_000L;
+        this.pongTimeoutNanos = Long.parseLong(props.getProperty("pong_timeout_ms", "3000")) * 1_000_000L;
+        this.coalesceWrites = Boolean.parseBoolean(props.getProperty("write_coalescing", "false"));
+        this.flushWindowNanos = Long.parseLong(props.getProperty("flush_window_ms", "0")) * 1_000_000L;
+        this.maxOutboundBytes = Long.parseLong(props.getProperty("max_outbound_bytes", "1048576"));
+        this.slowConsumerPolicy = SlowConsumerPolicy.valueOf(
+                props.getProperty("slow_consumer_policy", "disconnect").toUpperCase(Locale.ROOT));
+        this.presenceMode = PresenceMode.valueOf(props.getProperty("presence", "events").toUpperCase(Locale.ROOT));
+        this.presenceIntervalNanos = Long.parseLong(props.getProperty("presence_interval_ms", "100")) * 1_000_000L;
+        this.rosterHistoryLimit = Integer.parseInt(props.getProperty("roster_history", "10000"));
+        this.leaderboardSize = Integer.parseInt(props.getProperty("leaderboard_size", "10"));
+        this.leaderboardIntervalNanos = Long.parseLong(props.getProperty("leaderboard_interval_ms", "100")) * 1_000_000L;
+        this.lobbyShards = new LobbyShard[Integer.parseInt(props.getProperty("lobby_workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())))];
+        this.virtualClock = "virtual".equals(props.getProperty("clock", "system"));
+        this.welcomeFrame = new Frame(new Welcome(welcome_message));
+        this.pingFrame = new Frame(new Ping(), "PING");
+        welcomeFrame.encoded(false); // up front, so the first client is not greeted late
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "reference-server-" + port());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts a server for the given test configuration when it sets {@code server=embedded}
+     * (the system property of the same name takes precedence).
+     * The server listens on an ephemeral port; host and port in the properties are replaced
+     * so that the test connects to it. Returns null when an external server is configured.
+     */
+    public static ReferenceServer startIfConfigured(Properties props) throws IOException {
+        if (!"embedded".equals(System.getProperty("server", props.getProperty("server", "external")))) {
+            return null;
+        }
+        ReferenceServer server = new ReferenceServer(0, props);
+        props.setProperty("host", "127.0.0.1");
+        props.setProperty("port", String.valueOf(server.port()));
+        return server;
+    }
+
+    /**
+     * Runs the server standalone on the port from testconfig.properties (or the first argument).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Properties props = new Properties();
+        InputStream in = ReferenceServer.class.getResourceAsStream("../testconfig.properties");
+        assert in != null;
+        props.load(in);
+        in.close();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.parseInt(props.getProperty("port"));
+        props.putAll(System.getProperties());
+        ReferenceServer server = new ReferenceServer(port, props);
+        System.out.println("Reference server listening on port " + server.port());
+        server.thread.join();
+    }
+
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Number of socket write calls made so far, for comparing write strategies.
+     */
+    public long writeCalls() {
+        return writeCalls.sum();
+    }
+
+    /**
+     * Number of bytes written to clients so far.
+     */
+    public long writtenBytes() {
+        return writtenBytes.sum();
+    }
+
+    /**
+     * Largest outbound queue of a single session so far, in bytes.
+     */
+    public long peakQueuedBytes() {
+        return peakQueuedBytes;
+    }
+
+    /**
+     * Frames dropped with {@code slow_consumer_policy=drop}.
+     */
+    public long droppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * Times reading from a sender was paused with {@code slow_consumer_policy=block}.
+     */
+    public long sendersPaused() {
+        return sendersPaused.sum();
+    }
+
+    /**
+     * Moves the virtual clock on and waits until every timer due by then has run; frames they
+     * send are written (or queued for the next flush) when this returns.
+     */
+    public void advanceClock(Duration duration) throws InterruptedException {
+        if (!virtualClock) {
+            throw new IllegalStateException("The server does not use a virtual clock (clock=virtual)");
+        }
+        long target;
+        synchronized (clockMonitor) {
+            target = virtualTarget + duration.toNanos();
+            virtualTarget = target;
+        }
+        selector.wakeup();
+        synchronized (clockMonitor) {
+            while (timersRunUntil < target && running) {
+                clockMonitor.wait(100);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LobbyShard shard : lobbyShards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long timeout = runDueTimers();
+                runPosted();
+                closeSlowConsumers();
+                if (coalesceWrites && flushWindowNanos == 0) {
+                    flushUnflushed();
+                } else if (flushScheduled) {
+                    timeout = flushDueWindow(timeout);
+                }
+                selector.select(timeout);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handle(key);
+                }
+                selector.selectedKeys().clear();
+                closeSlowConsumers();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("Reference server stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        Session session = (Session) key.attachment();
+        try {
+            if (key.isWritable()) {
+                if (session.flush() && session.closing) {
+                    disconnect(session);
+                    return;
+                }
+                resumeSenders(session);
+            }
+            if (key.isReadable() && !session.readPaused) {
+                read(session);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            disconnect(session);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                Session session = new Session(channel, key, writeCalls, writtenBytes);
+                key.attach(session);
+                send(session, welcomeFrame);
+            }
+        } catch (IOException e) {
+            System.err.println("Accept failed: " + e.getMessage());
+        }
+    }
+
+    private void read(Session session) throws IOException {
+        readBuffer.clear();
+        int read = session.channel.read(readBuffer);
+        if (read < 0) {
+            disconnect(session);
+            return;
+        }
+        readBuffer.flip();
+        session.decoder.feed(readBuffer);
+        dispatchBuffered(session);
+    }
+
+    /**
+     * Handles the complete commands in the session's decoder, until the session is paused.
+     */
+    private void dispatchBuffered(Session session) throws IOException {
+        Object command;
+        while (!session.closed && !session.readPaused && (command = session.decoder.next(session.binary ? this::parseBinary : this::parse)) != null) {
+            dispatch(session, command);
+        }
+    }
+
+    /**
+     * Decodes a client command. Unknown headers and invalid JSON become {@code parse_failure};
+     * a LOGIN without body becomes a login with no username, which is rejected with 811.
+     */
+    private Object parse(byte[] frame, int offset, int length) {
+        int end = offset + length;
+        int separator = offset;
+        while (separator < end && frame[separator] != ' ') {
+            separator++;
+        }
+        String header = new String(frame, offset, separator - offset, StandardCharsets.US_ASCII);
+        int bodyOffset = Math.min(separator + 1, end);
+        return parse(header, frame, bodyOffset, end - bodyOffset);
+    }
+
+    /**
+     * Decodes a binary client command (opcode and body).
+     */
+    private Object parseBinary(byte[] frame, int offset, int length) {
+        String header = Utils.headerOf(frame[offset]);
+        return header == null ? parse_failure : parse(header, frame, offset + 1, length - 1);
+    }
+
+    private Object parse(String header, byte[] frame, int bodyOffset, int bodyLength) {
+        try {
+            return switch (header) {
+                case "LOGIN" -> bodyLength == 0 ? new Login(null) : mapper.readValue(frame, bodyOffset, bodyLength, Login.class);
+                case "BROADCAST" -> mapper.readValue(frame, bodyOffset, bodyLength, Broadcast.class);
+                case "PRIVATE" -> mapper.readValue(frame, bodyOffset, bodyLength, Private.class);
+                case "PONG" -> new Pong();
+                case "LIST" -> bodyLength == 0 ? list_command : mapper.readValue(frame, bodyOffset, bodyLength, ListSince.class);
+                case "FRAMING" -> mapper.readValue(frame, bodyOffset, bodyLength, Framing.class);
+                case "SCORE" -> mapper.readValue(frame, bodyOffset, bodyLength, Score.class);
+                case "LEADERBOARD" -> mapper.readValue(frame, bodyOffset, bodyLength, Leaderboard.class);
+                case "METRICS" -> metrics_command;
+                case "JOIN" -> mapper.readValue(frame, bodyOffset, bodyLength, Join.class);
+                case "LEAVE" -> mapper.readValue(frame, bodyOffset, bodyLength, Leave.class);
+                default -> parse_failure;
+            };
+        } catch (IOException e) {
+            return parse_failure;
+        }
+    }
+
+    /**
+     * Handles a command and records it in the metrics, with the status of its response and
+     * the time until the response was sent or queued.
+     */
+    private void dispatch(Session session, Object command) throws IOException {
+        long start = System.nanoTime();
+        dispatching = session;
+        dispatchStatus = 0;
+        try {
+            execute(session, command);
+        } finally {
+            dispatching = null;
+        }
+        String header = commandHeader(command);
+        if (header != null) {
+            metrics.requested(header);
+            metrics.answered(header, dispatchStatus, System.nanoTime() - start);
+        }
+    }
+
+    private static String commandHeader(Object command) {
+        if (command == parse_failure) {
+            return null;
+        }
+        if (command == list_command) {
+            return "LIST";
+        }
+        return command == metrics_command ? "METRICS" : Utils.headerOf(command);
+    }
+
+    private void execute(Session session, Object command) throws IOException {
+        if (command instanceof Login login) {
+            login(session, login);
+        } else if (command instanceof Broadcast broadcast) {
+            broadcast(session, broadcast);
+        } else if (command instanceof Private message) {
+            sendPrivate(session, message);
+        } else if (command instanceof Pong) {
+            pong(session);
+        } else if (command == list_command) {
+            list(session);
+        } else if (command instanceof ListSince since) {
+            listSince(session, since.since());
+        } else if (command instanceof Framing framing) {
+            framing(session, framing);
+        } else if (command instanceof Score score) {
+            score(session, score);
+        } else if (command instanceof Leaderboard leaderboard) {
+            leaderboard(session, leaderboard.lobby());
+        } else if (command instanceof Join join) {
+            join(session, join.lobby());
+        } else if (command instanceof Leave leave) {
+            leaveLobby(session, leave.lobby());
+        } else if (command == metrics_command) {
+            send(session, new Frame(new Response<>(metrics.snapshot(), 800, "METRICS")));
+        } else {
+            send(session, new Frame(new ParseError()));
+        }
+    }
+
+    /**
+     * Switches the framing of a session. Only allowed before LOGIN (clients negotiate it right
+     * after GREET): 840 for an unknown mode, 841 when already logged in. The response still
+     * uses the old framing; every frame after it in both directions uses the new one.
+     */
+    private void framing(Session session, Framing framing) throws IOException {
+        boolean binary = "binary".equals(framing.mode());
+        if (!binary && !"text".equals(framing.mode())) {
+            respond(session, 840, "FRAMING");
+        } else if (session.loggedIn()) {
+            respond(session, 841, "FRAMING");
+        } else {
+            respond(session, 800, "FRAMING");
+            session.binary = binary;
+            session.decoder.binary(binary);
+        }
+    }
+
+    private void login(Session session, Login login) throws IOException {
+        if (session.loggedIn()) {
+            respond(session, 810, "LOGIN");
+        } else if (login.username() == null || !valid_username.matcher(login.username()).matches()) {
+            respond(session, 811, "LOGIN");
+        } else if (users.containsKey(login.username())) {
+            respond(session, 812, "LOGIN");
+        } else {
+            session.username = login.username();
+            users.put(session.username, session);
+            rosterChanged(session.username, true);
+            respond(session, 800, "LOGIN");
+            announceJoined(session);
+            schedule(pingIntervalNanos, () -> ping(session));
+        }
+    }
+
+    private void broadcast(Session session, Broadcast broadcast) throws IOException {
+        if (!session.loggedIn()) {
+            respond(session, 710, "LOGIN");
+            return;
+        }
+        if (broadcast.lobby() != null) {
+            broadcastToLobby(session, broadcast);
+            return;
+        }
+        respond(session, 800, "BROADCAST");
+        sendToOthers(session, new Frame(new Broadcast(session.username, broadcast.message())));
+    }
+
+    /**
+     * Hands a broadcast to the worker of its lobby: 850 without a lobby name, 851 when the
+     * sender is not a member.
+     */
+    private void broadcastToLobby(Session session, Broadcast broadcast) throws IOException {
+        String lobby = broadcast.lobby();
+        if (lobby.isEmpty()) {
+            respond(session, 850, "BROADCAST");
+        } else if (!session.lobbies.contains(lobby)) {
+            respond(session, 851, "BROADCAST");
+        } else {
+            respond(session, 800, "BROADCAST");
+            lobbyShard(lobby).broadcast(lobby, session, new Frame(new Broadcast(lobby, session.username, broadcast.message())));
+        }
+    }
+
+    /**
+     * Adds the session to a lobby: 850 without a lobby name, 852 when it already is a member.
+     * The worker is told before the 800 is sent, so a broadcast the client triggers after the
+     * 800 always finds it among the members.
+     */
+    private void join(Session session, String lobby) throws IOException {
+        if (!session.loggedIn()) {
+            respond(session, 710, "LOGIN");
+        } else if (lobby == null || lobby.isEmpty()) {
+            respond(session, 850, "JOIN");
+        } else if (!session.lobbies.add(lobby)) {
+            respond(session, 852, "JOIN");
+        } else {
+            lobbyShard(lobby).join(lobby, session);
+            respond(session, 800, "JOIN");
+        }
+    }
+
+    /**
+     * Removes the session from a lobby: 850 without a lobby name, 851 when it is not a member.
+     */
+    private void leaveLobby(Session session, String lobby) throws IOException {
+        if (!session.loggedIn()) {
+            respond(session, 710, "LOGIN");
+        } else if (lobby == null || lobby.isEmpty()) {
+            respond(session, 850, "LEAVE");
+        } else if (!session.lobbies.remove(lobby)) {
+            respond(session, 851, "LEAVE");
+        } else {
+            lobbyShard(lobby).leave(lobby, session);
+            respond(session, 800, "LEAVE");
+        }
+    }
+
+    private LobbyShard lobbyShard(String lobby) {
+        int index = Math.floorMod(lobby.hashCode(), lobbyShards.length);
+        if (lobbyShards[index] == null) {
+            lobbyShards[index] = new LobbyShard(this, "lobby-worker-" + port() + "-" + index, maxOutboundBytes, coalesceWrites);
+        }
+        return lobbyShards[index];
+    }
+
+    /**
+     * Called by a lobby worker for a frame that does not fit into a member's queue. Dropped right
+     * away with {@code slow_consumer_policy=drop}; otherwise sent again on the server thread,
+     * which owns disconnecting slow consumers and pausing senders.
+     */
+    void overflow(Session session, Frame frame, Session origin) {
+        if (slowConsumerPolicy == SlowConsumerPolicy.DROP) {
+            droppedFrames.increment();
+            return;
+        }
+        post(() -> {
+            try {
+                send(session, frame, origin);
+            } catch (IOException e) {
+                disconnect(session);
+            }
+        });
+    }
+
+    /**
+     * Called by a lobby worker after queueing or writing to a session. A partial write has
+     * registered OP_WRITE, which takes effect when the selector wakes up; senders blocked by the
+     * session may be resumed on the server thread.
+     */
+    void written(Session session, boolean complete) {
+        long queued = session.queuedBytes();
+        if (queued > peakQueuedBytes) {
+            peakQueuedBytes = queued; // may lose a concurrent update, it is a statistic
+        }
+        if (!complete) {
+            selector.wakeup();
+        } else if (slowConsumerPolicy == SlowConsumerPolicy.BLOCK && !session.blockedSenders.isEmpty()) {
+            post(() -> {
+                try {
+                    resumeSenders(session);
+                } catch (IOException e) {
+                    disconnect(session);
+                }
+            });
+        }
+    }
+
+    private void post(Runnable task) {
+        posted.add(task);
+        selector.wakeup();
+    }
+
+    private void runPosted() {
+        Runnable task;
+        while ((task = posted.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void sendPrivate(Session session, Private message) throws IOException {
+        if (!session.loggedIn()) {
+            respond(session, 710, "LOGIN");
+            return;
+        }
+        if (session.username.equals(message.username())) {
+            respond(session, 822, "PRIVATE");
+            return;
+        }
+        Session receiver = message.username() == null ? null : users.get(message.username());
+        if (receiver == null) {
+            send(session, new Frame(new Response<>(new NotFound("receiver", message.username()), 711, "PRIVATE")));
+            return;
+        }
+        respond(session, 800, "PRIVATE");
+        send(receiver, new Frame(new Private(session.username, message.message())), session);
+    }
+
+    private void list(Session session) throws IOException {
+        List<String> others = new ArrayList<>(users.size());
+        for (String username : users.keySet()) {
+            if (!username.equals(session.username)) {
+                others.add(username);
+            }
+        }
+        send(session, new Frame(new Response<>(others, 800, "LIST")));
+    }
+
+    private void score(Session session, Score score) throws IOException {
+        if (!session.loggedIn()) {
+            respond(session, 710, "LOGIN");
+            return;
+        }
+        if (score.lobby() == null || score.lobby().isEmpty()) {
+            respond(session, 850, "SCORE");
+            return;
+        }
+        scoreBoards.computeIfAbsent(score.lobby(), lobby -> new ScoreBoard(leaderboardSize))
+                .add(session.username, score.points());
+        respond(session, 800, "SCORE");
+        changedLobbies.add(score.lobby());
+        if (!leaderboardScheduled) {
+            leaderboardScheduled = true;
+            schedule(leaderboardIntervalNanos, this::pushLeaderboards);
+        }
+    }
+
+    /**
+     * Replies with the current leaderboard of a lobby (empty for a lobby without scores)
+     * and subscribes the session to its updates.
+     */
+    private void leaderboard(Session session, String lobby) throws IOException {
+        if (!session.loggedIn()) {
+            respond(session, 710, "LOGIN");
+            return;
+        }
+        if (lobby == null || lobby.isEmpty()) {
+            respond(session, 850, "LEADERBOARD");
+            return;
+        }
+        ScoreBoard board = scoreBoards.get(lobby);
+        Leaderboard leaderboard = board == null ? new Leaderboard(lobby, new String[0], new int[0]) : board.leaderboard(lobby);
+        send(session, new Frame(leaderboard));
+        List<Session> subscribers = leaderboardSubscribers.computeIfAbsent(lobby, l -> new ArrayList<>());
+        if (!subscribers.contains(session)) {
+            subscribers.add(session);
+        }
+    }
+
+    /**
+     * Sends the leaderboard changes of the past interval to the subscribers of each lobby,
+     * dropping subscribers that disconnected.
+     */
+    private void pushLeaderboards() {
+        leaderboardScheduled = false;
+        for (String lobby : changedLobbies) {
+            LeaderboardUpdate update = scoreBoards.get(lobby).drainUpdate(lobby);
+            List<Session> subscribers = leaderboardSubscribers.get(lobby);
+            if (update == null || subscribers == null) {
+                continue;
+            }
+            subscribers.removeIf(subscriber -> subscriber.closed);
+            Frame frame = new Frame(update);
+            for (Session subscriber : subscribers) {
+                try {
+                    send(subscriber, frame, null);
+                } catch (IOException e) {
+                    // Dropped here; the broken connection is noticed on its next read
+                }
+            }
+        }
+        changedLobbies.clear();
+    }
+
+    /**
+     * Replies with the users that logged in or out after the given roster version; a user that
+     * did both is left out. Costs O(changes) instead of O(users). Falls back to the full roster
+     * for version 0 and for versions the history does not reach back to.
+     */
+    private void listSince(Session session, long since) throws IOException {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        boolean full = since <= 0 || since < historyBase || since > rosterVersion;
+        if (full) {
+            for (String username : users.keySet()) {
+                if (!username.equals(session.username)) {
+                    joined.add(username);
+                }
+            }
+        } else {
+            Map<String, Boolean> presentBefore = new LinkedHashMap<>();
+            Map<String, Boolean> presentNow = new HashMap<>();
+            for (int i = (int) (since - historyBase); i < rosterHistory.size(); i++) {
+                RosterChange change = rosterHistory.get(i);
+                presentBefore.putIfAbsent(change.username(), !change.joined());
+                presentNow.put(change.username(), change.joined());
+            }
+            for (Map.Entry<String, Boolean> entry : presentBefore.entrySet()) {
+                String username = entry.getKey();
+                boolean now = presentNow.get(username);
+                if (now != entry.getValue() && !username.equals(session.username)) {
+                    (now ? joined : left).add(username);
+                }
+            }
+        }
+        send(session, new Frame(new Response<>(new RosterDelta(rosterVersion, full, joined, left), 800, "LIST")));
+    }
+
+    /**
+     * Records a login or disconnect under a new roster version. The history keeps at least
+     * the last {@code roster_history} changes.
+     */
+    private void rosterChanged(String username, boolean joined) {
+        rosterVersion++;
+        rosterHistory.add(new RosterChange(username, joined));
+        if (rosterHistory.size() > 2 * rosterHistoryLimit) {
+            int trimmed = rosterHistory.size() - rosterHistoryLimit;
+            rosterHistory.subList(0, trimmed).clear();
+            historyBase += trimmed;
+        }
+    }
+
+    private void pong(Session session) throws IOException {
+        if (!session.pingOutstanding) {
+            respond(session, 830, "PONG");
+            return;
+        }
+        session.pingOutstanding = false;
+    }
+
+    private void ping(Session session) {
+        if (session.closed) {
+            return;
+        }
+        try {
+            session.pingOutstanding = true;
+            send(session, pingFrame, null);
+            schedule(pongTimeoutNanos, () -> checkPong(session));
+            schedule(pingIntervalNanos, () -> ping(session));
+        } catch (IOException e) {
+            disconnect(session);
+        }
+    }
+
+    private void checkPong(Session session) {
+        if (session.closed || !session.pingOutstanding) {
+            return;
+        }
+        try {
+            send(session, new Frame(new PongError(pong_timeout_code)));
+            send(session, new Frame(new Disconnected("Pong timeout")));
+            session.flush();
+        } catch (IOException ignored) {
+        }
+        disconnect(session);
+    }
+
+    private void respond(Session session, int status, String to) throws IOException {
+        send(session, new Frame(new Response<>(status == 800 ? "OK" : "ERROR", status, to)));
+    }
+
+    private void sendToOthers(Session sender, Frame frame) {
+        for (Session session : users.values()) {
+            if (session != sender) {
+                try {
+                    send(session, frame, sender);
+                } catch (IOException e) {
+                    // Dropped here; the broken connection is noticed on its next read
+                }
+            }
+        }
+    }
+
+    private void send(Session session, Frame frame) throws IOException {
+        send(session, frame, session);
+    }
+
+    /**
+     * Sends a frame to a session, or queues it until the next flush when writes are coalesced.
+     * All frames go through here, so a session receives them in the order they were sent.
+     * The origin is the session whose command caused the frame (null for timers); it is the
+     * one paused when the receiving session is full and the policy is {@code block}.
+     */
+    private void send(Session session, Frame frame, Session origin) throws IOException {
+        if (session == dispatching && dispatchStatus == 0 && frame.message() instanceof Response<?> response) {
+            dispatchStatus = response.status();
+        }
+        if (session.closed || session.closing) {
+            return;
+        }
+        int size = frame.encoded(session.binary).remaining();
+        if (coalesceWrites && session.queuedBytes() + size > maxOutboundBytes) {
+            // A coalesced queue may just be waiting for the end of the pass, only a full socket makes a slow consumer
+            session.flush();
+        }
+        if (session.queuedBytes() + size > maxOutboundBytes) {
+            switch (slowConsumerPolicy) {
+                case DROP -> {
+                    droppedFrames.increment();
+                    return;
+                }
+                case DISCONNECT -> {
+                    closeSlowConsumer(session);
+                    return;
+                }
+                case BLOCK -> pause(origin, session);
+            }
+        }
+        if (!coalesceWrites) {
+            session.send(frame);
+        } else if (session.queue(frame)) {
+            unflushed.add(session);
+            if (flushWindowNanos > 0 && !flushScheduled) {
+                flushScheduled = true;
+                flushDue = System.nanoTime() + flushWindowNanos;
+            }
+        }
+        if (session.queuedBytes() > peakQueuedBytes) {
+            peakQueuedBytes = session.queuedBytes();
+        }
+    }
+
+    /**
+     * Flushes when the flush window has passed and returns the select timeout shortened to the
+     * end of the window otherwise (0 = no limit, as for {@link #runDueTimers()}).
+     */
+    private long flushDueWindow(long timeout) {
+        long remaining = flushDue - System.nanoTime();
+        if (remaining <= 0) {
+            flushUnflushed();
+            return timeout;
+        }
+        long remainingMs = Math.max(1, remaining / 1_000_000);
+        return timeout == 0 ? remainingMs : Math.min(timeout, remainingMs);
+    }
+
+    private void flushUnflushed() {
+        flushScheduled = false;
+        Session session;
+        while ((session = unflushed.poll()) != null) {
+            if (!session.closed) {
+                try {
+                    session.flush();
+                    resumeSenders(session);
+                } catch (IOException e) {
+                    disconnect(session);
+                }
+            }
+        }
+    }
+
+    private void pause(Session origin, Session full) {
+        if (origin == null) {
+            return;
+        }
+        if (!origin.readPaused) {
+            origin.readPaused = true;
+            origin.updateInterest();
+            sendersPaused.increment();
+        }
+        if (!full.blockedSenders.contains(origin)) {
+            full.blockedSenders.add(origin);
+        }
+    }
+
+    /**
+     * Continues reading from the sessions a slow session blocked, once it has written at least
+     * half of its queue (or is gone).
+     */
+    private void resumeSenders(Session session) throws IOException {
+        if (session.blockedSenders.isEmpty() || !session.closed && session.queuedBytes() > maxOutboundBytes / 2) {
+            return;
+        }
+        List<Session> senders = new ArrayList<>(session.blockedSenders);
+        session.blockedSenders.clear();
+        for (Session sender : senders) {
+            if (!sender.closed && sender.readPaused) {
+                sender.readPaused = false;
+                sender.updateInterest();
+                dispatchBuffered(sender);
+            }
+        }
+    }
+
+    /**
+     * Drops what the session has not been sent yet and queues DISCONNECTED instead. The user
+     * leaves at the end of the selector pass, as this can happen while iterating the users.
+     */
+    private void closeSlowConsumer(Session session) throws IOException {
+        synchronized (session) { // no lobby worker queues between the discard and DISCONNECTED
+            session.closing = true;
+            session.discardUnsent();
+            session.send(new Frame(new Disconnected(slow_consumer_reason)));
+        }
+        session.readPaused = true;
+        session.updateInterest();
+        slowConsumers.add(session);
+    }
+
+    /**
+     * Lets slow consumers leave and closes their connection once DISCONNECTED is written,
+     * or after the pong timeout when the client does not read it.
+     */
+    private void closeSlowConsumers() {
+        Session session;
+        while ((session = slowConsumers.poll()) != null) {
+            leave(session);
+            Session closing = session;
+            try {
+                if (closing.flush()) {
+                    disconnect(closing);
+                } else {
+                    schedule(pongTimeoutNanos, () -> disconnect(closing));
+                }
+            } catch (IOException e) {
+                disconnect(closing);
+            }
+        }
+    }
+
+    private void disconnect(Session session) {
+        if (session.closed) {
+            return;
+        }
+        session.closed = true;
+        session.key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException ignored) {
+        }
+        leave(session);
+        try {
+            resumeSenders(session);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void leave(Session session) {
+        for (String lobby : session.lobbies) {
+            lobbyShard(lobby).leave(lobby, session);
+        }
+        session.lobbies.clear();
+        if (session.loggedIn() && users.remove(session.username) == session) {
+            rosterChanged(session.username, false);
+            announceLeft(session);
+        }
+    }
+
+    private void announceJoined(Session session) {
+        if (presenceMode == PresenceMode.EVENTS) {
+            sendToOthers(session, new Frame(new Arrived(session.username)));
+            return;
+        }
+        // Left and joined again within the interval: stays in left as well, so it is replaced
+        pendingJoined.add(session.username);
+        schedulePresence();
+    }
+
+    private void announceLeft(Session session) {
+        if (presenceMode == PresenceMode.EVENTS) {
+            sendToOthers(session, new Frame(new Left(session.username)));
+            return;
+        }
+        if (!pendingJoined.remove(session.username)) {
+            pendingLeft.add(session.username);
+        }
+        schedulePresence();
+    }
+
+    private void schedulePresence() {
+        if (!presenceScheduled) {
+            presenceScheduled = true;
+            schedule(presenceIntervalNanos, this::sendPresence);
+        }
+    }
+
+    /**
+     * Sends the logins and disconnects of the past interval to every logged in user as one frame.
+     */
+    private void sendPresence() {
+        presenceScheduled = false;
+        if (pendingJoined.isEmpty() && pendingLeft.isEmpty()) {
+            return;
+        }
+        Frame frame = new Frame(new Presence(new ArrayList<>(pendingJoined), new ArrayList<>(pendingLeft)));
+        pendingJoined.clear();
+        pendingLeft.clear();
+        sendToOthers(null, frame);
+    }
+
+    private void schedule(long delayNanos, Runnable action) {
+        timers.add(new Timer(now() + delayNanos, timerSequence++, action));
+    }
+
+    private long now() {
+        return virtualClock ? virtualNanos : System.nanoTime();
+    }
+
+    /**
+     * Runs all timers that are due and returns how long select may block (0 = no timers, or
+     * a virtual clock: only {@link #advanceClock(Duration)} makes the next timer due).
+     */
+    private long runDueTimers() {
+        long target = virtualTarget;
+        while (true) {
+            Timer next = timers.peek();
+            long wait = next == null ? Long.MAX_VALUE : next.due - (virtualClock ? target : System.nanoTime());
+            if (wait > 0) {
+                if (virtualClock) {
+                    virtualNanos = target;
+                    synchronized (clockMonitor) {
+                        timersRunUntil = target;
+                        clockMonitor.notifyAll();
+                    }
+                    return 0;
+                }
+                return next == null ? 0 : Math.max(1, wait / 1_000_000);
+            }
+            timers.poll();
+            if (virtualClock) {
+                virtualNanos = Math.max(virtualNanos, next.due); // timers scheduled by this one count from its due time
+            }
+            next.action.run();
+        }
+    }
+
+    private enum PresenceMode {
+        EVENTS, BATCHED
+    }
+
+    private enum SlowConsumerPolicy {
+        DROP, DISCONNECT, BLOCK
+    }
+
+    private record RosterChange(String username, boolean joined) {
+    }
+
+    private record Timer(long due, long sequence, Runnable action) implements Comparable<Timer> {
+        @Override
+        public int compareTo(Timer other) {
+            int byDue = Long.compare(due, other.due);
+            return byDue != 0 ? byDue : Long.compare(sequence, other.sequence);
+        }
+    }
+}
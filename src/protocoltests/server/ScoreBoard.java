@@ -0,0 +1,143 @@
+package protocoltests.server;
+
+import protocoltests.protocol.messages.Leaderboard;
+import protocoltests.protocol.messages.LeaderboardUpdate;
+
+import java.util.*;
+
+/**
+ * Scores of one lobby, ranked for its leaderboard (highest score first, then by username).
+ * The best {@code size} entries are kept in an ordered set of their own and the others in a
+ * second one, so an update costs O(log n) and reading the leaderboard O(size) instead of
+ * sorting every score per request. Changes to the leaderboard are collected until
+ * {@link #drainUpdate(String)}, for pushing them as deltas. Scores are plain ints.
+ */
+public class ScoreBoard {
+
+    private final static Comparator<Entry> ranking = (a, b) -> a.score != b.score
+            ? Integer.compare(b.score, a.score)
+            : a.username.compareTo(b.username);
+
+    private final int size;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> top = new TreeSet<>(ranking);
+    private final TreeSet<Entry> rest = new TreeSet<>(ranking);
+    private final Set<Entry> changed = new LinkedHashSet<>(); // in the leaderboard with a new score
+    private final Set<String> removed = new LinkedHashSet<>(); // dropped out of the leaderboard
+
+    public ScoreBoard(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Leaderboard size must be positive");
+        }
+        this.size = size;
+    }
+
+    /**
+     * Adds points (may be negative) to a user's score and returns the new score.
+     * The score saturates at the int range instead of overflowing.
+     */
+    public int add(String username, int points) {
+        Entry entry = entries.get(username);
+        boolean wasTop = false;
+        if (entry == null) {
+            entry = new Entry(username);
+            entries.put(username, entry);
+        } else {
+            wasTop = top.remove(entry);
+            if (!wasTop) {
+                rest.remove(entry);
+            }
+        }
+        entry.score = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, (long) entry.score + points));
+        rest.add(entry);
+        rebalance();
+        if (top.contains(entry)) {
+            changed.add(entry);
+            removed.remove(username);
+        } else if (wasTop) {
+            changed.remove(entry);
+            removed.add(username);
+        }
+        return entry.score;
+    }
+
+    /**
+     * Current score of a user, 0 for a user without score.
+     */
+    public int score(String username) {
+        Entry entry = entries.get(username);
+        return entry == null ? 0 : entry.score;
+    }
+
+    /**
+     * Number of users with a score.
+     */
+    public int count() {
+        return entries.size();
+    }
+
+    public Leaderboard leaderboard(String lobby) {
+        String[] usernames = new String[top.size()];
+        int[] scores = new int[top.size()];
+        int i = 0;
+        for (Entry entry : top) {
+            usernames[i] = entry.username;
+            scores[i] = entry.score;
+            i++;
+        }
+        return new Leaderboard(lobby, usernames, scores);
+    }
+
+    /**
+     * Returns the changes since the previous call and forgets them, or null when there are none.
+     */
+    public LeaderboardUpdate drainUpdate(String lobby) {
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        String[] usernames = new String[changed.size()];
+        int[] scores = new int[changed.size()];
+        int i = 0;
+        for (Entry entry : changed) {
+            usernames[i] = entry.username;
+            scores[i] = entry.score;
+            i++;
+        }
+        LeaderboardUpdate update = new LeaderboardUpdate(lobby, usernames, scores, removed.toArray(new String[0]));
+        changed.clear();
+        removed.clear();
+        return update;
+    }
+
+    /**
+     * Moves entries between the sets until the top holds the best {@code size} entries.
+     * After a single update this moves at most one entry each way.
+     */
+    private void rebalance() {
+        while (top.size() < size && !rest.isEmpty()) {
+            promote(rest.pollFirst());
+        }
+        while (!rest.isEmpty() && ranking.compare(rest.first(), top.last()) < 0) {
+            Entry demoted = top.pollLast();
+            promote(rest.pollFirst());
+            rest.add(demoted);
+            changed.remove(demoted);
+            removed.add(demoted.username);
+        }
+    }
+
+    private void promote(Entry entry) {
+        top.add(entry);
+        changed.add(entry);
+        removed.remove(entry.username);
+    }
+
+    private final static class Entry {
+        private final String username;
+        private int score;
+
+        private Entry(String username) {
+            this.username = username;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package protocoltests.server;
+
+import protocoltests.protocol.utils.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * State of one client connection on the {@link ReferenceServer}. Only used from the server thread,
+ * except for the outbound queue: lobby workers ({@link LobbyShard}) send to sessions as well, so
+ * queueing and writing synchronize on the session and a frame is never interleaved with another.
+ */
+class Session {
+
+    private final static int max_gather = 64; // frames per gathering write
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    final FrameDecoder decoder = new FrameDecoder();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final LongAdder writeCalls;
+    private final LongAdder writtenBytes;
+    private long queuedBytes; // bytes of the frames in outbound, including a partly written head
+
+    String username;
+    boolean pingOutstanding;
+    boolean binary; // length prefixed frames after a FRAMING command, see Frame
+    volatile boolean readPaused; // slow_consumer_policy=block: a recipient of this session is full
+    volatile boolean closing; // slow_consumer_policy=disconnect: closed at the end of the selector pass
+    final List<Session> blockedSenders = new ArrayList<>();
+    final Set<String> lobbies = new HashSet<>(); // joined lobbies; the members are kept by the lobby workers
+    volatile boolean closed;
+
+    Session(SocketChannel channel, SelectionKey key, LongAdder writeCalls, LongAdder writtenBytes) {
+        this.channel = channel;
+        this.key = key;
+        this.writeCalls = writeCalls;
+        this.writtenBytes = writtenBytes;
+    }
+
+    boolean loggedIn() {
+        return username != null;
+    }
+
+    /**
+     * Queues a message in this session's framing and writes as much as the socket accepts right away.
+     * The encoded buffer itself is not modified, so one frame can be sent to many sessions.
+     */
+    synchronized void send(Frame frame) throws IOException {
+        if (queue(frame)) {
+            flush();
+        }
+    }
+
+    /**
+     * Queues a message without writing it. Returns true when nothing was queued before,
+     * i.e. when the caller has to arrange a {@link #flush()}.
+     */
+    synchronized boolean queue(Frame frame) throws IOException {
+        if (closed) {
+            return false;
+        }
+        boolean idle = outbound.isEmpty();
+        ByteBuffer encoded = frame.encoded(binary).duplicate();
+        outbound.add(encoded);
+        queuedBytes += encoded.remaining();
+        return idle;
+    }
+
+    synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Drops every queued frame that has not been started yet. A partly written frame is kept,
+     * so the client does not see half a frame followed by a different one.
+     */
+    synchronized void discardUnsent() {
+        ByteBuffer head = outbound.peek();
+        boolean keepHead = head != null && head.position() > 0;
+        outbound.clear();
+        queuedBytes = 0;
+        if (keepHead) {
+            outbound.add(head);
+            queuedBytes = head.limit();
+        }
+    }
+
+    /**
+     * Registers for OP_WRITE while frames are pending and for OP_READ unless reading is paused.
+     */
+    synchronized void updateInterest() {
+        if (key.isValid()) {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+    }
+
+    /**
+     * Writes queued frames until the socket would block, up to {@code max_gather} frames per
+     * write call. Returns true when everything was written.
+     */
+    synchronized boolean flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer last;
+            long written;
+            if (outbound.size() == 1) {
+                last = outbound.peek();
+                written = channel.write(last);
+            } else {
+                ByteBuffer[] batch = new ByteBuffer[Math.min(outbound.size(), max_gather)];
+                Iterator<ByteBuffer> frames = outbound.iterator();
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = frames.next();
+                }
+                last = batch[batch.length - 1];
+                written = channel.write(batch);
+            }
+            writeCalls.increment();
+            writtenBytes.add(written);
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null && !head.hasRemaining()) {
+                queuedBytes -= head.limit();
+                outbound.poll();
+            }
+            if (last.hasRemaining()) {
+                updateInterest();
+                return false;
+            }
+        }
+        updateInterest();
+        return true;
+    }
+}